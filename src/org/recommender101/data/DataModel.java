@@ -1,16 +1,21 @@
 /** DJ **/
 package org.recommender101.data;
 
-import java.util.ArrayList;
+import java.util.AbstractSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
-import org.recommender101.tools.Utilities101;
-
 /**
  * This class holds all the data required for the recommendation process.
+ * 
+ * The ratings are stored in primitive arrays (a {@link RatingStore} and a {@link RatingIndex},
+ * see {@link RatingTable}). The sets returned by getRatings() and getRatingsOfUser() are
+ * read-only views on these arrays which create the Rating objects while iterating; the ratings
+ * are changed through the methods of the data model.
  * @author DJ
  *
  */
@@ -22,10 +27,10 @@ public class DataModel {
 	// The item list
 	Set<Integer> items = new HashSet<Integer>();
 	
-	// All the ratings / use sparse matrix later on 
-	protected Set<Rating> ratings = new HashSet<Rating>();
+	// All the ratings, a view on the rating table
+	protected Set<Rating> ratings = new TableView();
 	
-	// HashMap ratings per user
+	// HashMap ratings per user, views on the rating table
 	HashMap<Integer, Set<Rating>> ratingsPerUser = new HashMap<Integer, Set<Rating>>();
 
 	// implicit ratings 
@@ -59,6 +64,16 @@ public class DataModel {
 	// the maximum rating value
 	int maxRatingValue;
 
+	/**
+	 * The storage of the ratings. Replaced by a compacted table when the store is requested
+	 * after changes, so readers which hold the previous table are not affected.
+	 */
+	volatile RatingTable table = new RatingTable();
+
+	// Running statistics of the ratings per user and per item, kept in sync with the index
+	RatingStatistics userStatistics = new RatingStatistics();
+	RatingStatistics itemStatistics = new RatingStatistics();
+
 	// =====================================================================================
 
 	/**
@@ -70,13 +85,12 @@ public class DataModel {
 	 */
 	public Rating addRating(int user, int item, byte value) {
 		Rating r = new Rating(user,item,value);
-		ratings.add(r);
-		Set<Rating> userRatings = ratingsPerUser.get(user);
-		if (userRatings == null) {
-			userRatings = new HashSet<Rating>();
+		if (table.add(user, item, value) >= 0) {
+			countRating(r);
+		}
+		if (!ratingsPerUser.containsKey(user)) {
+			ratingsPerUser.put(user, new UserView(user));
 		}
-		ratingsPerUser.put(user, userRatings);
-		userRatings.add(r);
 		users.add(user);
 		items.add(item);
 		averagesDirty = true;
@@ -94,13 +108,12 @@ public class DataModel {
 	 * @return the newly added rating
 	 */
 	public Rating addRating( Rating r ) {
-		ratings.add(r);
-		Set<Rating> userRatings = ratingsPerUser.get(r.user);
-		if (userRatings == null) {
-			userRatings = new HashSet<Rating>();
+		if (table.add(r.user, r.item, r.rating) >= 0) {
+			countRating(r);
+		}
+		if (!ratingsPerUser.containsKey(r.user)) {
+			ratingsPerUser.put(r.user, new UserView(r.user));
 		}
-		ratingsPerUser.put(r.user, userRatings);
-		userRatings.add(r);
 		users.add(r.user);
 		items.add(r.item);
 		averagesDirty = true;
@@ -135,20 +148,16 @@ public class DataModel {
 	 * @return the average or -1 in case we have no ratings.
 	 */
 	public float getUserAverageRating(Integer user) {
-		if (this.userAverageRatings == null) {
-			userAverageRatings = new HashMap<Integer, Float>();
-			userAverageRatings = Utilities101.getUserAverageRatings(this.ratings);
-		}
-		Float avg = userAverageRatings.get(user);
-		if (avg != null) {
-			return avg;
+		float avg = userStatistics.getMean(user);
+		if (Float.isNaN(avg)) {
+			return -1;
 		}
-		return -1;
+		return avg;
 	}
 
 	
 	/**
-	 * Returns the set of ratins of a given user
+	 * Returns the set of ratins of a given user (a read-only view)
 	 * @param user the user id
 	 * @return the ratings or null if the user has no ratings
 	 */
@@ -180,20 +189,52 @@ public class DataModel {
 	
 	/**
 	 * The method returns the average ratings of a user of a map of user ids to floats. 
+	 * Synchronized as the averages are computed on first use, possibly by several evaluation threads.
 	 * @return the map of averages
 	 */
-	public Map<Integer, Float> getUserAverageRatings() {
-		if (this.userAverageRatings == null) {
-			userAverageRatings = new HashMap<Integer, Float>();
-			userAverageRatings = Utilities101.getUserAverageRatings(this.ratings);
-		}
-		// Check if someone has removed something
-		if (averagesDirty) {
+	public synchronized Map<Integer, Float> getUserAverageRatings() {
+		// Check if someone has changed something
+		if (this.userAverageRatings == null || averagesDirty) {
 			recalculateUserAverages();
 		}
 		return  userAverageRatings;
 	}
 	
+	// =====================================================================================
+
+	/**
+	 * The running statistics of the ratings per user (count, mean and variance in constant time).
+	 * The statistics are updated when ratings are added, removed or changed through the data model.
+	 * @return the user statistics
+	 */
+	public RatingStatistics getUserStatistics() {
+		return userStatistics;
+	}
+
+	/**
+	 * The running statistics of the ratings per item
+	 * @return the item statistics
+	 */
+	public RatingStatistics getItemStatistics() {
+		return itemStatistics;
+	}
+
+	/**
+	 * Counts a new rating in the statistics
+	 */
+	void countRating(Rating r) {
+		userStatistics.add(r.user, r.rating);
+		itemStatistics.add(r.item, r.rating);
+	}
+
+	/**
+	 * Removes a rating from the statistics
+	 */
+	void uncountRating(int user, int item, byte value) {
+		userStatistics.remove(user, value);
+		itemStatistics.remove(item, value);
+	}
+
 
 	// =====================================================================================
 
@@ -211,14 +252,16 @@ public class DataModel {
 	 * @param dm
 	 */
 	public DataModel(DataModel dm) {
-		// Copy things
-		this.ratings = new HashSet<Rating>(dm.getRatings());
+		// Copy things, the copy of the table shares the arrays of the store
+		this.table = dm.copyTable();
 		this.ratingsPerUser = new HashMap<Integer, Set<Rating>>();
 		for (Integer i : dm.ratingsPerUser.keySet()) {
-			this.ratingsPerUser.put(i, new HashSet<Rating>(dm.ratingsPerUser.get(i)));
+			this.ratingsPerUser.put(i, new UserView(i));
 		}
 		this.users = new HashSet<Integer>(dm.users);
 		this.items = new HashSet<Integer>(dm.items);
+		this.userStatistics = new RatingStatistics(dm.userStatistics);
+		this.itemStatistics = new RatingStatistics(dm.itemStatistics);
 		// This should not be a pointer?
 		this.extraInformation = new HashMap<Object, Object>(dm.extraInformation);
 		this.minRatingValue = dm.minRatingValue;
@@ -230,6 +273,161 @@ public class DataModel {
 		}
 	}
 
+	// =====================================================================================
+
+	/**
+	 * Returns an independent copy of the rating table for the copy constructor
+	 * @return the table
+	 */
+	RatingTable copyTable() {
+		return table.copy();
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Bulk insert of ratings given as parallel arrays, e.g., by a data loader. Faster than
+	 * calling addRating() for each rating as the ratings of an empty model are stored directly
+	 * in a new rating store. As in addRating(), a rating for an already rated (user, item) pair
+	 * is ignored. The arrays are overwritten.
+	 * @param users the user ids
+	 * @param items the item ids
+	 * @param values the rating values
+	 * @param n the number of valid entries in the arrays
+	 * @return the number of added ratings
+	 */
+	public int addRatings(int[] users, int[] items, byte[] values, int n) {
+		return addRatings(users, items, values, null, n);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Bulk insert of ratings with timestamps (see addRatings(int[], int[], byte[], int))
+	 * The arrays are overwritten.
+	 * @param users the user ids
+	 * @param items the item ids
+	 * @param values the rating values
+	 * @param timestamps the timestamps or null
+	 * @param n the number of valid entries in the arrays
+	 * @return the number of added ratings
+	 */
+	public int addRatings(int[] users, int[] items, byte[] values, long[] timestamps, int n) {
+		// the ratings of an empty model are compacted in the arrays, the index only finds the duplicates
+		boolean empty = table.size() == 0;
+		RatingIndex seen = empty ? new RatingIndex(n) : table.index;
+		int added = 0;
+		int lastUser = 0;
+		for (int k = 0; k < n; k++) {
+			int user = users[k];
+			int item = items[k];
+			if (seen.get(user, item) >= 0) {
+				continue;
+			}
+			if (empty) {
+				seen.put(user, item, added);
+				users[added] = user;
+				items[added] = item;
+				values[added] = values[k];
+				if (timestamps != null) {
+					timestamps[added] = timestamps[k];
+				}
+			}
+			else {
+				int position = table.add(user, item, values[k]);
+				if (timestamps != null) {
+					table.setTimestamp(user, item, position, timestamps[k]);
+				}
+			}
+			userStatistics.add(user, values[k]);
+			itemStatistics.add(item, values[k]);
+			// rating files are usually ordered by user
+			if (added == 0 || user != lastUser) {
+				if (!ratingsPerUser.containsKey(user)) {
+					ratingsPerUser.put(user, new UserView(user));
+					this.users.add(user);
+				}
+				lastUser = user;
+			}
+			this.items.add(item);
+			added++;
+		}
+		if (added > 0) {
+			if (empty) {
+				table = new RatingTable(new RatingStore(users, items, values, timestamps, added));
+			}
+			averagesDirty = true;
+		}
+		return added;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Changes the value of an existing rating, e.g., when the data is binarized. The Rating
+	 * objects returned by the rating sets are copies, changing them has no effect.
+	 * @param user the user ID
+	 * @param item the item ID
+	 * @param value the new value
+	 * @return false if there is no such rating
+	 */
+	public boolean setRatingValue(int user, int item, byte value) {
+		int position = table.find(user, item);
+		if (position < 0) {
+			return false;
+		}
+		byte oldValue = table.getValue(position);
+		if (oldValue == value) {
+			return true;
+		}
+		userStatistics.update(user, oldValue, value);
+		itemStatistics.update(item, oldValue, value);
+		table.setValue(user, item, position, value);
+		averagesDirty = true;
+		return true;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Stores a rating with the time when it was given
+	 * @param user the user
+	 * @param item the rated item
+	 * @param value the value. No decimals allowed.
+	 * @param timestamp the timestamp, e.g., in seconds since 1970
+	 * @return the newly added rating
+	 */
+	public Rating addRating(int user, int item, byte value, long timestamp) {
+		Rating r = addRating(user, item, value);
+		table.setTimestamp(user, item, table.find(user, item), timestamp);
+		return r;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the timestamp of a rating
+	 * @param user the user ID
+	 * @param item the item ID
+	 * @return the timestamp or RatingIndex.NO_TIMESTAMP if the rating or its timestamp is unknown
+	 */
+	public long getTimestamp(int user, int item) {
+		RatingTable t = table;
+		int position = t.find(user, item);
+		if (position < 0) {
+			return RatingIndex.NO_TIMESTAMP;
+		}
+		return t.getTimestamp(position);
+	}
+
+	/**
+	 * Tells if the ratings of the data model have timestamps
+	 * @return true if timestamps were added
+	 */
+	public boolean hasTimestamps() {
+		return table.hasTimestamps();
+	}
+
 	// =====================================================================================
 	
 	/**
@@ -245,23 +443,70 @@ public class DataModel {
 	// =====================================================================================
 
 	/**
-	 * Retrieve a rating for a given user-item pair. 
+	 * Retrieve a rating for a given user-item pair. Uses the hash index, i.e., takes
+	 * constant time independent of the size of the user profile.
 	 * @param user the user ID
 	 * @param item the item ID
 	 * @return the rating value or -1 in case there is no rating 
 	 */
 	public byte getRating(int user, int item) {
-		Set<Rating> userRatings = ratingsPerUser.get(user);
-		byte result = -1;
-		if (userRatings != null) {
-			// implementation to be improved
-			for (Rating r : userRatings) {
-				if (r.user == user && r.item == item) {
-					return r.rating;
-				}
+		RatingTable t = table;
+		int position = t.find(user, item);
+		if (position < 0) {
+			return -1;
+		}
+		return t.getValue(position);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the compact columnar storage of the ratings (see {@link RatingStore}). After the
+	 * ratings were changed through addRating(), removeRating(), setRatingValue() or
+	 * removeUserWithRatings(), the changes are merged into a new store on the next call.
+	 * @return the rating store
+	 */
+	public RatingStore getRatingStore() {
+		RatingTable t = table;
+		if (!t.isCompact()) {
+			t = compact();
+		}
+		return t.store;
+	}
+
+	/**
+	 * Merges the changes of the rating table into a new store
+	 * @return the compacted table
+	 */
+	synchronized RatingTable compact() {
+		if (!table.isCompact()) {
+			table = table.compact();
+		}
+		return table;
+	}
+
+	/**
+	 * Builds a store from the rating set and the timestamps, for the subclasses which
+	 * provide their own rating views
+	 * @return the new store
+	 */
+	RatingStore buildRatingStore() {
+		int n = ratings.size();
+		int[] users = new int[n];
+		int[] items = new int[n];
+		byte[] values = new byte[n];
+		long[] timestamps = hasTimestamps() ? new long[n] : null;
+		int k = 0;
+		for (Rating r : ratings) {
+			users[k] = r.user;
+			items[k] = r.item;
+			values[k] = r.rating;
+			if (timestamps != null) {
+				timestamps[k] = getTimestamp(r.user, r.item);
 			}
+			k++;
 		}
-		return result;
+		return new RatingStore(users, items, values, timestamps, k);
 	}
 
 	// =====================================================================================
@@ -317,7 +562,7 @@ public class DataModel {
 	// =====================================================================================
 
 	/**
-	 * Returns a handle to the list of ratings
+	 * Returns a handle to the list of ratings (a read-only view)
 	 * @return the ratings
 	 */
 	public Set<Rating> getRatings() {
@@ -359,18 +604,11 @@ public class DataModel {
 	 * @param r
 	 */
 	public void removeRating(Rating r) {
-		// Remove from my ratings
-		ratings.remove(r);
-		// Remove from the map
-		Set<Rating> userRatings = ratingsPerUser.get(r.user);
-		if (userRatings != null) {
-			for (Rating rating : userRatings) {
-				if (rating.item == r.item) {
-					userRatings.remove(r);
-					averagesDirty = true;
-					return;
-				}
-			}
+		// the stored value was counted, r may have a different one
+		int position = table.remove(r.user, r.item);
+		if (position >= 0) {
+			uncountRating(r.user, r.item, table.getValue(position));
+			averagesDirty = true;
 		}
 	}
 
@@ -384,8 +622,10 @@ public class DataModel {
 		Set<Rating> ratingsOfUser = this.ratingsPerUser.get(user);
 		if (ratingsOfUser != null) {
 			for (Rating r : ratingsOfUser) {
-				ratings.remove(r);
+				int position = table.remove(r.user, r.item);
+				uncountRating(r.user, r.item, table.getValue(position));
 			}
+			averagesDirty = true;
 		}
 		this.ratingsPerUser.remove(user);
 		this.users.remove(user);
@@ -407,10 +647,10 @@ public class DataModel {
 	// =====================================================================================
 
 	/**
-	 * A method to recalculate the average ratings
+	 * A method to recalculate the map of average ratings from the user statistics
 	 */
-	public void recalculateUserAverages() {
-		this.userAverageRatings = Utilities101.getUserAverageRatings(this.ratings);
+	public synchronized void recalculateUserAverages() {
+		this.userAverageRatings = userStatistics.getMeans();
 		averagesDirty = false;
 	}
 	
@@ -459,9 +699,122 @@ public class DataModel {
 	public void setMinRatingValue(int minRatingValue) {
 		this.minRatingValue = minRatingValue;
 	}
-	
-	
 
-	
-	
+	// =====================================================================================
+
+	/**
+	 * Returns the rating table with all added ratings in the store, the removed ratings
+	 * are marked in the table
+	 */
+	RatingTable readTable() {
+		RatingTable t = table;
+		if (t.hasAppended()) {
+			t = compact();
+		}
+		return t;
+	}
+
+	/**
+	 * Iterates over the rows of a range of users of the store of a table. The ratings which were
+	 * removed from the table are skipped.
+	 */
+	static class RowIterator implements Iterator<Rating> {
+
+		RatingTable table;
+		int user;
+		int next;
+		int to;
+
+		RowIterator(RatingTable table, int fromUser, int toUser) {
+			this.table = table;
+			this.user = fromUser;
+			int[] offsets = table.store.getUserOffsets();
+			this.to = offsets[toUser];
+			this.next = table.removed.nextClearBit(offsets[fromUser]);
+		}
+
+		public boolean hasNext() {
+			return next < to;
+		}
+
+		public Rating next() {
+			if (next >= to) {
+				throw new NoSuchElementException();
+			}
+			RatingStore store = table.store;
+			while (next >= store.userOffsets[user + 1]) {
+				user++;
+			}
+			Rating r = new Rating(store.userIds[user], store.itemIds[store.userItems[next]], store.userValues[next]);
+			next = table.removed.nextClearBit(next + 1);
+			return r;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * All ratings of the data model
+	 */
+	class TableView extends AbstractSet<Rating> {
+
+		@Override
+		public int size() {
+			return table.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Rating)) {
+				return false;
+			}
+			Rating r = (Rating) o;
+			return table.find(r.user, r.item) >= 0;
+		}
+
+		@Override
+		public Iterator<Rating> iterator() {
+			RatingTable t = readTable();
+			return new RowIterator(t, 0, t.store.getNumberOfUsers());
+		}
+	}
+
+	/**
+	 * The ratings of one user
+	 */
+	class UserView extends AbstractSet<Rating> {
+
+		int user;
+
+		UserView(int user) {
+			this.user = user;
+		}
+
+		@Override
+		public int size() {
+			return userStatistics.getCount(user);
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Rating)) {
+				return false;
+			}
+			Rating r = (Rating) o;
+			return r.user == user && table.find(r.user, r.item) >= 0;
+		}
+
+		@Override
+		public Iterator<Rating> iterator() {
+			RatingTable t = readTable();
+			int u = t.store.userIndex(user);
+			if (u < 0) {
+				return new RowIterator(t, 0, 0);
+			}
+			return new RowIterator(t, u, u + 1);
+		}
+	}
+
 }
@@ -17,6 +17,23 @@ public abstract class DataSplitter {
 
 	// A method that splits the dataset for cross validation into n bins
 	public abstract List<Set<Rating>> splitData (DataModel dataModel) throws Exception;
+	
+	/**
+	 * Assigns each rating of the data model to a fold (see FoldAssignment). Ratings which are in no 
+	 * fold are always part of the training data. The default implementation adapts the result of 
+	 * splitData() and getSpecialTestSplits(); splitters should override it to avoid the rating sets.
+	 * @param dataModel the data model
+	 * @return the fold assignment, one fold per validation round
+	 * @throws Exception
+	 */
+	public FoldAssignment assignFolds(DataModel dataModel) throws Exception {
+		List<Set<Rating>> splits = splitData(dataModel);
+		if (getSpecialTestSplits() != null) {
+			return FoldAssignment.fromSplits(dataModel, getSpecialTestSplits());
+		}
+		return FoldAssignment.fromSplits(dataModel, splits);
+	}
+	
 	// Use a global split and not a per-user split; could be set to false in later experiments as default
 	protected boolean globalRandomSplit = false;
 	
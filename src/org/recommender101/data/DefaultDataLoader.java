@@ -3,15 +3,21 @@ package org.recommender101.data;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.recommender101.eval.impl.Recommender101Impl;
 import org.recommender101.tools.Debug;
 import org.recommender101.tools.Utilities101;
 
 /**
  * A default data loader capable of loading movielens files
  * Format: user<tab>item<tab>rating<tab>timestamp
+ * Files ending with .gz or .zip are decompressed while they are parsed (see zipEntry).
+ * With parallelLoading and for compressed files, the constraints (sampling, density, min ratings,
+ * binarization) are applied while parsing, see {@link StreamingConstraints}.
  * @author DJ
  *
  */
@@ -33,6 +39,15 @@ public class DefaultDataLoader  {
 	// Should we remove 0 -valued ratings?
 	public boolean useUnaryRatings = true;  // changed
 	
+	// Should we use the memory-mapped parallel parser (see RatingFileParser)?
+	protected boolean parallelLoading = false;
+	
+	// The rating file in a zip archive, null for the first file
+	protected String zipEntry = null;
+	
+	// The seed of the user sampling and the density while parsing, null for a random seed
+	protected Long seed = null;
+	
 	/**
 	 * An empty constructor
 	 */
@@ -72,6 +87,11 @@ public class DefaultDataLoader  {
 	 * The method can be overwritten in a subclass
 	 */
 	public void loadData(DataModel dm) throws Exception {
+		if (parallelLoading || Utilities101.isCompressedFile(filename)) {
+			// the constraints are applied while parsing
+			loadDataParallel(dm);
+			return;
+		}
 		int counter = 0;
 		// Read the file line by line and add the ratings to the data model.
 		BufferedReader reader = new BufferedReader(new FileReader(filename));
@@ -111,6 +131,53 @@ public class DefaultDataLoader  {
 	
 	// =====================================================================================
 
+	/**
+	 * Loads the ratings with the memory-mapped parser, which splits the file into chunks
+	 * and parses them in parallel. Compressed files are parsed while they are decompressed.
+	 * The constraints are applied to the ratings of each chunk before the retained ratings
+	 * are added to the data model.
+	 * Accepts "::", tab and comma separated files.
+	 */
+	protected void loadDataParallel(DataModel dm) throws Exception {
+		RatingFileParser parser = new RatingFileParser(Recommender101Impl.NUM_OF_THREADS);
+		if (this.binarizeLevel > 0) {
+			Debug.log("Binarizing at level: " + this.binarizeLevel);
+		}
+		StreamingConstraints constraints = new StreamingConstraints(dm, this);
+		int counter = parseRatings(parser, constraints);
+		constraints.finish();
+		if (maxLines != -1 && counter >= maxLines) {
+			System.out.println("DataLoader: Stopping after " + (counter)  + " lines for debug");
+		}
+		Debug.log("DefaultDataLoader:loadData: Loaded " + counter + " ratings");
+		Debug.log("DefaultDataLoader:loadData: " + dm.getUsers().size() + " users and " + dm.getItems().size() + " items.");
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Parses the rating file and passes the ratings to the handler chunk by chunk. Compressed
+	 * files are decompressed in memory, i.e., they are not extracted to disk.
+	 * @param parser the parser
+	 * @param handler receives the ratings
+	 * @return the number of parsed ratings
+	 * @throws IOException
+	 */
+	protected int parseRatings(RatingFileParser parser, RatingFileParser.ChunkHandler handler) throws IOException {
+		if (!Utilities101.isCompressedFile(filename)) {
+			return parser.parse(filename, maxLines, handler);
+		}
+		InputStream in = Utilities101.openCompressedFile(filename, zipEntry);
+		try {
+			return parser.parse(in, maxLines, handler);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	// =====================================================================================
+
 	
 	/**
 	 * Sets the file name
@@ -157,6 +224,15 @@ public class DefaultDataLoader  {
 		this.density = Double.parseDouble(d);
 	}
 	
+	/**
+	 * Sets the seed of the user sampling and the density of the parallel loading, so that
+	 * the same ratings are retained in every run
+	 * @param s the seed
+	 */
+	public void setSeed(String s) {
+		this.seed = Long.parseLong(s);
+	}
+	
 	/**
 	 * Set the binarization method
 	 * @param b
@@ -171,31 +247,62 @@ public class DefaultDataLoader  {
 	 */
 	public void binarize(DataModel dm) throws Exception {
 		
-		Set<Rating> ratingsCopy = new HashSet<Rating>(dm.getRatings());
+		// Changing the values does not change the set, only the removed ratings are collected
+		List<Rating> ratingsToRemove = new ArrayList<Rating>();
 		
 		// Go through the ratings
-		for (Rating r : ratingsCopy) {
-			// Option one - every rating is relevant
-			
-			if (r.rating >= this.binarizeLevel) {
-				r.rating = 1;
+		for (Rating r : dm.getRatings()) {
+			int value = binarizeValue(r.rating);
+			// Remove rating in case we only have positive feedback
+			if (value < 0) {
+				ratingsToRemove.add(r);
 			}
 			else {
-				// Remove rating in case we only have positive feedback
-				if (this.useUnaryRatings) {
-					dm.removeRating(r);
-				}
-				// Otherwise, set it to 0
-				else {
-					r.rating = 0;
-				}
+				dm.setRatingValue(r.user, r.item, (byte) value);
 			}
 		}
+		for (Rating r : ratingsToRemove) {
+			dm.removeRating(r);
+		}
 		// Recalculate things
 		dm.recalculateUserAverages();
 //		System.out.println("Binarization done (" + dm.getRatings().size() + " ratings)");
 	}
 	
+	/**
+	 * Binarizes one rating value
+	 * @param value the original value
+	 * @return 1 for relevant items, 0 or -1 (the rating is removed, unary ratings) for the others,
+	 * the original value if the data is not binarized
+	 */
+	public int binarizeValue(int value) {
+		if (this.binarizeLevel <= 0) {
+			return value;
+		}
+		// Option one - every rating is relevant
+		if (value >= this.binarizeLevel) {
+			return 1;
+		}
+		// Otherwise, set it to 0
+		return this.useUnaryRatings ? -1 : 0;
+	}
+	
+	/**
+	 * Use the memory-mapped, multi-threaded parser for loading (default: false)
+	 * @param b
+	 */
+	public void setParallelLoading(String b) {
+		this.parallelLoading = Boolean.parseBoolean(b);
+	}
+	
+	/**
+	 * Sets the name of the rating file in a zip archive (fully qualified name including subdirectories)
+	 * @param name the name of the file in the archive
+	 */
+	public void setZipEntry(String name) {
+		this.zipEntry = name;
+	}
+	
 	/**
 	 * Sould we use unary ratings? (If yes, we delete all 0 ratings)
 	 * @param b
@@ -2,8 +2,7 @@
 package org.recommender101.data;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
@@ -53,46 +52,63 @@ public class DefaultDataSplitter extends DataSplitter {
 	 */
 	public List<Set<Rating>> splitData (DataModel dataModel) throws Exception {
 		
-		List<Set<Rating>> result = new ArrayList<Set<Rating>> ();
+		FoldAssignment folds = assignFolds(dataModel);
 		// If only a subset of users and items should be considered in the test set
 		if (this.minRatingsPerUser == -1) {
 			// Default behavior
-			result = createNFolds(nbFolds, dataModel);
-			return result;
+			return folds.toSplits();
 		}
 		else {
-			// create a copy of the data model and remove things. Protocol is slightly different
-			// test data is only taken from the condensed data set.
-
-			// Step 1) Condense the data
-			DataModel copiedDM = new DataModel(dataModel);
-			System.out.println("Copied the data model..");
-			DataDensityTool.applyConstraints(this.minRatingsPerUser, this.minRatingsPerItem, copiedDM);
-			Debug.log("Reduced the data model to " + this.minRatingsPerUser + "/" + this.minRatingsPerItem);
-			Debug.log(copiedDM.getRatings().size() + " ratings remain");
-			if (copiedDM.getRatings().size() == 0) {
-				System.err.println("[FATAL] No more test data - exiting");
-				System.exit(1);
-			}
+			// Test data is only taken from the condensed data set, remember the folds for later use
+			List<Set<Rating>> result = new ArrayList<Set<Rating>> ();
+			smallSplits = folds.toSplits();
 			
-			
-			// Step 2) Split the condensed data into n folds and remember them for later user
-			smallSplits = new ArrayList<Set<Rating>> ();
-			smallSplits = createNFolds(nbFolds, copiedDM);
-			
-			// Step 3) Return only one large split with all the data we have
+			// Return only one large split with all the data we have
 			// must be handled by cross validation runner later on
 			result.add(dataModel.getRatings());
 			
 			// use implicit ratings in the training set
-			if (copiedDM.getImplicitRatings().size()>0){
-				result.get(0).addAll(copiedDM.getImplicitRatings());
+			if (dataModel.getImplicitRatings().size()>0){
+				result.get(0).addAll(dataModel.getImplicitRatings());
 			}
 			
 			return result;
 		}
 	} 
 	
+	// =====================================================================================
+
+	/**
+	 * Assigns the ratings randomly to n folds. If a min-ratings constraint for the test set is
+	 * given, only the ratings of the condensed data set are assigned to folds, the other ratings
+	 * are only used for training.
+	 * @param dataModel the data model containing the original data.
+	 * @return the fold assignment
+	 */
+	@Override
+	public FoldAssignment assignFolds(DataModel dataModel) throws Exception {
+		FoldAssignment folds = new FoldAssignment(dataModel, nbFolds);
+		if (this.minRatingsPerUser == -1) {
+			// Default behavior
+			assignRandomly(folds, null);
+			return folds;
+		}
+		// Step 1) Condense the data (the positions of the store are the positions of the folds)
+		BitSet condensed = DataDensityTool.computeCore(folds.getRatingStore(), this.minRatingsPerUser, this.minRatingsPerItem);
+		Debug.log("Reduced the data model to " + this.minRatingsPerUser + "/" + this.minRatingsPerItem);
+		Debug.log(condensed.cardinality() + " ratings remain");
+		if (condensed.isEmpty()) {
+			System.err.println("[FATAL] No more test data - exiting");
+			System.exit(1);
+		}
+		
+		// Step 2) Split the condensed data into n folds
+		assignRandomly(folds, condensed);
+		return folds;
+	}
+	
+	// =====================================================================================
+
 	/**
 	 * A method that splits the data in n folds
 	 * @param theratings a list of ratings
@@ -100,49 +116,81 @@ public class DefaultDataSplitter extends DataSplitter {
 	 * @return
 	 */
 	protected List<Set<Rating>> createNFolds(int nbFolds, DataModel dataModel) {
-		List<Set<Rating>> result = new ArrayList<Set<Rating>>();
-		// Create the empty lists
-		for (int i=0;i<nbFolds;i++) {
-			result.add(new HashSet<Rating>());
-		}
-		
+		FoldAssignment folds = new FoldAssignment(dataModel, nbFolds);
+		assignRandomly(folds, null);
+		return folds.toSplits();
+	}
+	
+	// =====================================================================================
+
+	/**
+	 * Distributes ratings randomly to the folds
+	 * @param folds the assignment
+	 * @param eligible the positions of the ratings to distribute, null for all ratings
+	 */
+	protected void assignRandomly(FoldAssignment folds, BitSet eligible) {
+		int nbFolds = folds.getNbFolds();
+		Random random = new Random();
 		// Split data randomly across users
 		if (this.globalRandomSplit) {
-			// Use an array to shuffle things
-			List<Rating> ratingsCopy = new ArrayList<Rating>(dataModel.getRatings());
+			int[] positions = eligiblePositions(0, folds.size(), eligible);
 			// Shuffle the ratings first
-			Collections.shuffle(ratingsCopy);
+			shuffle(positions, random);
 			// distribute the ratings round robin to the bins
-			int i = 0;
-			for (Rating r : ratingsCopy)  {
-				result.get(i%nbFolds).add(r);
-				i++;
+			for (int i = 0; i < positions.length; i++) {
+				folds.setFold(positions[i], i % nbFolds);
 			}
-			return result;
 		}
 		// Distribute things per user
 		else {
-			Random random = new Random();
-			// Get the ratings each user
-			for (Integer user : dataModel.getUsers()){
-				// Get a copy to shuffle
-				List<Rating> ratingsCopy = new ArrayList<Rating> (dataModel.getRatingsOfUser(user));
-				Collections.shuffle(ratingsCopy);
+			int[] offsets = folds.getRatingStore().getUserOffsets();
+			for (int u = 0; u < offsets.length - 1; u++) {
+				int[] positions = eligiblePositions(offsets[u], offsets[u + 1], eligible);
+				shuffle(positions, random);
 				// distribute to the bins
 				// do not start with 0 all the time as this leads to unbalanced bins
 				int i = random.nextInt(nbFolds);
-				for (Rating r : ratingsCopy) {
-					result.get(i%nbFolds).add(r);
+				for (int position : positions) {
+					folds.setFold(position, i % nbFolds);
 					i++;
 				}
 			}
-//			// Display the size of the bins
-//			for (Set<Rating> bin : result) {
-//				System.out.println("Bin size: " + bin.size());
-//			}
+		}
+	}
+	
+	/**
+	 * Returns the eligible positions in a range
+	 */
+	static int[] eligiblePositions(int from, int to, BitSet eligible) {
+		if (eligible == null) {
+			int[] result = new int[to - from];
+			for (int k = from; k < to; k++) {
+				result[k - from] = k;
+			}
 			return result;
 		}
-
+		int count = 0;
+		for (int k = eligible.nextSetBit(from); k >= 0 && k < to; k = eligible.nextSetBit(k + 1)) {
+			count++;
+		}
+		int[] result = new int[count];
+		int i = 0;
+		for (int k = eligible.nextSetBit(from); k >= 0 && k < to; k = eligible.nextSetBit(k + 1)) {
+			result[i++] = k;
+		}
+		return result;
+	}
+	
+	/**
+	 * Fisher-Yates shuffle of an array
+	 */
+	static void shuffle(int[] values, Random random) {
+		for (int i = values.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = values[i];
+			values[i] = values[j];
+			values[j] = tmp;
+		}
 	}
 	
 	public List<Set<Rating>>getSpecialTestSplits() {
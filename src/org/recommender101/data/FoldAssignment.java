@@ -0,0 +1,204 @@
+/** DJ **/
+package org.recommender101.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Assigns the ratings of a data model to folds. The positions of the ratings are the positions
+ * in the rating store of the model (ordered by user id and item id, see {@link RatingStore}) and
+ * the fold of each rating is kept in one byte array. Training and test data models for a fold are
+ * views on the store of the original model (see {@link FoldDataModel}), i.e., the ratings are
+ * not copied.
+ *
+ * The original data model must not be changed while the assignment or its views are in use.
+ */
+public class FoldAssignment {
+
+	// The fold of ratings that are in no fold; they always belong to the training data
+	public static final int NO_FOLD = -1;
+
+	// The original data model
+	DataModel dataModel;
+
+	// The ratings of the data model
+	RatingStore store;
+
+	// (user, item) -> position in the store
+	RatingIndex index;
+
+	// The fold of each rating
+	byte[] foldOfRating;
+
+	// The number of folds
+	int nbFolds;
+
+	// =====================================================================================
+
+	/**
+	 * Creates an assignment where all ratings are in no fold
+	 * @param dm the data model
+	 * @param nbFolds the number of folds (at most 127)
+	 */
+	public FoldAssignment(DataModel dm, int nbFolds) {
+		if (nbFolds > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException("At most " + Byte.MAX_VALUE + " folds are supported");
+		}
+		this.dataModel = dm;
+		this.nbFolds = nbFolds;
+		this.store = dm.getRatingStore();
+		// the index of the model has the positions of its store, other models get their own
+		RatingTable table = dm.table;
+		this.index = (table.store == store) ? table.index : new RatingTable(store).index;
+		foldOfRating = new byte[store.getNumberOfRatings()];
+		Arrays.fill(foldOfRating, (byte) NO_FOLD);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Creates an assignment from a list of rating sets, e.g., the result of a data splitter.
+	 * Ratings of set i are assigned to fold i.
+	 * @param dm the data model
+	 * @param splits the sets of ratings
+	 * @return the assignment
+	 */
+	public static FoldAssignment fromSplits(DataModel dm, List<Set<Rating>> splits) {
+		FoldAssignment result = new FoldAssignment(dm, splits.size());
+		for (int fold = 0; fold < splits.size(); fold++) {
+			for (Rating r : splits.get(fold)) {
+				int position = result.getPosition(r.user, r.item);
+				if (position >= 0) {
+					result.foldOfRating[position] = (byte) fold;
+				}
+			}
+		}
+		return result;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the folds as sets of ratings (the format of DataSplitter.splitData())
+	 * @return one set per fold
+	 */
+	public List<Set<Rating>> toSplits() {
+		List<Set<Rating>> result = new ArrayList<Set<Rating>>();
+		int[] sizes = new int[nbFolds];
+		for (byte fold : foldOfRating) {
+			if (fold >= 0) {
+				sizes[fold]++;
+			}
+		}
+		for (int fold = 0; fold < nbFolds; fold++) {
+			result.add(new HashSet<Rating>(Math.max(16, (int) (sizes[fold] / 0.75f) + 1)));
+		}
+		for (int k = 0; k < foldOfRating.length; k++) {
+			if (foldOfRating[k] >= 0) {
+				result.get(foldOfRating[k]).add(getRating(k));
+			}
+		}
+		return result;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the position of a rating in the stable order. A lookup in the hash index of the
+	 * data model, i.e., constant time.
+	 * @param user the user id
+	 * @param item the item id
+	 * @return the position or -1 if the data model has no such rating
+	 */
+	public int getPosition(int user, int item) {
+		int position = index.get(user, item);
+		return position < foldOfRating.length ? position : -1;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the fold of the rating at a position
+	 * @param position the position in the stable order
+	 * @return the fold or NO_FOLD
+	 */
+	public int getFold(int position) {
+		return foldOfRating[position];
+	}
+
+	/**
+	 * Assigns the rating at a position to a fold
+	 * @param position the position in the stable order
+	 * @param fold the fold or NO_FOLD
+	 */
+	public void setFold(int position, int fold) {
+		foldOfRating[position] = (byte) fold;
+	}
+
+	/**
+	 * Returns the rating at a position
+	 * @param position the position in the stable order
+	 * @return a new rating object
+	 */
+	public Rating getRating(int position) {
+		int u = store.userIndexOfPosition(position);
+		return new Rating(store.userId(u), store.itemId(store.userItems[position]), store.userValues[position]);
+	}
+
+	/**
+	 * The number of ratings
+	 * @return the number of ratings
+	 */
+	public int size() {
+		return foldOfRating.length;
+	}
+
+	/**
+	 * The number of folds
+	 * @return the number of folds
+	 */
+	public int getNbFolds() {
+		return nbFolds;
+	}
+
+	/**
+	 * The stable order of the ratings: the ratings of user u (a dense index of the store) are
+	 * at the positions getUserOffsets()[u] to getUserOffsets()[u+1]-1, ordered by item
+	 * @return the rating store
+	 */
+	public RatingStore getRatingStore() {
+		return store;
+	}
+
+	/**
+	 * The underlying data model
+	 * @return the data model
+	 */
+	public DataModel getDataModel() {
+		return dataModel;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns a view containing all ratings which are not in the given fold
+	 * @param fold the test fold
+	 * @return the training data
+	 */
+	public DataModel getTrainingModel(int fold) {
+		return new FoldDataModel(this, fold, false);
+	}
+
+	/**
+	 * Returns a view containing the ratings of the given fold
+	 * @param fold the test fold
+	 * @return the test data
+	 */
+	public DataModel getTestModel(int fold) {
+		return new FoldDataModel(this, fold, true);
+	}
+
+}
@@ -0,0 +1,304 @@
+/** DJ **/
+package org.recommender101.data;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The training or test data of one fold of a {@link FoldAssignment}. The rating sets of the
+ * model are read-only views which filter the rating store of the original model by the fold,
+ * so a fold needs memory for its users but not for its ratings. Like a model created with
+ * DataModel.copyDataModelAndRemoveRatings(), the view keeps all users and items of the original
+ * model, also those without ratings in the fold.
+ *
+ * The first change of the model (addRating(), removeRating(), setRatingValue(), ...) turns it
+ * into an ordinary data model with its own rating storage, so later changes do not affect the
+ * original model or the other folds.
+ */
+public class FoldDataModel extends DataModel {
+
+	// The fold assignment
+	FoldAssignment assignment;
+
+	// The fold
+	int fold;
+
+	// true: the ratings of the fold, false: all other ratings
+	boolean test;
+
+	// Set to true when the views are replaced by copies
+	boolean materialized = false;
+
+	// The ratings of the fold as a store, built on first use
+	RatingStore foldStore;
+
+	// =====================================================================================
+
+	/**
+	 * Creates the view
+	 * @param assignment the fold assignment
+	 * @param fold the fold
+	 * @param test true for the ratings of the fold, false for the other ratings
+	 */
+	FoldDataModel(FoldAssignment assignment, int fold, boolean test) {
+		this.assignment = assignment;
+		this.fold = fold;
+		this.test = test;
+		DataModel dm = assignment.dataModel;
+		RatingStore store = assignment.store;
+		int[] offsets = store.getUserOffsets();
+
+		this.users = Collections.unmodifiableSet(dm.users);
+		this.items = Collections.unmodifiableSet(dm.items);
+		this.ratingsPerUser = new HashMap<Integer, Set<Rating>>();
+		// the statistics of the fold are accumulated in the same pass
+		int[] rowItems = store.getUserItems();
+		int[] itemCounts = new int[store.getNumberOfItems()];
+		long[] itemSums = new long[itemCounts.length];
+		long[] itemSumsOfSquares = new long[itemCounts.length];
+		int total = 0;
+		for (Integer user : dm.ratingsPerUser.keySet()) {
+			int u = store.userIndex(user);
+			if (u < 0) {
+				this.ratingsPerUser.put(user, new RatingView(0, 0, 0));
+				continue;
+			}
+			int count = 0;
+			long sum = 0;
+			long sumOfSquares = 0;
+			for (int k = offsets[u]; k < offsets[u + 1]; k++) {
+				if (inFold(k)) {
+					int value = store.userValues[k];
+					count++;
+					sum += value;
+					sumOfSquares += value * value;
+					itemCounts[rowItems[k]]++;
+					itemSums[rowItems[k]] += value;
+					itemSumsOfSquares[rowItems[k]] += value * value;
+				}
+			}
+			this.ratingsPerUser.put(user, new RatingView(offsets[u], offsets[u + 1], count));
+			if (count > 0) {
+				this.userStatistics.set(user, count, sum, sumOfSquares);
+			}
+			total += count;
+		}
+		for (int i = 0; i < itemCounts.length; i++) {
+			if (itemCounts[i] > 0) {
+				this.itemStatistics.set(store.itemId(i), itemCounts[i], itemSums[i], itemSumsOfSquares[i]);
+			}
+		}
+		this.ratings = new RatingView(0, assignment.size(), total);
+
+		this.extraInformation = new HashMap<Object, Object>(dm.extraInformation);
+		this.minRatingValue = dm.minRatingValue;
+		this.maxRatingValue = dm.maxRatingValue;
+		this.implicitRatings = dm.getImplicitRatings();
+		this.implicitRatingsPerUser = new HashMap<Integer, Set<Rating>>();
+		for (Integer i : dm.implicitRatingsPerUser.keySet()) {
+			this.implicitRatingsPerUser.put(i, new HashSet<Rating>(dm.implicitRatingsPerUser.get(i)));
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Tells if the rating at a position of the assignment belongs to this model
+	 */
+	boolean inFold(int position) {
+		return (assignment.foldOfRating[position] == fold) == test;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Replaces the views by a rating table of the model, so a change of a rating (e.g.,
+	 * setRatingValue()) does not change the original model, its statistics or the other folds.
+	 * The statistics of the fold are kept.
+	 */
+	synchronized void materialize() {
+		if (materialized) {
+			return;
+		}
+		this.table = new RatingTable(getRatingStore());
+		this.ratings = new TableView();
+		HashMap<Integer, Set<Rating>> views = new HashMap<Integer, Set<Rating>>();
+		for (Integer user : this.ratingsPerUser.keySet()) {
+			views.put(user, new UserView(user));
+		}
+		this.ratingsPerUser = views;
+		this.users = new HashSet<Integer>(this.users);
+		this.items = new HashSet<Integer>(this.items);
+		this.foldStore = null;
+		materialized = true;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Builds the store of the ratings of the fold on first use
+	 */
+	@Override
+	public synchronized RatingStore getRatingStore() {
+		if (materialized) {
+			return super.getRatingStore();
+		}
+		if (foldStore == null) {
+			foldStore = buildRatingStore();
+		}
+		return foldStore;
+	}
+
+	@Override
+	synchronized RatingTable copyTable() {
+		if (materialized) {
+			return super.copyTable();
+		}
+		return new RatingTable(getRatingStore());
+	}
+
+	// =====================================================================================
+
+	@Override
+	public byte getRating(int user, int item) {
+		if (materialized) {
+			return super.getRating(user, item);
+		}
+		int position = assignment.getPosition(user, item);
+		if (position < 0 || !inFold(position)) {
+			return -1;
+		}
+		return assignment.store.userValues[position];
+	}
+
+	@Override
+	public long getTimestamp(int user, int item) {
+		if (materialized) {
+			return super.getTimestamp(user, item);
+		}
+		int position = assignment.getPosition(user, item);
+		if (position < 0 || !inFold(position)) {
+			return RatingIndex.NO_TIMESTAMP;
+		}
+		return assignment.store.userTimestamps == null ? RatingIndex.NO_TIMESTAMP : assignment.store.userTimestamps[position];
+	}
+
+	@Override
+	public boolean hasTimestamps() {
+		if (materialized) {
+			return super.hasTimestamps();
+		}
+		return assignment.store.userTimestamps != null;
+	}
+
+	@Override
+	public Rating addRating(int user, int item, byte value) {
+		materialize();
+		return super.addRating(user, item, value);
+	}
+
+	@Override
+	public Rating addRating(Rating r) {
+		materialize();
+		return super.addRating(r);
+	}
+
+	@Override
+	public int addRatings(int[] users, int[] items, byte[] values, long[] timestamps, int n) {
+		materialize();
+		return super.addRatings(users, items, values, timestamps, n);
+	}
+
+	@Override
+	public boolean setRatingValue(int user, int item, byte value) {
+		materialize();
+		return super.setRatingValue(user, item, value);
+	}
+
+	@Override
+	public void removeRating(Rating r) {
+		materialize();
+		super.removeRating(r);
+	}
+
+	@Override
+	public void removeUserWithRatings(Integer user) {
+		materialize();
+		super.removeUserWithRatings(user);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * The ratings of a range of positions of the assignment which belong to this model
+	 */
+	class RatingView extends AbstractSet<Rating> {
+
+		int from;
+		int to;
+		int size;
+
+		RatingView(int from, int to, int size) {
+			this.from = from;
+			this.to = to;
+			this.size = size;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Rating)) {
+				return false;
+			}
+			Rating r = (Rating) o;
+			int position = assignment.getPosition(r.user, r.item);
+			return position >= from && position < to && inFold(position);
+		}
+
+		@Override
+		public Iterator<Rating> iterator() {
+			return new Iterator<Rating>() {
+				RatingStore store = assignment.store;
+				int next = advance(from);
+				int user = next < to ? store.userIndexOfPosition(next) : 0;
+
+				int advance(int position) {
+					while (position < to && !inFold(position)) {
+						position++;
+					}
+					return position;
+				}
+
+				public boolean hasNext() {
+					return next < to;
+				}
+
+				public Rating next() {
+					if (next >= to) {
+						throw new NoSuchElementException();
+					}
+					while (next >= store.userOffsets[user + 1]) {
+						user++;
+					}
+					Rating r = new Rating(store.userIds[user], store.itemIds[store.userItems[next]], store.userValues[next]);
+					next = advance(next + 1);
+					return r;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+}
@@ -0,0 +1,427 @@
+/** DJ **/
+package org.recommender101.data;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only data model for data sets which do not fit into the heap. The ratings are kept in
+ * a memory-mapped file as one run per user, ordered by item, with the item indices
+ * delta-encoded as variable-length integers. Only the id dictionaries, the run offsets and the
+ * rating statistics of the users and items are kept on the heap. The rating sets of the model
+ * are views which decode the runs while they are iterated, so the ratings can be scanned
+ * sequentially by the recommenders and the Experiment without loading them.
+ *
+ * The model file is created by the OutOfCoreDataLoader. Example:
+ * DataModelClass=org.recommender101.data.OutOfCoreDataModel
+ * DataLoaderClass=org.recommender101.data.extensions.dataloader.OutOfCoreDataLoader:filename=data/ratings.txt|modelFile=data/ratings.r101oc
+ *
+ * Format (big endian, version 1):
+ * <pre>
+ * int magic ("R1OC"), int version, int nbUsers, int nbItems, long nbRatings
+ * int[nbUsers] user ids (ascending), int[nbItems] item ids (ascending)
+ * long[nbUsers + 1] run offsets (relative to the first run)
+ * int[nbUsers] counts, long[nbUsers] sums, long[nbUsers] sums of squares   (per user)
+ * int[nbItems] counts, long[nbItems] sums, long[nbItems] sums of squares   (per item)
+ * the runs: for each rating of a user, varint(item index - previous item index), byte value
+ * </pre>
+ * The previous item index of the first rating of a run is -1.
+ *
+ * Changing the model (addRating(), removeRating(), ...) is not supported. Methods which copy the
+ * ratings, e.g., getRatingStore() or the cross-validation with a data splitter, load the ratings
+ * into the heap.
+ */
+public class OutOfCoreDataModel extends DataModel {
+
+	public static final int MAGIC = 0x52314F43;
+	public static final int VERSION = 1;
+
+	// The runs are mapped in segments of 1 GB
+	static final int SEGMENT_BITS = 30;
+	static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+	// The ids of the dense user and item indices
+	int[] userIds = new int[0];
+	int[] itemIds = new int[0];
+
+	// The start of the run of each user, the end of the last run at position nbUsers
+	long[] runOffsets = new long[1];
+
+	// The number of ratings per user
+	int[] userCounts = new int[0];
+
+	// The mapped runs
+	MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	// The ratings loaded into the heap by getRatingStore() or null
+	RatingStore heapStore;
+
+	// =====================================================================================
+
+	/**
+	 * Creates an empty model, see open()
+	 */
+	public OutOfCoreDataModel() {
+		super();
+	}
+
+	/**
+	 * Opens a model file
+	 * @param filename the model file
+	 * @throws IOException if the file cannot be read or is not a model file of a supported version
+	 */
+	public OutOfCoreDataModel(String filename) throws IOException {
+		super();
+		open(filename);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Reads the dictionaries and statistics of a model file and maps the runs. Replaces the
+	 * ratings of the model.
+	 * @param filename the model file
+	 * @throws IOException if the file cannot be read or is not a model file of a supported version
+	 */
+	public void open(String filename) throws IOException {
+		long runsStart;
+		long nbRatings;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(filename + " is not an out-of-core data model");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported model version " + version + " in " + filename);
+			}
+			int nbUsers = in.readInt();
+			int nbItems = in.readInt();
+			nbRatings = in.readLong();
+			userIds = readInts(in, nbUsers);
+			itemIds = readInts(in, nbItems);
+			runOffsets = new long[nbUsers + 1];
+			for (int u = 0; u <= nbUsers; u++) {
+				runOffsets[u] = in.readLong();
+			}
+			userCounts = readInts(in, nbUsers);
+			userStatistics = readStatistics(in, userIds, userCounts);
+			itemStatistics = readStatistics(in, itemIds, readInts(in, nbItems));
+			runsStart = getHeaderSize(nbUsers, nbItems);
+		}
+		finally {
+			in.close();
+		}
+
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long length = runOffsets[userIds.length];
+			if (channel.size() < runsStart + length) {
+				throw new IOException("Unexpected end of the model file " + filename);
+			}
+			segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS)];
+			for (int s = 0; s < segments.length; s++) {
+				long start = (long) s << SEGMENT_BITS;
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, runsStart + start,
+						Math.min(SEGMENT_MASK + 1, length - start));
+			}
+		}
+		finally {
+			// the mappings remain valid
+			file.close();
+		}
+
+		this.users = new IdSet(userIds);
+		this.items = new IdSet(itemIds);
+		this.ratings = new RunView(0, userIds.length, (int) Math.min(Integer.MAX_VALUE, nbRatings));
+		this.ratingsPerUser = new HashMap<Integer, Set<Rating>>((int) (userIds.length / 0.75f) + 1);
+		for (int u = 0; u < userIds.length; u++) {
+			this.ratingsPerUser.put(userIds[u], new RunView(u, u + 1, userCounts[u]));
+		}
+		this.heapStore = null;
+		this.averagesDirty = true;
+	}
+
+	/**
+	 * The number of bytes before the first run
+	 * @param nbUsers the number of users
+	 * @param nbItems the number of items
+	 * @return the header size
+	 */
+	public static long getHeaderSize(int nbUsers, int nbItems) {
+		return 4 + 4 + 4 + 4 + 8 + 4L * nbUsers + 4L * nbItems + 8L * (nbUsers + 1) + 20L * nbUsers + 20L * nbItems;
+	}
+
+	static int[] readInts(DataInputStream in, int n) throws IOException {
+		int[] result = new int[n];
+		for (int k = 0; k < n; k++) {
+			result[k] = in.readInt();
+		}
+		return result;
+	}
+
+	static RatingStatistics readStatistics(DataInputStream in, int[] ids, int[] counts) throws IOException {
+		long[] sums = new long[ids.length];
+		for (int k = 0; k < ids.length; k++) {
+			sums[k] = in.readLong();
+		}
+		RatingStatistics result = new RatingStatistics();
+		for (int k = 0; k < ids.length; k++) {
+			long sumOfSquares = in.readLong();
+			if (counts[k] > 0) {
+				result.set(ids[k], counts[k], sums[k], sumOfSquares);
+			}
+		}
+		return result;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Decodes the run of the user until the item is found
+	 */
+	@Override
+	public byte getRating(int user, int item) {
+		int u = Arrays.binarySearch(userIds, user);
+		int i = Arrays.binarySearch(itemIds, item);
+		if (u < 0 || i < 0) {
+			return -1;
+		}
+		Cursor cursor = new Cursor(runOffsets[u]);
+		int current = -1;
+		for (int k = 0; k < userCounts[u]; k++) {
+			current += cursor.readVarint();
+			byte value = cursor.readByte();
+			if (current == i) {
+				return value;
+			}
+			if (current > i) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Loads the ratings into a store on the heap on first use
+	 */
+	@Override
+	public synchronized RatingStore getRatingStore() {
+		if (heapStore == null) {
+			heapStore = buildRatingStore();
+		}
+		return heapStore;
+	}
+
+	@Override
+	RatingTable copyTable() {
+		return new RatingTable(getRatingStore());
+	}
+
+	// =====================================================================================
+
+	@Override
+	public Rating addRating(int user, int item, byte value) {
+		throw new UnsupportedOperationException("The out-of-core data model is read-only");
+	}
+
+	@Override
+	public Rating addRating(Rating r) {
+		throw new UnsupportedOperationException("The out-of-core data model is read-only");
+	}
+
+	@Override
+	public int addRatings(int[] users, int[] items, byte[] values, long[] timestamps, int n) {
+		throw new UnsupportedOperationException("The out-of-core data model is read-only");
+	}
+
+	@Override
+	public boolean setRatingValue(int user, int item, byte value) {
+		throw new UnsupportedOperationException("The out-of-core data model is read-only");
+	}
+
+	@Override
+	public void removeRating(Rating r) {
+		throw new UnsupportedOperationException("The out-of-core data model is read-only");
+	}
+
+	@Override
+	public void removeUserWithRatings(Integer user) {
+		throw new UnsupportedOperationException("The out-of-core data model is read-only");
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Sequential reading of the runs. Several cursors can read concurrently.
+	 */
+	class Cursor {
+
+		MappedByteBuffer segment;
+		int segmentIndex;
+		int offset;
+
+		Cursor(long position) {
+			segmentIndex = (int) (position >>> SEGMENT_BITS);
+			offset = (int) (position & SEGMENT_MASK);
+			segment = segmentIndex < segments.length ? segments[segmentIndex] : null;
+		}
+
+		byte readByte() {
+			if (offset == segment.limit()) {
+				segmentIndex++;
+				segment = segments[segmentIndex];
+				offset = 0;
+			}
+			return segment.get(offset++);
+		}
+
+		int readVarint() {
+			int result = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = readByte();
+				result |= (b & 0x7F) << shift;
+				shift += 7;
+			}
+			while (b < 0);
+			return result;
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * The ratings of a range of users, decoded while iterating
+	 */
+	class RunView extends AbstractSet<Rating> {
+
+		int fromUser;
+		int toUser;
+		int size;
+
+		RunView(int fromUser, int toUser, int size) {
+			this.fromUser = fromUser;
+			this.toUser = toUser;
+			this.size = size;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Rating)) {
+				return false;
+			}
+			Rating r = (Rating) o;
+			int u = Arrays.binarySearch(userIds, r.user);
+			return u >= fromUser && u < toUser && getRating(r.user, r.item) != -1;
+		}
+
+		@Override
+		public Iterator<Rating> iterator() {
+			return new Iterator<Rating>() {
+				Cursor cursor = new Cursor(runOffsets[fromUser]);
+				int user = fromUser;
+				int remaining = fromUser < toUser ? userCounts[fromUser] : 0;
+				int item = -1;
+
+				{
+					skipEmptyRuns();
+				}
+
+				void skipEmptyRuns() {
+					while (remaining == 0 && user + 1 < toUser) {
+						user++;
+						remaining = userCounts[user];
+						item = -1;
+					}
+				}
+
+				public boolean hasNext() {
+					return remaining > 0;
+				}
+
+				public Rating next() {
+					if (remaining == 0) {
+						throw new NoSuchElementException();
+					}
+					item += cursor.readVarint();
+					Rating r = new Rating(userIds[user], itemIds[item], cursor.readByte());
+					remaining--;
+					skipEmptyRuns();
+					return r;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * A read-only set view of a sorted id array
+	 */
+	static class IdSet extends AbstractSet<Integer> {
+
+		int[] ids;
+
+		IdSet(int[] ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		public int size() {
+			return ids.length;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return (o instanceof Integer) && Arrays.binarySearch(ids, (Integer) o) >= 0;
+		}
+
+		@Override
+		public Iterator<Integer> iterator() {
+			return new Iterator<Integer>() {
+				int next = 0;
+
+				public boolean hasNext() {
+					return next < ids.length;
+				}
+
+				public Integer next() {
+					if (next >= ids.length) {
+						throw new NoSuchElementException();
+					}
+					return ids[next++];
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+}
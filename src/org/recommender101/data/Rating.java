@@ -43,6 +43,9 @@ public class Rating {
 	 */
 	@Override
 	public boolean equals(Object other) {
+		if (!(other instanceof Rating)) {
+			return false;
+		}
 		Rating otherRating = (Rating) other;
 		if (this.item == otherRating.item && this.user == otherRating.user) {
 			return true;
@@ -53,5 +56,12 @@ public class Rating {
 		
 	}
 	
+	/**
+	 * The hash code is consistent with equals() and only depends on the user and item id
+	 */
+	@Override
+	public int hashCode() {
+		return 31 * user + item;
+	}
 	
 }
@@ -0,0 +1,435 @@
+/** DJ **/
+package org.recommender101.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A fast parser for rating files of the form user SEP item SEP rating [SEP more columns].
+ * The separator can be "::", tabs, commas or blanks, columns after the rating are ignored.
+ * Lines starting with "//" and empty lines are skipped.
+ *
+ * The file is memory-mapped and split into chunks which start and end at line boundaries.
+ * The chunks are parsed in parallel directly on the bytes, i.e., without creating strings.
+ * Decimals in the values are truncated like in (int) Float.parseFloat(). The parsed ratings
+ * are passed chunk by chunk and in file order to a {@link ChunkHandler} in primitive arrays,
+ * so files which do not fit into memory can be processed. Streams, e.g., of compressed files,
+ * can be parsed with parse(InputStream, maxRatings, handler): the stream is read in large
+ * blocks which are parsed by the threads while the next block is read.
+ */
+public class RatingFileParser {
+
+	// The minimum and maximum number of bytes of a chunk
+	static final long MIN_CHUNK_SIZE = 1 << 20;
+	static final long MAX_CHUNK_SIZE = 64 << 20;
+
+	// The number of bytes read from a stream at a time
+	static final int STREAM_BLOCK_SIZE = 16 << 20;
+
+	// The number of parser threads
+	int nbThreads;
+
+	// =====================================================================================
+
+	/**
+	 * Creates a parser
+	 * @param nbThreads the number of threads used for parsing
+	 */
+	public RatingFileParser(int nbThreads) {
+		this.nbThreads = Math.max(1, nbThreads);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Parses a rating file and passes the ratings to a handler, chunk by chunk and in file order.
+	 * Only as many chunks as there are threads are kept in memory at a time.
+	 * @param filename the file
+	 * @param maxRatings the number of ratings after which parsing stops, -1 for all ratings
+	 * @param handler receives the ratings of each chunk
+	 * @return the number of parsed ratings
+	 * @throws IOException if the file cannot be read, contains a malformed line or the handler fails
+	 */
+	public int parse(String filename, int maxRatings, ChunkHandler handler) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		ExecutorService pool = null;
+		try {
+			FileChannel channel = file.getChannel();
+			long[] bounds = getChunkBounds(channel);
+			if (nbThreads > 1 && bounds.length > 2) {
+				pool = Executors.newFixedThreadPool(Math.min(nbThreads, bounds.length - 1));
+			}
+			int total = 0;
+			for (int first = 0; first < bounds.length - 1; first += nbThreads) {
+				List<Chunk> chunks = new ArrayList<Chunk>();
+				for (int c = first; c < Math.min(first + nbThreads, bounds.length - 1); c++) {
+					chunks.add(new Chunk(channel, bounds[c], bounds[c + 1]));
+				}
+				if (pool == null) {
+					for (Chunk chunk : chunks) {
+						chunk.call();
+					}
+				}
+				else {
+					for (Future<Chunk> future : pool.invokeAll(chunks)) {
+						future.get();
+					}
+				}
+				for (Chunk chunk : chunks) {
+					int n = chunk.size;
+					if (maxRatings >= 0) {
+						n = Math.min(n, maxRatings - total);
+					}
+					handler.handle(chunk.users, chunk.items, chunk.values, n);
+					total += n;
+				}
+				if (maxRatings >= 0 && total >= maxRatings) {
+					break;
+				}
+			}
+			return total;
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while parsing " + filename, e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not parse " + filename, e.getCause());
+		}
+		finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			file.close();
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Parses the ratings of a stream and passes them to a handler, block by block and in stream
+	 * order. The stream is read in blocks which end at a line break; while the threads parse
+	 * the blocks, the next blocks are read. The stream is not closed.
+	 * @param in the stream, e.g., of a decompressed file
+	 * @param maxRatings the number of ratings after which parsing stops, -1 for all ratings
+	 * @param handler receives the ratings of each block
+	 * @return the number of parsed ratings
+	 * @throws IOException if the stream cannot be read, contains a malformed line or the handler fails
+	 */
+	public int parse(InputStream in, int maxRatings, ChunkHandler handler) throws IOException {
+		ExecutorService pool = null;
+		if (nbThreads > 1) {
+			pool = Executors.newFixedThreadPool(nbThreads);
+		}
+		LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+		int total = 0;
+		try {
+			byte[] carry = new byte[0];
+			long offset = 0;
+			boolean eof = false;
+			while (!eof && (maxRatings < 0 || total < maxRatings)) {
+				// a line which does not fit into a block doubles the block size
+				byte[] block = new byte[Math.max(STREAM_BLOCK_SIZE, 2 * carry.length)];
+				System.arraycopy(carry, 0, block, 0, carry.length);
+				int length = carry.length;
+				while (length < block.length) {
+					int read = in.read(block, length, block.length - length);
+					if (read < 0) {
+						eof = true;
+						break;
+					}
+					length += read;
+				}
+				int cut = length;
+				if (!eof) {
+					while (cut > 0 && block[cut - 1] != '\n') {
+						cut--;
+					}
+					if (cut == 0) {
+						carry = block;
+						continue;
+					}
+				}
+				carry = Arrays.copyOfRange(block, cut, length);
+				if (cut == 0) {
+					break;
+				}
+				Chunk chunk = new Chunk(ByteBuffer.wrap(block), offset, offset + cut);
+				offset += cut;
+				if (pool == null) {
+					total = deliver(chunk.call(), total, maxRatings, handler);
+					continue;
+				}
+				pending.add(pool.submit(chunk));
+				while (pending.size() > nbThreads) {
+					total = deliver(pending.removeFirst().get(), total, maxRatings, handler);
+				}
+			}
+			while (!pending.isEmpty() && (maxRatings < 0 || total < maxRatings)) {
+				total = deliver(pending.removeFirst().get(), total, maxRatings, handler);
+			}
+			return total;
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while parsing a stream", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not parse a stream", e.getCause());
+		}
+		finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Passes the ratings of a parsed chunk to the handler, at most up to maxRatings
+	 * @return the new number of parsed ratings
+	 */
+	static int deliver(Chunk chunk, int total, int maxRatings, ChunkHandler handler) throws IOException {
+		int n = chunk.size;
+		if (maxRatings >= 0) {
+			n = Math.min(n, maxRatings - total);
+		}
+		if (n > 0) {
+			handler.handle(chunk.users, chunk.items, chunk.values, n);
+		}
+		return total + n;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Receives the ratings parsed from one chunk of a file (see parse(String, int, ChunkHandler))
+	 */
+	public interface ChunkHandler {
+
+		/**
+		 * Called for each chunk in file order
+		 * @param users the user ids
+		 * @param items the item ids
+		 * @param values the rating values
+		 * @param n the number of valid entries in the arrays
+		 * @throws IOException
+		 */
+		void handle(int[] users, int[] items, byte[] values, int n) throws IOException;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Splits the file into chunks. Every chunk boundary is moved to the start of the next line.
+	 * @return the start positions of the chunks followed by the file size
+	 */
+	long[] getChunkBounds(FileChannel channel) throws IOException {
+		long fileSize = channel.size();
+		long chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, fileSize / (4L * nbThreads)));
+		List<Long> bounds = new ArrayList<Long>();
+		long pos = 0;
+		while (pos < fileSize) {
+			bounds.add(pos);
+			pos = nextLineStart(channel, pos + chunkSize, fileSize);
+		}
+		bounds.add(fileSize);
+		long[] result = new long[bounds.size()];
+		for (int k = 0; k < result.length; k++) {
+			result[k] = bounds.get(k);
+		}
+		return result;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the position after the first line break at or behind the given position
+	 */
+	static long nextLineStart(FileChannel channel, long pos, long fileSize) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (pos < fileSize) {
+			buffer.clear();
+			int read = channel.read(buffer, pos);
+			if (read <= 0) {
+				break;
+			}
+			for (int k = 0; k < read; k++) {
+				if (buffer.get(k) == '\n') {
+					return pos + k + 1;
+				}
+			}
+			pos += read;
+		}
+		return fileSize;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Parses one line-aligned part of the file (or of a block read from a stream) into its own arrays
+	 */
+	static class Chunk implements Callable<Chunk> {
+
+		FileChannel channel;
+		long start;
+		long end;
+
+		// The bytes of a block read from a stream, null for a part of a file
+		ByteBuffer data;
+
+		int[] users;
+		int[] items;
+		byte[] values;
+		int size;
+
+		// The current read position in the buffer
+		int pos;
+
+		Chunk(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		Chunk(ByteBuffer data, long start, long end) {
+			this.data = data;
+			this.start = start;
+			this.end = end;
+		}
+
+		// =====================================================================================
+
+		@Override
+		public Chunk call() throws IOException {
+			int length = (int) (end - start);
+			ByteBuffer buffer = data;
+			if (buffer == null) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+			}
+			// initial guess of 16 bytes per line, the arrays grow if needed
+			int capacity = Math.max(16, length / 16);
+			users = new int[capacity];
+			items = new int[capacity];
+			values = new byte[capacity];
+			pos = 0;
+			while (pos < length) {
+				int lineStart = pos;
+				skipBlanks(buffer, length);
+				if (pos >= length || isLineEnd(buffer.get(pos))) {
+					// empty line
+					skipLine(buffer, length);
+					continue;
+				}
+				if (buffer.get(pos) == '/' && pos + 1 < length && buffer.get(pos + 1) == '/') {
+					// comment line
+					skipLine(buffer, length);
+					continue;
+				}
+				if (size == users.length) {
+					grow();
+				}
+				int user = parseNumber(buffer, length, lineStart);
+				skipSeparators(buffer, length);
+				int item = parseNumber(buffer, length, lineStart);
+				skipSeparators(buffer, length);
+				int value = parseNumber(buffer, length, lineStart);
+				users[size] = user;
+				items[size] = item;
+				values[size] = (byte) value;
+				size++;
+				skipLine(buffer, length);
+			}
+			return this;
+		}
+
+		// =====================================================================================
+
+		/**
+		 * Parses a number at the current position. Decimals are skipped.
+		 */
+		int parseNumber(ByteBuffer buffer, int length, int lineStart) throws IOException {
+			boolean negative = false;
+			if (pos < length && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+				negative = buffer.get(pos) == '-';
+				pos++;
+			}
+			int digitsStart = pos;
+			int result = 0;
+			byte b;
+			while (pos < length && (b = buffer.get(pos)) >= '0' && b <= '9') {
+				result = result * 10 + (b - '0');
+				pos++;
+			}
+			boolean hasDigits = pos > digitsStart;
+			if (pos < length && buffer.get(pos) == '.') {
+				pos++;
+				while (pos < length && (b = buffer.get(pos)) >= '0' && b <= '9') {
+					hasDigits = true;
+					pos++;
+				}
+			}
+			if (!hasDigits) {
+				throw new IOException("Malformed rating line at byte offset " + (start + lineStart));
+			}
+			return negative ? -result : result;
+		}
+
+		/**
+		 * Skips the separators "::", tabs, commas and blanks
+		 */
+		void skipSeparators(ByteBuffer buffer, int length) {
+			byte b;
+			while (pos < length && ((b = buffer.get(pos)) == ':' || b == '\t' || b == ',' || b == ' ')) {
+				pos++;
+			}
+		}
+
+		/**
+		 * Skips blanks and tabs
+		 */
+		void skipBlanks(ByteBuffer buffer, int length) {
+			byte b;
+			while (pos < length && ((b = buffer.get(pos)) == ' ' || b == '\t')) {
+				pos++;
+			}
+		}
+
+		/**
+		 * Moves the position to the start of the next line
+		 */
+		void skipLine(ByteBuffer buffer, int length) {
+			while (pos < length && buffer.get(pos) != '\n') {
+				pos++;
+			}
+			pos++;
+		}
+
+		static boolean isLineEnd(byte b) {
+			return b == '\n' || b == '\r';
+		}
+
+		void grow() {
+			int capacity = users.length * 2;
+			users = Arrays.copyOf(users, capacity);
+			items = Arrays.copyOf(items, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+	}
+
+}
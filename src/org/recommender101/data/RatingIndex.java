@@ -0,0 +1,228 @@
+/** DJ **/
+package org.recommender101.data;
+
+import java.util.Arrays;
+
+/**
+ * A hash index from (user, item) pairs to the positions of the ratings in the storage of a
+ * data model (see {@link RatingTable}). The pair is packed into one long key (user << 32 | item)
+ * and stored in an open addressing table with linear probing, so a lookup is a few array probes
+ * and does not create any objects. An entry needs 12 bytes (key and position) per slot.
+ *
+ * Concurrent lookups are safe as long as no thread changes the index.
+ */
+public class RatingIndex {
+
+	// The maximum fill ratio before the table is doubled
+	static final float LOAD_FACTOR = 0.6f;
+
+	// The position of a free slot
+	static final int FREE = -1;
+
+	// The packed keys
+	long[] keys;
+
+	// The positions of the ratings, FREE marks a free slot
+	int[] positions;
+
+	// The number of entries
+	int size;
+
+	// Capacity - 1 (the capacity is a power of two)
+	int mask;
+
+	// The value of a missing timestamp
+	public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+	// =====================================================================================
+
+	/**
+	 * Creates an empty index
+	 */
+	public RatingIndex() {
+		this(16);
+	}
+
+	/**
+	 * Creates an index for the expected number of ratings
+	 * @param expectedSize the number of ratings
+	 */
+	public RatingIndex(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Creates a copy of an index
+	 * @param other the index to copy
+	 */
+	public RatingIndex(RatingIndex other) {
+		keys = other.keys.clone();
+		positions = other.positions.clone();
+		size = other.size;
+		mask = other.mask;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the position of the rating of a user for an item
+	 * @param user the user id
+	 * @param item the item id
+	 * @return the position or -1 if there is no rating
+	 */
+	public int get(int user, int item) {
+		long key = key(user, item);
+		int slot = slot(key);
+		int position;
+		while ((position = positions[slot]) != FREE) {
+			if (keys[slot] == key) {
+				return position;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Sets the position of the rating of a user for an item
+	 * @param user the user id
+	 * @param item the item id
+	 * @param position the position, not negative
+	 * @return the previous position or -1 if the rating was not in the index
+	 */
+	public int put(int user, int item, int position) {
+		if (size >= (mask + 1) * LOAD_FACTOR) {
+			rehash((mask + 1) << 1);
+		}
+		long key = key(user, item);
+		int slot = slot(key);
+		while (positions[slot] != FREE) {
+			if (keys[slot] == key) {
+				int previous = positions[slot];
+				positions[slot] = position;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		positions[slot] = position;
+		size++;
+		return -1;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Removes the rating of a user for an item
+	 * @param user the user id
+	 * @param item the item id
+	 * @return the position of the removed rating or -1 if there was none
+	 */
+	public int remove(int user, int item) {
+		long key = key(user, item);
+		int slot = slot(key);
+		int position;
+		while ((position = positions[slot]) != FREE) {
+			if (keys[slot] == key) {
+				closeGap(slot);
+				size--;
+				return position;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Frees a slot and moves later entries of the probe sequence back (no tombstones needed)
+	 */
+	void closeGap(int free) {
+		int slot = free;
+		while (true) {
+			slot = (slot + 1) & mask;
+			if (positions[slot] == FREE) {
+				break;
+			}
+			int home = slot(keys[slot]);
+			// the entry can be moved if its home slot is not in the range (free, slot]
+			boolean movable = (slot > free) ? (home <= free || home > slot) : (home <= free && home > slot);
+			if (movable) {
+				keys[free] = keys[slot];
+				positions[free] = positions[slot];
+				free = slot;
+			}
+		}
+		positions[free] = FREE;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * The number of ratings in the index
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the approximate size of the arrays in bytes
+	 * @return the size in bytes
+	 */
+	public long getMemoryUsage() {
+		return 12L * keys.length;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Packs user and item into one key
+	 */
+	static long key(int user, int item) {
+		return ((long) user << 32) | (item & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Spreads the key bits (the finalizer of MurmurHash3) and returns the home slot
+	 */
+	int slot(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+
+	void allocate(int capacity) {
+		keys = new long[capacity];
+		positions = new int[capacity];
+		Arrays.fill(positions, FREE);
+		mask = capacity - 1;
+	}
+
+	void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldPositions = positions;
+		allocate(capacity);
+		for (int k = 0; k < oldPositions.length; k++) {
+			if (oldPositions[k] != FREE) {
+				int slot = slot(oldKeys[k]);
+				while (positions[slot] != FREE) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[k];
+				positions[slot] = oldPositions[k];
+			}
+		}
+	}
+
+}
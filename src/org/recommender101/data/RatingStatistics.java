@@ -0,0 +1,363 @@
+/** DJ **/
+package org.recommender101.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Running rating statistics (count, sum and sum of squares of the values) per user or per
+ * item id. The data model updates them whenever a rating is added, removed or changed, so
+ * the mean, the variance and the number of ratings of a user or an item are available in
+ * constant time without a pass over the ratings.
+ *
+ * The ids are kept in an open addressing table with linear probing. An id whose ratings were
+ * all removed keeps its slot with a count of 0 and is treated like an unknown id.
+ *
+ * Concurrent queries are safe as long as no thread changes the statistics.
+ */
+public class RatingStatistics {
+
+	// The maximum fill ratio before the table is doubled
+	static final float LOAD_FACTOR = 0.6f;
+
+	// The ids
+	int[] keys;
+
+	// Marks the used slots
+	boolean[] used;
+
+	// The number of ratings per slot
+	int[] counts;
+
+	// The sum of the rating values per slot
+	long[] sums;
+
+	// The sum of the squared rating values per slot
+	long[] sumsOfSquares;
+
+	// The number of used slots
+	int size;
+
+	// Capacity - 1 (the capacity is a power of two)
+	int mask;
+
+	// The totals over all ids
+	long totalCount;
+	long totalSum;
+
+	// =====================================================================================
+
+	/**
+	 * Creates empty statistics
+	 */
+	public RatingStatistics() {
+		allocate(16);
+	}
+
+	/**
+	 * A copy constructor
+	 * @param other the statistics to copy
+	 */
+	public RatingStatistics(RatingStatistics other) {
+		this.keys = other.keys.clone();
+		this.used = other.used.clone();
+		this.counts = other.counts.clone();
+		this.sums = other.sums.clone();
+		this.sumsOfSquares = other.sumsOfSquares.clone();
+		this.size = other.size;
+		this.mask = other.mask;
+		this.totalCount = other.totalCount;
+		this.totalSum = other.totalSum;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Counts a rating of a user or an item
+	 * @param id the user or item id
+	 * @param value the rating value
+	 */
+	public void add(int id, int value) {
+		int slot = slotFor(id);
+		counts[slot]++;
+		sums[slot] += value;
+		sumsOfSquares[slot] += value * value;
+		totalCount++;
+		totalSum += value;
+	}
+
+	/**
+	 * Removes a rating which was counted before
+	 * @param id the user or item id
+	 * @param value the rating value
+	 */
+	public void remove(int id, int value) {
+		int slot = find(id);
+		if (slot < 0 || counts[slot] == 0) {
+			return;
+		}
+		counts[slot]--;
+		sums[slot] -= value;
+		sumsOfSquares[slot] -= value * value;
+		totalCount--;
+		totalSum -= value;
+	}
+
+	/**
+	 * Changes the value of a rating which was counted before
+	 * @param id the user or item id
+	 * @param oldValue the counted value
+	 * @param newValue the new value
+	 */
+	public void update(int id, int oldValue, int newValue) {
+		int slot = find(id);
+		if (slot < 0 || counts[slot] == 0) {
+			return;
+		}
+		sums[slot] += newValue - oldValue;
+		sumsOfSquares[slot] += newValue * newValue - oldValue * oldValue;
+		totalSum += newValue - oldValue;
+	}
+
+	/**
+	 * Sets the statistics of an id at once, e.g., when they were accumulated elsewhere
+	 * @param id the user or item id
+	 * @param count the number of ratings
+	 * @param sum the sum of the values
+	 * @param sumOfSquares the sum of the squared values
+	 */
+	void set(int id, int count, long sum, long sumOfSquares) {
+		int slot = slotFor(id);
+		totalCount += count - counts[slot];
+		totalSum += sum - sums[slot];
+		counts[slot] = count;
+		sums[slot] = sum;
+		sumsOfSquares[slot] = sumOfSquares;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * The number of ratings of a user or an item
+	 * @param id the user or item id
+	 * @return the count, 0 for unknown ids
+	 */
+	public int getCount(int id) {
+		int slot = find(id);
+		return slot < 0 ? 0 : counts[slot];
+	}
+
+	/**
+	 * The sum of the rating values of a user or an item
+	 * @param id the user or item id
+	 * @return the sum, 0 for unknown ids
+	 */
+	public long getSum(int id) {
+		int slot = find(id);
+		return slot < 0 ? 0 : sums[slot];
+	}
+
+	/**
+	 * The average rating of a user or an item
+	 * @param id the user or item id
+	 * @return the mean or Float.NaN if there are no ratings
+	 */
+	public float getMean(int id) {
+		int slot = find(id);
+		if (slot < 0 || counts[slot] == 0) {
+			return Float.NaN;
+		}
+		return mean(slot);
+	}
+
+	/**
+	 * The (population) variance of the ratings of a user or an item
+	 * @param id the user or item id
+	 * @return the variance or Double.NaN if there are no ratings
+	 */
+	public double getVariance(int id) {
+		int slot = find(id);
+		if (slot < 0 || counts[slot] == 0) {
+			return Double.NaN;
+		}
+		return variance(slot);
+	}
+
+	/**
+	 * The number of ratings over all ids
+	 * @return the total count
+	 */
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * The average over all ratings
+	 * @return the global mean or Double.NaN if there are no ratings
+	 */
+	public double getGlobalMean() {
+		return totalSum / (double) totalCount;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the averages of all ids with ratings (the format of Utilities101.getUserAverageRatings())
+	 * @return a new map of ids to averages
+	 */
+	public Map<Integer, Float> getMeans() {
+		Map<Integer, Float> result = new HashMap<Integer, Float>(capacityFor(size));
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (used[slot] && counts[slot] > 0) {
+				result.put(keys[slot], mean(slot));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the rating counts of all ids with ratings
+	 * @return a new map of ids to counts
+	 */
+	public Map<Integer, Integer> getCounts() {
+		Map<Integer, Integer> result = new HashMap<Integer, Integer>(capacityFor(size));
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (used[slot] && counts[slot] > 0) {
+				result.put(keys[slot], counts[slot]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the variances of all ids with ratings
+	 * @return a new map of ids to variances
+	 */
+	public Map<Integer, Float> getVariances() {
+		Map<Integer, Float> result = new HashMap<Integer, Float>(capacityFor(size));
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (used[slot] && counts[slot] > 0) {
+				result.put(keys[slot], (float) variance(slot));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ids with ratings
+	 * @return a new array of the ids in no particular order
+	 */
+	public int[] getIds() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (used[slot] && counts[slot] > 0) {
+				result[n++] = keys[slot];
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Computed like in Utilities101.getUserAverageRatings(), i.e., the float sum divided by the count
+	 */
+	float mean(int slot) {
+		return (float) sums[slot] / (float) counts[slot];
+	}
+
+	/**
+	 * E[x^2] - E[x]^2, with the numerator computed exactly on longs
+	 */
+	double variance(int slot) {
+		long n = counts[slot];
+		return (n * sumsOfSquares[slot] - sums[slot] * sums[slot]) / ((double) n * n);
+	}
+
+	static int capacityFor(int size) {
+		return Math.max(16, (int) (size / 0.75f) + 1);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the slot of an id or -1
+	 */
+	int find(int id) {
+		int slot = slot(id);
+		while (used[slot]) {
+			if (keys[slot] == id) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the slot of an id, a new slot is used for an unknown id
+	 */
+	int slotFor(int id) {
+		int slot = slot(id);
+		while (used[slot]) {
+			if (keys[slot] == id) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (size >= (mask + 1) * LOAD_FACTOR) {
+			rehash((mask + 1) << 1);
+			return slotFor(id);
+		}
+		keys[slot] = id;
+		used[slot] = true;
+		size++;
+		return slot;
+	}
+
+	/**
+	 * Spreads the id bits (the finalizer of MurmurHash3) and returns the home slot
+	 */
+	int slot(int id) {
+		id ^= id >>> 16;
+		id *= 0x85ebca6b;
+		id ^= id >>> 13;
+		id *= 0xc2b2ae35;
+		id ^= id >>> 16;
+		return id & mask;
+	}
+
+	void allocate(int capacity) {
+		keys = new int[capacity];
+		used = new boolean[capacity];
+		counts = new int[capacity];
+		sums = new long[capacity];
+		sumsOfSquares = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	void rehash(int capacity) {
+		int[] oldKeys = keys;
+		boolean[] oldUsed = used;
+		int[] oldCounts = counts;
+		long[] oldSums = sums;
+		long[] oldSumsOfSquares = sumsOfSquares;
+		allocate(capacity);
+		for (int k = 0; k < oldKeys.length; k++) {
+			if (oldUsed[k]) {
+				int slot = slot(oldKeys[k]);
+				while (used[slot]) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[k];
+				used[slot] = true;
+				counts[slot] = oldCounts[k];
+				sums[slot] = oldSums[k];
+				sumsOfSquares[slot] = oldSumsOfSquares[k];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,387 @@
+/** DJ **/
+package org.recommender101.data;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A compact, read-only columnar storage of a set of ratings. It is the storage of the ratings
+ * of a {@link DataModel}: the rating sets of the model are views on its arrays (see
+ * {@link RatingTable}), and the algorithms that scan the ratings of many users or items, e.g.,
+ * matrix products or similarity computations, can use the arrays directly.
+ *
+ * User and item ids are remapped to dense indices (0..n-1, in ascending id order). The ratings
+ * are kept twice in primitive arrays: row-wise per user (CSR, item indices sorted ascending) and
+ * column-wise per item (CSC, user indices sorted ascending). The ratings of user u are found at
+ * positions userOffsets[u] to userOffsets[u+1]-1 of userItems / userValues, the ratings
+ * of item i at itemOffsets[i] to itemOffsets[i+1]-1 of itemUsers / itemValues.
+ *
+ * A store needs about 10 bytes per rating (18 with timestamps). The arrays returned by the
+ * getters are shared and must not be modified.
+ */
+public class RatingStore {
+
+	// Dense index -> original user id
+	int[] userIds;
+
+	// Dense index -> original item id
+	int[] itemIds;
+
+	// The per-user rows
+	int[] userOffsets;
+	int[] userItems;
+	byte[] userValues;
+
+	// The per-item columns
+	int[] itemOffsets;
+	int[] itemUsers;
+	byte[] itemValues;
+
+	// The timestamps of the rows or null
+	long[] userTimestamps;
+
+	// =====================================================================================
+
+	/**
+	 * Creates the store from a collection of ratings
+	 * @param ratings the ratings, e.g., the ratings of a data model
+	 */
+	public RatingStore(Collection<Rating> ratings) {
+		int n = ratings.size();
+		int[] users = new int[n];
+		int[] items = new int[n];
+		byte[] values = new byte[n];
+		int k = 0;
+		for (Rating r : ratings) {
+			users[k] = r.user;
+			items[k] = r.item;
+			values[k] = r.rating;
+			k++;
+		}
+		build(users, items, values, null, k);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Creates the store from parallel arrays of user ids, item ids and rating values.
+	 * The arrays are overwritten during the construction.
+	 * @param users the user ids
+	 * @param items the item ids
+	 * @param values the rating values
+	 * @param n the number of valid entries in the arrays
+	 */
+	public RatingStore(int[] users, int[] items, byte[] values, int n) {
+		build(users, items, values, null, n);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Creates the store from parallel arrays of ratings with timestamps.
+	 * The arrays are overwritten during the construction.
+	 * @param users the user ids
+	 * @param items the item ids
+	 * @param values the rating values
+	 * @param timestamps the timestamps or null
+	 * @param n the number of valid entries in the arrays
+	 */
+	public RatingStore(int[] users, int[] items, byte[] values, long[] timestamps, int n) {
+		build(users, items, values, timestamps, n);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Remaps the ids and sorts the ratings into rows and columns (two counting sort passes)
+	 */
+	private void build(int[] users, int[] items, byte[] values, long[] timestamps, int n) {
+		userIds = sortedDistinct(users, n);
+		itemIds = sortedDistinct(items, n);
+		// replace the ids by their dense index
+		for (int k = 0; k < n; k++) {
+			users[k] = Arrays.binarySearch(userIds, users[k]);
+			items[k] = Arrays.binarySearch(itemIds, items[k]);
+		}
+
+		// Sort by item first, a stable sort by user then gives rows with ordered items
+		itemOffsets = countOffsets(items, n, itemIds.length);
+		int[] byItem = new int[n];
+		int[] next = Arrays.copyOf(itemOffsets, itemIds.length);
+		for (int k = 0; k < n; k++) {
+			byItem[next[items[k]]++] = k;
+		}
+
+		userOffsets = countOffsets(users, n, userIds.length);
+		userItems = new int[n];
+		userValues = new byte[n];
+		int[] byUser = new int[n];
+		next = Arrays.copyOf(userOffsets, userIds.length);
+		for (int j = 0; j < n; j++) {
+			int k = byItem[j];
+			int pos = next[users[k]]++;
+			byUser[pos] = k;
+			userItems[pos] = items[k];
+			userValues[pos] = values[k];
+		}
+		byItem = null;
+		if (timestamps != null) {
+			userTimestamps = new long[n];
+			for (int pos = 0; pos < n; pos++) {
+				userTimestamps[pos] = timestamps[byUser[pos]];
+			}
+		}
+
+		// Columns: the rows are processed in user order, so the users of a column are ordered
+		itemUsers = new int[n];
+		itemValues = new byte[n];
+		next = Arrays.copyOf(itemOffsets, itemIds.length);
+		for (int j = 0; j < n; j++) {
+			int k = byUser[j];
+			int pos = next[items[k]]++;
+			itemUsers[pos] = users[k];
+			itemValues[pos] = values[k];
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the sorted distinct values of the first n entries of an array
+	 */
+	static int[] sortedDistinct(int[] values, int n) {
+		int[] sorted = Arrays.copyOf(values, n);
+		Arrays.sort(sorted);
+		int distinct = 0;
+		for (int k = 0; k < n; k++) {
+			if (k == 0 || sorted[k] != sorted[k - 1]) {
+				sorted[distinct++] = sorted[k];
+			}
+		}
+		return Arrays.copyOf(sorted, distinct);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Calculates the start offsets for a counting sort. The returned array has one additional
+	 * element holding the total count.
+	 */
+	static int[] countOffsets(int[] indices, int n, int size) {
+		int[] offsets = new int[size + 1];
+		for (int k = 0; k < n; k++) {
+			offsets[indices[k] + 1]++;
+		}
+		for (int i = 0; i < size; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		return offsets;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Retrieve a rating for a given user-item pair using a binary search in the user's row
+	 * @param user the user ID
+	 * @param item the item ID
+	 * @return the rating value or -1 in case there is no rating
+	 */
+	public byte getRating(int user, int item) {
+		int u = userIndex(user);
+		int i = itemIndex(item);
+		if (u < 0 || i < 0) {
+			return -1;
+		}
+		int pos = Arrays.binarySearch(userItems, userOffsets[u], userOffsets[u + 1], i);
+		if (pos < 0) {
+			return -1;
+		}
+		return userValues[pos];
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the dense index of a user
+	 * @param user the user id
+	 * @return the index or -1 if the user has no ratings
+	 */
+	public int userIndex(int user) {
+		int u = Arrays.binarySearch(userIds, user);
+		return u < 0 ? -1 : u;
+	}
+
+	/**
+	 * Returns the dense index of an item
+	 * @param item the item id
+	 * @return the index or -1 if the item has no ratings
+	 */
+	public int itemIndex(int item) {
+		int i = Arrays.binarySearch(itemIds, item);
+		return i < 0 ? -1 : i;
+	}
+
+	/**
+	 * Returns the dense index of the user of a position of the rows
+	 * @param position the position in userItems / userValues
+	 * @return the user index
+	 */
+	public int userIndexOfPosition(int position) {
+		// the last row starting at or before the position, empty rows are skipped
+		int low = 0;
+		int high = userIds.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (userOffsets[middle] <= position) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the user id for a dense index
+	 * @param u the index
+	 * @return the user id
+	 */
+	public int userId(int u) {
+		return userIds[u];
+	}
+
+	/**
+	 * Returns the item id for a dense index
+	 * @param i the index
+	 * @return the item id
+	 */
+	public int itemId(int i) {
+		return itemIds[i];
+	}
+
+	// =====================================================================================
+
+	/**
+	 * The number of users with at least one rating
+	 * @return the number of users
+	 */
+	public int getNumberOfUsers() {
+		return userIds.length;
+	}
+
+	/**
+	 * The number of items with at least one rating
+	 * @return the number of items
+	 */
+	public int getNumberOfItems() {
+		return itemIds.length;
+	}
+
+	/**
+	 * The number of stored ratings
+	 * @return the number of ratings
+	 */
+	public int getNumberOfRatings() {
+		return userItems.length;
+	}
+
+	/**
+	 * The number of ratings of a user
+	 * @param u the dense user index
+	 * @return the profile length
+	 */
+	public int getUserRatingCount(int u) {
+		return userOffsets[u + 1] - userOffsets[u];
+	}
+
+	/**
+	 * The number of ratings of an item
+	 * @param i the dense item index
+	 * @return the number of ratings
+	 */
+	public int getItemRatingCount(int i) {
+		return itemOffsets[i + 1] - itemOffsets[i];
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Row start offsets (length: number of users + 1)
+	 * @return the shared array
+	 */
+	public int[] getUserOffsets() {
+		return userOffsets;
+	}
+
+	/**
+	 * The item indices of the rows
+	 * @return the shared array
+	 */
+	public int[] getUserItems() {
+		return userItems;
+	}
+
+	/**
+	 * The rating values of the rows
+	 * @return the shared array
+	 */
+	public byte[] getUserValues() {
+		return userValues;
+	}
+
+	/**
+	 * Column start offsets (length: number of items + 1)
+	 * @return the shared array
+	 */
+	public int[] getItemOffsets() {
+		return itemOffsets;
+	}
+
+	/**
+	 * The user indices of the columns
+	 * @return the shared array
+	 */
+	public int[] getItemUsers() {
+		return itemUsers;
+	}
+
+	/**
+	 * The rating values of the columns
+	 * @return the shared array
+	 */
+	public byte[] getItemValues() {
+		return itemValues;
+	}
+
+	/**
+	 * The timestamps of the rows
+	 * @return the shared array or null if the ratings have no timestamps
+	 */
+	public long[] getUserTimestamps() {
+		return userTimestamps;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the approximate size of the arrays in bytes
+	 * @return the size in bytes
+	 */
+	public long getMemoryUsage() {
+		long n = userItems.length;
+		long timestampBytes = (userTimestamps == null) ? 0 : 8 * n;
+		return 4L * (userIds.length + itemIds.length + userOffsets.length + itemOffsets.length) + 10 * n + timestampBytes;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * A simple string representation returning basic stats
+	 */
+	public String toString() {
+		return "RatingStore: " + getNumberOfUsers() + " users, " + getNumberOfItems() + " items, "
+				+ getNumberOfRatings() + " ratings, " + (getMemoryUsage() / 1024) + " KB";
+	}
+
+}
@@ -0,0 +1,301 @@
+/** DJ **/
+package org.recommender101.data;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The rating storage of a {@link DataModel}. The ratings are kept in a compact, read-only
+ * {@link RatingStore} and a {@link RatingIndex} from (user, item) to the position of the rating.
+ * Positions below the size of the store are positions of the rows of the store.
+ *
+ * The store is immutable and can be shared by several tables (e.g., by a data model and its
+ * copies). Changes are therefore recorded next to it: added ratings and new values of stored
+ * ratings are appended to primitive arrays (at the positions after the store), removed ratings
+ * are marked in a bit set. compact() merges the changes into a new store.
+ */
+class RatingTable {
+
+	// The compacted ratings
+	RatingStore store;
+
+	// The number of ratings in the store
+	int storeSize;
+
+	// (user, item) -> position
+	RatingIndex index;
+
+	// The removed positions (of the store and of the appended ratings)
+	BitSet removed;
+
+	// The appended ratings
+	int[] users;
+	int[] items;
+	byte[] values;
+
+	// The timestamps of the appended ratings or null
+	long[] timestamps;
+
+	// The number of appended ratings
+	int appended;
+
+	// =====================================================================================
+
+	/**
+	 * Creates an empty table
+	 */
+	RatingTable() {
+		this(new RatingStore(new int[0], new int[0], new byte[0], 0));
+	}
+
+	/**
+	 * Creates a table for the ratings of a store
+	 * @param store the store, shared
+	 */
+	RatingTable(RatingStore store) {
+		this.store = store;
+		this.storeSize = store.getNumberOfRatings();
+		this.index = new RatingIndex(storeSize);
+		int[] offsets = store.getUserOffsets();
+		int[] rowItems = store.getUserItems();
+		for (int u = 0; u < store.getNumberOfUsers(); u++) {
+			int user = store.userId(u);
+			for (int k = offsets[u]; k < offsets[u + 1]; k++) {
+				index.put(user, store.itemId(rowItems[k]), k);
+			}
+		}
+		this.removed = new BitSet();
+		this.users = new int[0];
+		this.items = new int[0];
+		this.values = new byte[0];
+	}
+
+	/**
+	 * Creates a copy of a table which shares the store
+	 */
+	private RatingTable(RatingTable other) {
+		this.store = other.store;
+		this.storeSize = other.storeSize;
+		this.index = new RatingIndex(other.index);
+		this.removed = (BitSet) other.removed.clone();
+		this.users = Arrays.copyOf(other.users, other.appended);
+		this.items = Arrays.copyOf(other.items, other.appended);
+		this.values = Arrays.copyOf(other.values, other.appended);
+		if (other.timestamps != null) {
+			this.timestamps = Arrays.copyOf(other.timestamps, other.appended);
+		}
+		this.appended = other.appended;
+	}
+
+	/**
+	 * Returns an independent copy of the table. The store is shared.
+	 * @return the copy
+	 */
+	RatingTable copy() {
+		return new RatingTable(this);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the position of a rating
+	 * @param user the user id
+	 * @param item the item id
+	 * @return the position or -1 if there is no such rating
+	 */
+	int find(int user, int item) {
+		return index.get(user, item);
+	}
+
+	/**
+	 * Returns the value at a position
+	 */
+	byte getValue(int position) {
+		if (position < storeSize) {
+			return store.userValues[position];
+		}
+		return values[position - storeSize];
+	}
+
+	/**
+	 * Returns the timestamp at a position
+	 */
+	long getTimestamp(int position) {
+		if (position < storeSize) {
+			return store.userTimestamps == null ? RatingIndex.NO_TIMESTAMP : store.userTimestamps[position];
+		}
+		return timestamps == null ? RatingIndex.NO_TIMESTAMP : timestamps[position - storeSize];
+	}
+
+	/**
+	 * Tells if timestamps were stored
+	 */
+	boolean hasTimestamps() {
+		return store.userTimestamps != null || timestamps != null;
+	}
+
+	/**
+	 * The number of ratings
+	 */
+	int size() {
+		return index.size();
+	}
+
+	/**
+	 * Tells if ratings were added or changed since the store was built
+	 */
+	boolean hasAppended() {
+		return appended > 0;
+	}
+
+	/**
+	 * Tells if the store holds exactly the ratings of the table
+	 */
+	boolean isCompact() {
+		return appended == 0 && removed.isEmpty();
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Adds a rating unless the (user, item) pair is already rated
+	 * @return the position or -1 if there already is a rating
+	 */
+	int add(int user, int item, byte value) {
+		if (index.get(user, item) >= 0) {
+			return -1;
+		}
+		return append(user, item, value, RatingIndex.NO_TIMESTAMP);
+	}
+
+	/**
+	 * Changes the value of the rating at a position. A rating of the store is moved to the
+	 * appended ratings.
+	 */
+	void setValue(int user, int item, int position, byte value) {
+		if (position < storeSize) {
+			position = relocate(user, item, position);
+		}
+		values[position - storeSize] = value;
+	}
+
+	/**
+	 * Changes the timestamp of the rating at a position. A rating of the store is moved to the
+	 * appended ratings.
+	 */
+	void setTimestamp(int user, int item, int position, long timestamp) {
+		if (position < storeSize) {
+			position = relocate(user, item, position);
+		}
+		if (timestamps == null) {
+			timestamps = new long[values.length];
+			Arrays.fill(timestamps, RatingIndex.NO_TIMESTAMP);
+		}
+		timestamps[position - storeSize] = timestamp;
+	}
+
+	/**
+	 * Removes a rating. The value at the returned position can still be read.
+	 * @return the position of the removed rating or -1 if there was none
+	 */
+	int remove(int user, int item) {
+		int position = index.remove(user, item);
+		if (position >= 0) {
+			removed.set(position);
+		}
+		return position;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Moves a rating of the store to the appended ratings
+	 */
+	private int relocate(int user, int item, int position) {
+		removed.set(position);
+		return append(user, item, store.userValues[position], getTimestamp(position));
+	}
+
+	/**
+	 * Appends a rating and indexes it
+	 */
+	private int append(int user, int item, byte value, long timestamp) {
+		if (appended == values.length) {
+			int capacity = Math.max(16, values.length * 2);
+			users = Arrays.copyOf(users, capacity);
+			items = Arrays.copyOf(items, capacity);
+			values = Arrays.copyOf(values, capacity);
+			if (timestamps != null) {
+				int length = timestamps.length;
+				timestamps = Arrays.copyOf(timestamps, capacity);
+				Arrays.fill(timestamps, length, capacity, RatingIndex.NO_TIMESTAMP);
+			}
+		}
+		users[appended] = user;
+		items[appended] = item;
+		values[appended] = value;
+		if (timestamp != RatingIndex.NO_TIMESTAMP) {
+			if (timestamps == null) {
+				timestamps = new long[values.length];
+				Arrays.fill(timestamps, RatingIndex.NO_TIMESTAMP);
+			}
+			timestamps[appended] = timestamp;
+		}
+		int position = storeSize + appended;
+		appended++;
+		index.put(user, item, position);
+		return position;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Creates a table whose store holds the current ratings. This table is not changed.
+	 * @return the compacted table
+	 */
+	RatingTable compact() {
+		int n = size();
+		int[] newUsers = new int[n];
+		int[] newItems = new int[n];
+		byte[] newValues = new byte[n];
+		long[] newTimestamps = hasTimestamps() ? new long[n] : null;
+		int[] offsets = store.getUserOffsets();
+		int[] rowItems = store.getUserItems();
+		int k = 0;
+		for (int u = 0; u < store.getNumberOfUsers(); u++) {
+			for (int position = removed.nextClearBit(offsets[u]); position < offsets[u + 1]; position = removed.nextClearBit(position + 1)) {
+				newUsers[k] = store.userId(u);
+				newItems[k] = store.itemId(rowItems[position]);
+				newValues[k] = store.userValues[position];
+				if (newTimestamps != null) {
+					newTimestamps[k] = getTimestamp(position);
+				}
+				k++;
+			}
+		}
+		for (int j = 0; j < appended; j++) {
+			if (!removed.get(storeSize + j)) {
+				newUsers[k] = users[j];
+				newItems[k] = items[j];
+				newValues[k] = values[j];
+				if (newTimestamps != null) {
+					newTimestamps[k] = getTimestamp(storeSize + j);
+				}
+				k++;
+			}
+		}
+		return new RatingTable(new RatingStore(newUsers, newItems, newValues, newTimestamps, k));
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Returns the approximate size of the arrays in bytes
+	 * @return the size in bytes
+	 */
+	long getMemoryUsage() {
+		long timestampBytes = (timestamps == null) ? 0 : 8L * timestamps.length;
+		return store.getMemoryUsage() + index.getMemoryUsage() + 9L * values.length + timestampBytes + removed.size() / 8;
+	}
+
+}
@@ -0,0 +1,183 @@
+/** DJ **/
+package org.recommender101.data;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import org.recommender101.recommender.extensions.funksvd.RandomUtils;
+import org.recommender101.tools.Debug;
+
+/**
+ * Applies the constraints of a data loader while the ratings are parsed, so that only the
+ * surviving ratings are stored in the data model (see RatingFileParser.ChunkHandler):
+ * - User sampling: the users are ranked by a random hash of their ids and the n users with the
+ *   smallest hashes are retained. A user who is pushed out of the sample by a user with a smaller
+ *   hash is removed again, which happens rarely once the sample has settled.
+ * - Density: each rating is retained with the probability given by the density.
+ * - Binarization: the values are transformed per rating, see DefaultDataLoader.binarizeValue().
+ * - Minimum number of ratings per user: counted on the lines of the (sampled) users before the
+ *   density and the binarization are applied; the users are removed at the end (finish()).
+ *
+ * The sample and the density are random like in Utilities101.sampleNUsers() and
+ * applyDensityConstraint(); the density is met in expectation, not exactly. The random numbers
+ * are seeded with the seed of the loader (setSeed()), otherwise by RandomUtils.getRandom(), i.e.,
+ * they are repeatable after RandomUtils.useTestSeed(). Duplicate lines
+ * for a user and an item are resolved by the data model after the filtering.
+ */
+public class StreamingConstraints implements RatingFileParser.ChunkHandler {
+
+	// The data model which receives the ratings
+	DataModel dm;
+
+	// The loader with the constraint settings
+	DefaultDataLoader loader;
+
+	// The seed of the user hash
+	int seed;
+
+	// The random numbers of the density sampling
+	Random random;
+
+	// The sampled users and a max-heap of (hash << 32 | user) of the sampled users
+	Set<Integer> sampledUsers = new HashSet<Integer>();
+	PriorityQueue<Long> sample = new PriorityQueue<Long>(16, Collections.reverseOrder());
+
+	// The number of lines per user (for the minimum number of ratings)
+	RatingStatistics linesPerUser = new RatingStatistics();
+
+	// The retained ratings of the current chunk
+	int[] users = new int[0];
+	int[] items = new int[0];
+	byte[] values = new byte[0];
+	int size;
+
+	// The number of parsed lines
+	long lines;
+
+	// =====================================================================================
+
+	/**
+	 * Creates the filter
+	 * @param dm the data model which receives the retained ratings
+	 * @param loader the loader with the constraint settings
+	 */
+	public StreamingConstraints(DataModel dm, DefaultDataLoader loader) {
+		this.dm = dm;
+		this.loader = loader;
+		Random seeds = (loader.seed != null) ? new Random(loader.seed) : RandomUtils.getRandom();
+		this.seed = seeds.nextInt();
+		this.random = new Random(seeds.nextLong());
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Filters the ratings of a chunk and adds the retained ones to the data model
+	 */
+	public void handle(int[] chunkUsers, int[] chunkItems, byte[] chunkValues, int n) {
+		if (users.length < n) {
+			users = new int[n];
+			items = new int[n];
+			values = new byte[n];
+		}
+		size = 0;
+		for (int k = 0; k < n; k++) {
+			int user = chunkUsers[k];
+			if (loader.sampleNUsers > -1 && !isSampled(user)) {
+				continue;
+			}
+			if (loader.minNumberOfRatingsPerUser > 0) {
+				linesPerUser.add(user, 0);
+			}
+			if (loader.density < 1.0 && random.nextDouble() >= loader.density) {
+				continue;
+			}
+			int value = loader.binarizeValue(chunkValues[k]);
+			if (value < 0) {
+				continue;
+			}
+			users[size] = user;
+			items[size] = chunkItems[k];
+			values[size] = (byte) value;
+			size++;
+		}
+		lines += n;
+		flush();
+	}
+
+	/**
+	 * Adds the retained ratings of the current chunk to the data model
+	 */
+	void flush() {
+		dm.addRatings(users, items, values, size);
+		size = 0;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Tells if a user is in the sample, updates the sample if the user is new
+	 */
+	boolean isSampled(int user) {
+		if (sampledUsers.contains(user)) {
+			return true;
+		}
+		long entry = ((long) hash(user) << 32) | (user & 0xFFFFFFFFL);
+		if (sample.size() < loader.sampleNUsers) {
+			sample.add(entry);
+			sampledUsers.add(user);
+			return true;
+		}
+		if (sample.isEmpty() || entry >= sample.peek()) {
+			return false;
+		}
+		// the user replaces the user with the largest hash
+		int removed = (int) (long) sample.poll();
+		sampledUsers.remove(removed);
+		flush();
+		dm.removeUserWithRatings(removed);
+		sample.add(entry);
+		sampledUsers.add(user);
+		return true;
+	}
+
+	/**
+	 * A random permutation of the user ids (the finalizer of MurmurHash3 on the seeded id)
+	 */
+	int hash(int user) {
+		int h = user ^ seed;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Removes the users with too few ratings. To be called after parsing.
+	 */
+	public void finish() {
+		if (loader.minNumberOfRatingsPerUser > 0) {
+			int[] candidates = new int[dm.getUsers().size()];
+			int n = 0;
+			for (Integer user : dm.getUsers()) {
+				if (linesPerUser.getCount(user) < loader.minNumberOfRatingsPerUser) {
+					candidates[n++] = user;
+				}
+			}
+			for (int k = 0; k < n; k++) {
+				dm.removeUserWithRatings(candidates[k]);
+			}
+		}
+		dm.recalculateUserAverages();
+		Debug.log("DataLoader: Retaining " + dm.getUsers().size() + " users and " + dm.getRatings().size()
+				+ " ratings of " + lines + " lines");
+	}
+
+}
@@ -5,6 +5,8 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -36,7 +38,6 @@ public class MovieLens10MDataPreparator {
 	public static String TARGET_DIRECTORY = "data/movielens/";
 	public static String TEMP_FILE = "ml-10m.zip";
 	public static String DOWNLOAD_URL = "http://www.grouplens.org/sites/www.grouplens.org/external_files/data/ml-10m.zip";
-	public static String TARGET_FILE = "ratings.dat";
 	public static String FINAL_FILE = "MovieLens5MRatings.txt";
 	public static String FILE_TO_EXTRACT ="ml-10M100K/ratings.dat";
 	public static String CONTENT_ZIP = "MovieLens10MContentDescriptions.zip";
@@ -76,18 +77,22 @@ public class MovieLens10MDataPreparator {
 		// Get the zip file
 		System.out.println("Downloading data from grouplens.org (64mb). This may take some time");
 		Utilities101.downloadFile(TARGET_DIRECTORY, TEMP_FILE, DOWNLOAD_URL);
-		System.out.println("Data has been downloaded, extracting zip file");
-		// Extract the ratings file
-		Utilities101.extractFileFromZip(TARGET_DIRECTORY, TEMP_FILE, FILE_TO_EXTRACT, TARGET_FILE);
-		System.out.println("Extracted rating information from zip file");		
+		System.out.println("Data has been downloaded");
 		// Extract the contents file
 		Utilities101.extractFileFromZip(TARGET_DIRECTORY, CONTENT_ZIP, CONTENT_FILE, CONTENT_FILE);
 		System.out.println("Extracted content information from zip file");	
 		// get the correct product ids
 		Set<Integer> relevantProductIDs = getIDsOfMoviesWithContentInfo(TARGET_DIRECTORY + CONTENT_FILE);
-		// create the ratings file from the given one and remove movies without content info
-		removeRatingsOfMoviesWithoutContentInfo(TARGET_DIRECTORY, TARGET_FILE, relevantProductIDs, FINAL_FILE);
-		System.out.println("Extracted relevant ratings from data file to " + FINAL_FILE);
+		// create the ratings file and remove movies without content info while reading the
+		// ratings from the zip file, i.e., the ratings are not extracted to disk first
+		InputStream ratings = Utilities101.openCompressedFile(TARGET_DIRECTORY + TEMP_FILE, FILE_TO_EXTRACT);
+		try {
+			removeRatingsOfMoviesWithoutContentInfo(ratings, relevantProductIDs, TARGET_DIRECTORY, FINAL_FILE);
+		}
+		finally {
+			ratings.close();
+		}
+		System.out.println("Extracted relevant ratings from zip file to " + FINAL_FILE);
 		// create the tf-idf vectors
 		System.out.println("Creating TF-IDF vectors from content information, creating temporary files");
 		Set<String> filenames = runFileSplitter(TARGET_DIRECTORY, CONTENT_FILE, TMP_DIRECTORY);
@@ -100,11 +105,12 @@ public class MovieLens10MDataPreparator {
 	
 	/**
 	 * A method that creates a new ratings file and removes all lines that contain irrelevant product ids
+	 * @param ratings the original ratings, e.g., the decompressed stream of the zip file. Not closed.
 	 */
-	void removeRatingsOfMoviesWithoutContentInfo(String targetDirectory, String targetFile, Set<Integer> relevantProductIDs, String resultFile) 
+	void removeRatingsOfMoviesWithoutContentInfo(InputStream ratings, Set<Integer> relevantProductIDs, String targetDirectory, String resultFile) 
 			throws Exception {
 		System.out.println("Extracting ratings with content information");
-		BufferedReader reader = new BufferedReader(new FileReader(targetDirectory + targetFile));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(ratings), 1 << 20);
 		BufferedWriter writer = new BufferedWriter(new FileWriter(targetDirectory + resultFile));
 		String line;
 		String[] tokens;
@@ -127,7 +133,6 @@ public class MovieLens10MDataPreparator {
 			line = reader.readLine();
 		}
 		System.out.println("Wrote " + cnt + " ratings to target file " + resultFile);
-		reader.close();
 		writer.close();
 	}
 
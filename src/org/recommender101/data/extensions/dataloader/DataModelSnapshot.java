@@ -0,0 +1,294 @@
+/** DJ **/
+package org.recommender101.data.extensions.dataloader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Set;
+
+import org.recommender101.data.DataModel;
+import org.recommender101.data.Rating;
+import org.recommender101.data.RatingIndex;
+import org.recommender101.data.RatingStore;
+
+/**
+ * Writes a data model to a binary snapshot file and reads it back. Loading a snapshot
+ * avoids parsing the text file and re-applying the constraints of the data loader.
+ *
+ * Format (big endian, version 1):
+ * <pre>
+ * int magic ("R101"), int version, int flags (1 = timestamps, 2 = implicit ratings)
+ * int minRatingValue, int maxRatingValue
+ * int nbUsers, int nbItems, int nbRatings
+ * int[nbUsers] user ids (ascending), int[nbItems] item ids (ascending)
+ * int[nbUsers + 1] row offsets, int[nbRatings] item indices, byte[nbRatings] values
+ * long[nbRatings] timestamps                                      (if flag 1)
+ * int nbImplicit, int[nbImplicit] users, int[nbImplicit] items, byte[nbImplicit] values  (if flag 2)
+ * </pre>
+ * The ratings are stored per user (see {@link RatingStore}). When reading, the file is
+ * memory-mapped section by section.
+ */
+public class DataModelSnapshot {
+
+	public static final int MAGIC = 0x52313031;
+	public static final int VERSION = 1;
+
+	static final int FLAG_TIMESTAMPS = 1;
+	static final int FLAG_IMPLICIT = 2;
+
+	// The maximum size of a mapped region when reading
+	static final int MAX_MAPPED_REGION = 1 << 28;
+
+	// =====================================================================================
+
+	/**
+	 * Writes a snapshot of the data model. Timestamps are included if the model has timestamps
+	 * or contains a timestamp map (see DefaultDataLoaderWithTimeStamp).
+	 * @param dm the data model
+	 * @param filename the target file
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static void write(DataModel dm, String filename) throws IOException {
+		RatingStore store = dm.getRatingStore();
+		Map<Rating, Long> timestamps = (Map<Rating, Long>) dm.getExtraInformation(
+				DefaultDataLoaderWithTimeStamp.DM_EXTRA_INFO_TIMESTAMP_KEY);
+		Set<Rating> implicitRatings = dm.getImplicitRatings();
+		int flags = 0;
+		if (dm.hasTimestamps() || timestamps != null) {
+			flags |= FLAG_TIMESTAMPS;
+		}
+		if (implicitRatings != null && implicitRatings.size() > 0) {
+			flags |= FLAG_IMPLICIT;
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(flags);
+			out.writeInt(dm.getMinRatingValue());
+			out.writeInt(dm.getMaxRatingValue());
+			int nbUsers = store.getNumberOfUsers();
+			int nbItems = store.getNumberOfItems();
+			out.writeInt(nbUsers);
+			out.writeInt(nbItems);
+			out.writeInt(store.getNumberOfRatings());
+			for (int u = 0; u < nbUsers; u++) {
+				out.writeInt(store.userId(u));
+			}
+			for (int i = 0; i < nbItems; i++) {
+				out.writeInt(store.itemId(i));
+			}
+			for (int offset : store.getUserOffsets()) {
+				out.writeInt(offset);
+			}
+			for (int item : store.getUserItems()) {
+				out.writeInt(item);
+			}
+			out.write(store.getUserValues());
+
+			if ((flags & FLAG_TIMESTAMPS) != 0) {
+				// the map is keyed by ratings, which are equal if user and item are equal
+				int[] offsets = store.getUserOffsets();
+				int[] rowItems = store.getUserItems();
+				Rating key = new Rating(0, 0, 0);
+				for (int u = 0; u < nbUsers; u++) {
+					key.user = store.userId(u);
+					for (int k = offsets[u]; k < offsets[u + 1]; k++) {
+						key.item = store.itemId(rowItems[k]);
+						if (dm.hasTimestamps()) {
+							out.writeLong(dm.getTimestamp(key.user, key.item));
+						}
+						else {
+							Long timestamp = timestamps.get(key);
+							out.writeLong(timestamp == null ? RatingIndex.NO_TIMESTAMP : timestamp);
+						}
+					}
+				}
+			}
+
+			if ((flags & FLAG_IMPLICIT) != 0) {
+				int n = implicitRatings.size();
+				int[] users = new int[n];
+				int[] items = new int[n];
+				byte[] values = new byte[n];
+				int k = 0;
+				for (Rating r : implicitRatings) {
+					users[k] = r.user;
+					items[k] = r.item;
+					values[k] = r.rating;
+					k++;
+				}
+				out.writeInt(n);
+				for (int user : users) {
+					out.writeInt(user);
+				}
+				for (int item : items) {
+					out.writeInt(item);
+				}
+				out.write(values);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Reads a snapshot into a (usually empty) data model
+	 * @param dm the data model to fill
+	 * @param filename the snapshot file
+	 * @return the number of loaded ratings
+	 * @throws IOException if the file cannot be read or is not a snapshot of a supported version
+	 */
+	public static int read(DataModel dm, String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			MappedInput in = new MappedInput(file.getChannel());
+			if (in.readInt() != MAGIC) {
+				throw new IOException(filename + " is not a data model snapshot");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version " + version + " in " + filename);
+			}
+			int flags = in.readInt();
+			dm.setMinRatingValue(in.readInt());
+			dm.setMaxRatingValue(in.readInt());
+			int nbUsers = in.readInt();
+			int nbItems = in.readInt();
+			int nbRatings = in.readInt();
+			int[] userIds = in.readInts(nbUsers);
+			int[] itemIds = in.readInts(nbItems);
+			int[] offsets = in.readInts(nbUsers + 1);
+			int[] items = in.readInts(nbRatings);
+			byte[] values = in.readBytes(nbRatings);
+
+			// back to ids
+			int[] users = new int[nbRatings];
+			for (int u = 0; u < nbUsers; u++) {
+				for (int k = offsets[u]; k < offsets[u + 1]; k++) {
+					users[k] = userIds[u];
+					items[k] = itemIds[items[k]];
+				}
+			}
+			long[] timestamps = null;
+			if ((flags & FLAG_TIMESTAMPS) != 0) {
+				timestamps = in.readLongs(nbRatings);
+			}
+			dm.addRatings(users, items, values, timestamps, nbRatings);
+
+			if ((flags & FLAG_IMPLICIT) != 0) {
+				int n = in.readInt();
+				int[] implicitUsers = in.readInts(n);
+				int[] implicitItems = in.readInts(n);
+				byte[] implicitValues = in.readBytes(n);
+				for (int k = 0; k < n; k++) {
+					dm.addImplicitRating(new Rating(implicitUsers[k], implicitItems[k], implicitValues[k]));
+				}
+			}
+			return nbRatings;
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Sequential reading of primitive arrays from a file. Maps one region of the file at a time,
+	 * so that files larger than 2 GB can be read.
+	 */
+	static class MappedInput {
+
+		FileChannel channel;
+
+		// The file position of the current region
+		long regionStart;
+
+		// The current region
+		MappedByteBuffer region;
+
+		MappedInput(FileChannel channel) throws IOException {
+			this.channel = channel;
+			map(0);
+		}
+
+		/**
+		 * Maps the region starting at a file position
+		 */
+		void map(long position) throws IOException {
+			long length = Math.min(MAX_MAPPED_REGION, channel.size() - position);
+			if (length <= 0) {
+				throw new IOException("Unexpected end of the snapshot file");
+			}
+			regionStart = position;
+			region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		}
+
+		/**
+		 * Makes sure that the next bytes are in the current region
+		 */
+		void require(int bytes) throws IOException {
+			if (region.remaining() < bytes) {
+				map(regionStart + region.position());
+				if (region.remaining() < bytes) {
+					throw new IOException("Unexpected end of the snapshot file");
+				}
+			}
+		}
+
+		int readInt() throws IOException {
+			require(4);
+			return region.getInt();
+		}
+
+		int[] readInts(int n) throws IOException {
+			int[] result = new int[n];
+			int k = 0;
+			while (k < n) {
+				require(4);
+				int count = Math.min(n - k, region.remaining() / 4);
+				region.asIntBuffer().get(result, k, count);
+				region.position(region.position() + 4 * count);
+				k += count;
+			}
+			return result;
+		}
+
+		long[] readLongs(int n) throws IOException {
+			long[] result = new long[n];
+			int k = 0;
+			while (k < n) {
+				require(8);
+				int count = Math.min(n - k, region.remaining() / 8);
+				region.asLongBuffer().get(result, k, count);
+				region.position(region.position() + 8 * count);
+				k += count;
+			}
+			return result;
+		}
+
+		byte[] readBytes(int n) throws IOException {
+			byte[] result = new byte[n];
+			int k = 0;
+			while (k < n) {
+				require(1);
+				int count = Math.min(n - k, region.remaining());
+				region.get(result, k, count);
+				k += count;
+			}
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,308 @@
+/** DJ **/
+package org.recommender101.data.extensions.dataloader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.recommender101.data.DataModel;
+import org.recommender101.data.DefaultDataLoader;
+import org.recommender101.data.OutOfCoreDataModel;
+import org.recommender101.data.RatingFileParser;
+import org.recommender101.data.RatingStatistics;
+import org.recommender101.eval.impl.Recommender101Impl;
+import org.recommender101.tools.Debug;
+
+/**
+ * Loads the ratings into an {@link OutOfCoreDataModel}. If the model file does not exist, it is
+ * created from the rating file (see RatingFileParser for the accepted formats, .gz and .zip
+ * files are decompressed while they are parsed) without holding the ratings in memory:
+ * 1. A first pass over the file counts the ratings per user and collects the item ids.
+ * 2. A second pass writes each rating into the slot of its user in memory-mapped temporary files.
+ * 3. The runs of the users are sorted by item, de-duplicated (the first rating of a user for an
+ *    item is kept like in DataModel.addRating()), binarized and written sequentially to the
+ *    model file with delta-encoded item indices.
+ *
+ * The minimum number of ratings per user and the binarization are applied while the model file
+ * is created. Like in the DefaultDataLoader, the users are filtered before the binarization;
+ * duplicate lines for the same user and item count towards the minimum. Sampling users and
+ * reducing the density are not supported. The constraints are not applied again to an existing
+ * model file.
+ */
+public class OutOfCoreDataLoader extends DefaultDataLoader {
+
+	// The model file
+	protected String modelFile = null;
+
+	// The temporary files are mapped in segments of 1 GB
+	static final int SEGMENT_BITS = 30;
+	static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+	// =====================================================================================
+
+	/**
+	 * Opens the model file, creates it from the rating file first if needed
+	 */
+	@Override
+	public void loadData(DataModel dm) throws Exception {
+		if (!(dm instanceof OutOfCoreDataModel)) {
+			throw new Exception("The OutOfCoreDataLoader requires DataModelClass=" + OutOfCoreDataModel.class.getName());
+		}
+		if (modelFile == null) {
+			throw new Exception("OutOfCoreDataLoader: No modelFile given");
+		}
+		if (sampleNUsers > -1 || density < 1.0) {
+			throw new Exception("OutOfCoreDataLoader: Sampling users and reducing the density are not supported");
+		}
+		if (!new File(modelFile).exists()) {
+			long start = System.currentTimeMillis();
+			createModelFile();
+			Debug.log("OutOfCoreDataLoader:loadData: Created " + modelFile + " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		((OutOfCoreDataModel) dm).open(modelFile);
+		Debug.log("OutOfCoreDataLoader:loadData: Opened " + modelFile + " with " + dm.getUserStatistics().getTotalCount() + " ratings");
+		Debug.log("OutOfCoreDataLoader:loadData: " + dm.getUsers().size() + " users and " + dm.getItems().size() + " items.");
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Creates the model file from the rating file
+	 * @throws IOException
+	 */
+	protected void createModelFile() throws IOException {
+		RatingFileParser parser = new RatingFileParser(Recommender101Impl.NUM_OF_THREADS);
+
+		// Pass 1: the ratings per user and the items
+		final RatingStatistics linesPerUser = new RatingStatistics();
+		final RatingStatistics linesPerItem = new RatingStatistics();
+		parseRatings(parser, new RatingFileParser.ChunkHandler() {
+			public void handle(int[] users, int[] items, byte[] values, int n) {
+				for (int k = 0; k < n; k++) {
+					linesPerUser.add(users[k], 0);
+					linesPerItem.add(items[k], 0);
+				}
+			}
+		});
+		int[] candidates = linesPerUser.getIds();
+		int nbUsers = 0;
+		for (int user : candidates) {
+			if (linesPerUser.getCount(user) >= minNumberOfRatingsPerUser) {
+				candidates[nbUsers++] = user;
+			}
+		}
+		final int[] userIds = Arrays.copyOf(candidates, nbUsers);
+		Arrays.sort(userIds);
+		final int[] itemIds = linesPerItem.getIds();
+		Arrays.sort(itemIds);
+		final long[] slots = new long[nbUsers + 1];
+		for (int u = 0; u < nbUsers; u++) {
+			slots[u + 1] = slots[u] + linesPerUser.getCount(userIds[u]);
+		}
+		long nbSlots = slots[nbUsers];
+
+		// Pass 2: the item indices and values in the slots of the users
+		File directory = new File(modelFile).getAbsoluteFile().getParentFile();
+		File itemFile = File.createTempFile("r101oc", ".items", directory);
+		File valueFile = File.createTempFile("r101oc", ".values", directory);
+		try {
+			final MappedFile slotItems = new MappedFile(itemFile, 4 * nbSlots);
+			final MappedFile slotValues = new MappedFile(valueFile, nbSlots);
+			final int[] filled = new int[nbUsers];
+			parseRatings(parser, new RatingFileParser.ChunkHandler() {
+				public void handle(int[] users, int[] items, byte[] values, int n) {
+					for (int k = 0; k < n; k++) {
+						int u = Arrays.binarySearch(userIds, users[k]);
+						if (u < 0) {
+							continue;
+						}
+						long slot = slots[u] + filled[u]++;
+						slotItems.putInt(4 * slot, Arrays.binarySearch(itemIds, items[k]));
+						slotValues.put(slot, values[k]);
+					}
+				}
+			});
+
+			// Pass 3: sort and encode the runs
+			writeModelFile(userIds, itemIds, slots, slotItems, slotValues);
+		}
+		finally {
+			if (!itemFile.delete()) {
+				itemFile.deleteOnExit();
+			}
+			if (!valueFile.delete()) {
+				valueFile.deleteOnExit();
+			}
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Writes the runs and then the header of the model file
+	 */
+	void writeModelFile(int[] userIds, int[] itemIds, long[] slots, MappedFile slotItems, MappedFile slotValues) throws IOException {
+		int nbUsers = userIds.length;
+		int nbItems = itemIds.length;
+		long[] runOffsets = new long[nbUsers + 1];
+		int[] userCounts = new int[nbUsers];
+		long[] userSums = new long[nbUsers];
+		long[] userSumsOfSquares = new long[nbUsers];
+		int[] itemCounts = new int[nbItems];
+		long[] itemSums = new long[nbItems];
+		long[] itemSumsOfSquares = new long[nbItems];
+		long nbRatings = 0;
+
+		RandomAccessFile file = new RandomAccessFile(modelFile, "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			channel.position(OutOfCoreDataModel.getHeaderSize(nbUsers, nbItems));
+			BufferedOutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+			long written = 0;
+			long[] keys = new long[16];
+			for (int u = 0; u < nbUsers; u++) {
+				int n = (int) (slots[u + 1] - slots[u]);
+				if (keys.length < n) {
+					keys = new long[Math.max(n, 2 * keys.length)];
+				}
+				// item index and the position in the file, i.e., the first of duplicates comes first
+				for (int k = 0; k < n; k++) {
+					keys[k] = ((long) slotItems.getInt(4 * (slots[u] + k)) << 32) | k;
+				}
+				Arrays.sort(keys, 0, n);
+				// the last item seen and the last item written
+				int last = -1;
+				int previous = -1;
+				for (int k = 0; k < n; k++) {
+					int item = (int) (keys[k] >>> 32);
+					if (item == last) {
+						continue;
+					}
+					last = item;
+					int value = binarizeValue(slotValues.get(slots[u] + (int) keys[k]));
+					if (value < 0) {
+						continue;
+					}
+					written += writeVarint(out, item - previous);
+					out.write(value);
+					written++;
+					previous = item;
+					userCounts[u]++;
+					userSums[u] += value;
+					userSumsOfSquares[u] += value * value;
+					itemCounts[item]++;
+					itemSums[item] += value;
+					itemSumsOfSquares[item] += value * value;
+				}
+				nbRatings += userCounts[u];
+				runOffsets[u + 1] = written;
+			}
+			out.flush();
+
+			channel.position(0);
+			DataOutputStream header = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			header.writeInt(OutOfCoreDataModel.MAGIC);
+			header.writeInt(OutOfCoreDataModel.VERSION);
+			header.writeInt(nbUsers);
+			header.writeInt(nbItems);
+			header.writeLong(nbRatings);
+			writeInts(header, userIds);
+			writeInts(header, itemIds);
+			writeLongs(header, runOffsets);
+			writeInts(header, userCounts);
+			writeLongs(header, userSums);
+			writeLongs(header, userSumsOfSquares);
+			writeInts(header, itemCounts);
+			writeLongs(header, itemSums);
+			writeLongs(header, itemSumsOfSquares);
+			header.flush();
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	static int writeVarint(BufferedOutputStream out, int value) throws IOException {
+		int bytes = 1;
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+			bytes++;
+		}
+		out.write(value);
+		return bytes;
+	}
+
+	static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+		for (long value : values) {
+			out.writeLong(value);
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Sets the file of the out-of-core model
+	 * @param name the file name
+	 */
+	public void setModelFile(String name) {
+		this.modelFile = name;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * A temporary file of a given size, mapped for random reads and writes
+	 */
+	static class MappedFile {
+
+		MappedByteBuffer[] segments;
+
+		MappedFile(File f, long length) throws IOException {
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			try {
+				file.setLength(length);
+				segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS)];
+				for (int s = 0; s < segments.length; s++) {
+					long start = (long) s << SEGMENT_BITS;
+					segments[s] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, start,
+							Math.min(SEGMENT_MASK + 1, length - start));
+				}
+			}
+			finally {
+				file.close();
+			}
+		}
+
+		// ints never cross a segment boundary as the segment size is a multiple of 4
+		void putInt(long position, int value) {
+			segments[(int) (position >>> SEGMENT_BITS)].putInt((int) (position & SEGMENT_MASK), value);
+		}
+
+		int getInt(long position) {
+			return segments[(int) (position >>> SEGMENT_BITS)].getInt((int) (position & SEGMENT_MASK));
+		}
+
+		void put(long position, byte value) {
+			segments[(int) (position >>> SEGMENT_BITS)].put((int) (position & SEGMENT_MASK), value);
+		}
+
+		byte get(long position) {
+			return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK));
+		}
+	}
+
+}
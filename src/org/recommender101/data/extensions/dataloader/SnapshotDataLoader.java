@@ -0,0 +1,61 @@
+/** DJ **/
+package org.recommender101.data.extensions.dataloader;
+
+import java.io.File;
+
+import org.recommender101.data.DataModel;
+import org.recommender101.data.DefaultDataLoader;
+import org.recommender101.tools.Debug;
+
+/**
+ * A data loader which reads a binary snapshot of a data model (see {@link DataModelSnapshot}).
+ * The constraints of the loader (sampling, min ratings, density, binarization) are not applied
+ * again, the snapshot contains the data as it was prepared.
+ *
+ * If the snapshot does not exist and a source file is given, the source file is loaded like
+ * in the DefaultDataLoader, the constraints are applied and the snapshot is written for the
+ * next run. Example:
+ * DataLoaderClass=org.recommender101.data.extensions.dataloader.SnapshotDataLoader:filename=data/movielens/ml-100k.r101|sourceFile=data/movielens/ml-100k/MovieLens100kRatings.txt
+ */
+public class SnapshotDataLoader extends DefaultDataLoader {
+
+	// The text file used when the snapshot does not exist yet
+	protected String sourceFile = null;
+
+	// =====================================================================================
+
+	/**
+	 * Loads the snapshot or creates it from the source file
+	 */
+	@Override
+	public void loadData(DataModel dm) throws Exception {
+		File snapshot = new File(filename);
+		if (!snapshot.exists() && sourceFile != null) {
+			String snapshotFile = filename;
+			filename = sourceFile;
+			try {
+				super.loadData(dm);
+			}
+			finally {
+				filename = snapshotFile;
+			}
+			DataModelSnapshot.write(dm, snapshotFile);
+			Debug.log("SnapshotDataLoader:loadData: Wrote snapshot " + snapshotFile);
+			return;
+		}
+		int counter = DataModelSnapshot.read(dm, filename);
+		Debug.log("SnapshotDataLoader:loadData: Loaded " + counter + " ratings from snapshot " + filename);
+		Debug.log("SnapshotDataLoader:loadData: " + dm.getUsers().size() + " users and " + dm.getItems().size() + " items.");
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Sets the text file from which the snapshot is created if it does not exist
+	 * @param name the file name
+	 */
+	public void setSourceFile(String name) {
+		this.sourceFile = name;
+	}
+
+}
@@ -1,18 +1,17 @@
 /** DJ **/
 package org.recommender101.data.extensions.datasplitter;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.recommender101.data.DataModel;
 import org.recommender101.data.DataSplitter;
+import org.recommender101.data.FoldAssignment;
 import org.recommender101.data.Rating;
+import org.recommender101.data.RatingIndex;
 import org.recommender101.data.extensions.dataloader.DefaultDataLoaderWithTimeStamp;
-import org.recommender101.tools.Utilities101;
 
 public class TimeBasedDataSplitter extends DataSplitter {
 
@@ -21,58 +20,95 @@ public class TimeBasedDataSplitter extends DataSplitter {
 	 * This method sorts the ratings by time stamp and provides one data split where
 	 * the last split contains the latest ratings
 	 */
-	
-	@SuppressWarnings("unchecked")
 	@Override
 	public List<Set<Rating>> splitData(DataModel dataModel) throws Exception {
-		// Split the data set according to the given percentage
-		// Check if the time stamp info is there
+		return assignFolds(dataModel).toSplits();
+	}
 
-		List<Set<Rating>> result = new ArrayList<Set<Rating>>();
-		Set<Rating> trainingSet = new HashSet<Rating>();
-		Set<Rating> testSet = new HashSet<Rating>();
-		result.add(trainingSet); 
-		result.add(testSet);
+	// =====================================================================================
 
-		Map<Rating, Long> timestamps = (Map<Rating, Long>) dataModel
-						.getExtraInformation(DefaultDataLoaderWithTimeStamp.DM_EXTRA_INFO_TIMESTAMP_KEY);
-		if (timestamps == null) {
-			throw new Exception( "TimeBasedDataSplitter: No timestamp information available");
-		}
+	/**
+	 * Sorts the ratings of each user by time stamp. The newest ratings are assigned to
+	 * fold 1, the others to fold 0.
+	 */
+	@Override
+	public FoldAssignment assignFolds(DataModel dataModel) throws Exception {
+		FoldAssignment folds = new FoldAssignment(dataModel, 2);
+		long[] times = getTimestamps(dataModel, folds);
+		int[] offsets = folds.getRatingStore().getUserOffsets();
+		long[] sorted = new long[0];
 		// For each user, retain testPercentage ratings
-		Set<Rating> userRatings = null;
-		for (Integer user : dataModel.getUsers()) {
-			// get a copy of the user ratings
-			userRatings = new HashSet<Rating>(dataModel.getRatingsPerUser().get(user));
-			double ratingsToKeep = userRatings.size() * (testPercentage / (double) 100);
-			double ratingsToRemove = userRatings.size() - ratingsToKeep;
-			ratingsToKeep = Math.ceil(ratingsToKeep);
-			// create a map for the user
-			Map<Rating, Long> userRatingsWithTimeStamp = new HashMap<Rating, Long>();
-			for (Rating r : userRatings) {
-				userRatingsWithTimeStamp.put(r, timestamps.get(r));
+		for (int u = 0; u < offsets.length - 1; u++) {
+			int from = offsets[u];
+			int nbRatings = offsets[u + 1] - from;
+			double ratingsToKeep = nbRatings * (testPercentage / (double) 100);
+			double ratingsToRemove = nbRatings - ratingsToKeep;
+			// The newest go to the testset
+			int nbTest = Math.min(nbRatings, (int) Math.floor(ratingsToRemove));
+			if (nbTest <= 0) {
+				for (int k = from; k < from + nbRatings; k++) {
+					folds.setFold(k, 0);
+				}
+				continue;
+			}
+			// The timestamp of the oldest test rating
+			if (sorted.length < nbRatings) {
+				sorted = new long[nbRatings];
+			}
+			System.arraycopy(times, from, sorted, 0, nbRatings);
+			Arrays.sort(sorted, 0, nbRatings);
+			long threshold = sorted[nbRatings - nbTest];
+			// Ratings with the threshold time are test ratings until the number is reached
+			int nbNewer = 0;
+			for (int k = from; k < from + nbRatings; k++) {
+				if (times[k] > threshold) {
+					nbNewer++;
+				}
 			}
-			// Sort in descending order or timestamp
-			Map<Rating, Long> sortedRatings = Utilities101.sortByValueDescending(userRatingsWithTimeStamp);
-			int counter = 1;
-			for (Rating r: sortedRatings.keySet()) {
-				if (counter <= ratingsToRemove) {
-					// The newest go to the testset
-					testSet.add(r);
+			int nbAtThreshold = nbTest - nbNewer;
+			for (int k = from; k < from + nbRatings; k++) {
+				if (times[k] > threshold) {
+					folds.setFold(k, 1);
+				}
+				else if (times[k] == threshold && nbAtThreshold > 0) {
+					folds.setFold(k, 1);
+					nbAtThreshold--;
 				}
 				else {
-					trainingSet.add(r);
+					folds.setFold(k, 0);
 				}
-				counter++;
 			}
-//			System.out.println("items in the training set " + trainingSet.size());
-//			System.out.println("items in the test set " + testSet.size());
-//			System.out.println("Training " + trainingSet);
-//			System.out.println("test: " + testSet);
+		}
+		return folds;
+	}
+
+	// =====================================================================================
 
+	/**
+	 * Returns the timestamps in the order of the fold assignment. They are taken from the data 
+	 * model or from a timestamp map in the extra information.
+	 */
+	@SuppressWarnings("unchecked")
+	long[] getTimestamps(DataModel dataModel, FoldAssignment folds) throws Exception {
+		long[] result = new long[folds.size()];
+		if (dataModel.hasTimestamps()) {
+			for (int k = 0; k < result.length; k++) {
+				Rating r = folds.getRating(k);
+				result[k] = dataModel.getTimestamp(r.user, r.item);
+			}
+			return result;
+		}
+		// Check if the time stamp info is there
+		Map<Rating, Long> timestamps = (Map<Rating, Long>) dataModel
+						.getExtraInformation(DefaultDataLoaderWithTimeStamp.DM_EXTRA_INFO_TIMESTAMP_KEY);
+		if (timestamps == null) {
+			throw new Exception( "TimeBasedDataSplitter: No timestamp information available");
+		}
+		for (int k = 0; k < result.length; k++) {
+			Long time = timestamps.get(folds.getRating(k));
+			result[k] = (time == null) ? RatingIndex.NO_TIMESTAMP : time;
 		}
-	 
-	 return result;
+		return result;
 	}
 
 	// =====================================================================================
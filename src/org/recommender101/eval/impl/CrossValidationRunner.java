@@ -16,6 +16,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.recommender101.data.DataModel;
 import org.recommender101.data.DataSplitter;
+import org.recommender101.data.FoldAssignment;
 import org.recommender101.data.Rating;
 import org.recommender101.eval.interfaces.EvaluationResult;
 import org.recommender101.recommender.AbstractRecommender;
@@ -113,10 +114,20 @@ public class CrossValidationRunner {
 		// DEBUG setting the number of threads here
 		int numOfThreads = Recommender101Impl.NUM_OF_THREADS;
 
-		List<Set<Rating>> dataSplits = dataSplitter.splitData(dataModel);
-
-		// DEBUG: Limit nb of checks
-		int xvalidationRounds = dataSplits.size();
+		// The training and test data of the rounds are views on the data model, the folds are
+		// remembered in one compact assignment. The rating sets are only needed for the other
+		// split creation method.
+		FoldAssignment folds = null;
+		List<Set<Rating>> dataSplits = null;
+		int xvalidationRounds;
+		if (useDifferentialSplitCreation) {
+			folds = dataSplitter.assignFolds(dataModel);
+			xvalidationRounds = folds.getNbFolds();
+		}
+		else {
+			dataSplits = dataSplitter.splitData(dataModel);
+			xvalidationRounds = dataSplits.size();
+		}
 
 		// DEBUG Option
 		String maxValRoundsStr = Recommender101Impl.properties.getProperty("Debug.MaxValidationRounds");
@@ -162,30 +173,38 @@ public class CrossValidationRunner {
 			new Thread(workers[i]).start();
 		}
 
+		// The threads which are not needed for running experiments in parallel evaluate the users
+		// of an experiment in parallel
+		int evaluationThreads = Math.max(1, numOfThreads / Math.max(1, workers.length));
+
 		// innerLoopSize contains the number of experiments that have to be assigned on each validation round 
 		int innerLoopSize = algorithms.size()/xvalidationRounds;
+
 		// Main loop iterating over the validation rounds
 		for (int vround = 0; vround < xvalidationRounds; vround++) {
 
-			if (dataSplitter.getSpecialTestSplits() == null) {
-				// Set the test data set (the current index)
-				testData = dataSplits.get(vround);
-				// Get the rest
-				trainingData.clear();
-				for (int i = 0; i < dataSplits.size(); i++) {
-					if (i != vround) {
-						trainingData.addAll(dataSplits.get(i));
+			// The rating sets are only needed when the data models are not created as views
+			if (!useDifferentialSplitCreation) {
+				if (dataSplitter.getSpecialTestSplits() == null) {
+					// Set the test data set (the current index)
+					testData = dataSplits.get(vround);
+					// Get the rest
+					trainingData.clear();
+					for (int i = 0; i < dataSplits.size(); i++) {
+						if (i != vround) {
+							trainingData.addAll(dataSplits.get(i));
+						}
 					}
 				}
-			}
-			else {
-				testData = dataSplitter.getSpecialTestSplits().get(vround);
-				System.out.println("Have special test data of size: " + testData.size());
-				trainingData.clear();
-				// Set the training data to the full model and remove the current test data
-				trainingData.addAll(dataSplits.get(0));
-				trainingData.removeAll(testData);
-				System.out.println("Remaining training data: " + trainingData.size());
+				else {
+					testData = dataSplitter.getSpecialTestSplits().get(vround);
+					System.out.println("Have special test data of size: " + testData.size());
+					trainingData.clear();
+					// Set the training data to the full model and remove the current test data
+					trainingData.addAll(dataSplits.get(0));
+					trainingData.removeAll(testData);
+					System.out.println("Remaining training data: " + trainingData.size());
+				}
 			}
 
 			DataModel trainingDM;
@@ -194,10 +213,8 @@ public class CrossValidationRunner {
             // Choose split creation method
             if (useDifferentialSplitCreation) {
 
-                   trainingDM = DataModel.copyDataModelAndRemoveRatings(
-                          dataModel, testData);
-                   testDM = DataModel.copyDataModelAndRemoveRatings(
-                          dataModel, trainingData);
+                   trainingDM = folds.getTrainingModel(vround);
+                   testDM = folds.getTestModel(vround);
             }
             else {
             	trainingDM = new DataModel();
@@ -283,7 +300,9 @@ public class CrossValidationRunner {
 
 				// put is thread safe. Some of the threads will already begin
 				// working while experiments are still being inserted.
-				experiments.put(new Experiment(recommender, trainingDM, testDM, evaluators, vround + 1));
+				Experiment experiment = new Experiment(recommender, trainingDM, testDM, evaluators, vround + 1);
+				experiment.setNumberOfThreads(evaluationThreads);
+				experiments.put(experiment);
 				//System.out.println("exp added");
 			}
 			
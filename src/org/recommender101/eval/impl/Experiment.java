@@ -4,14 +4,21 @@ package org.recommender101.eval.impl;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.recommender101.data.DataModel;
 import org.recommender101.data.Rating;
 import org.recommender101.eval.interfaces.EvaluationResult;
 import org.recommender101.eval.interfaces.Evaluator;
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.PredictionEvaluator;
 import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
 import org.recommender101.recommender.AbstractRecommender;
@@ -69,6 +76,16 @@ public class Experiment {
 	 */
 	int evaluationRound;
 
+	/**
+	 * The number of threads which compute predictions and recommendation lists
+	 */
+	int nbThreads = Recommender101Impl.NUM_OF_THREADS;
+
+	/**
+	 * The number of users a thread processes at once
+	 */
+	static final int USER_BLOCK_SIZE = 32;
+
 	// =====================================================================================
 
 	/**
@@ -125,7 +142,7 @@ public class Experiment {
 	 * 
 	 * @return
 	 */
-	List<EvaluationResult> runExperiments() {
+	List<EvaluationResult> runExperiments() throws Exception {
 		
 		List<EvaluationResult> result = new ArrayList<EvaluationResult>();
 		
@@ -171,34 +188,61 @@ public class Experiment {
 			Debug.log("Starting to measure prediction metrics for: " + this.recommender.getConfigurationFileString());
 			Debug.log("------------------------------------");
 			
-			int counter = 0;
-			
-			// --------------------------------------------------------------
-			
-			int tenpercent = dataModel.getRatings().size() / 10;
+			final int tenpercent = Math.max(1, dataModel.getRatings().size() / 10);
+			final int maxPredictions = maxRatingPredictions;
 			
-			for (Rating r : this.dataModel.getRatings()) {
-				float prediction = Float.NaN;
-				prediction = recommender.predictRating(r.user, r.item);
-				// Apply clamping.
-				prediction = Utilities101.applyRatingBounds(prediction);
-				
-				
-				// Note that we also pass NaN predictions, which should not be counted
-				// by the metric
-				// Iterate over all prediction metrics
-				for (PredictionEvaluator e : predictionMetrics) {
-					e.addTestPrediction(r, prediction);
-				}
-				counter++;
-//				System.out.println("----------------- Counter: " + counter + " max: " + maxRatingPredictions);
-				if (counter % tenpercent == 0) {
-//					System.out.println("Completed " + counter + " predictions");
-//					Debug.log("Experiment completed: " + Math.round(((counter  / (double) dataModel.getRatings().size() * 100))) + " %");
-				}
-				if (maxRatingPredictions > 0 && counter > maxRatingPredictions) {
-					break;
-				}
+			List<Integer> testUsers = new ArrayList<Integer>(this.dataModel.getRatingsPerUser().keySet());
+			if (maxPredictions <= 0 && allMergeable(predictionMetrics)) {
+				// Each block of users is evaluated with partial metrics (on a worker thread),
+				// the partial results are merged in the order of the blocks. The blocks do not
+				// depend on the number of threads, so the numbers are the same for any number.
+				processBlocks(testUsers, new BlockTask<List<PredictionEvaluator>>() {
+					public List<PredictionEvaluator> compute(List<Integer> users) {
+						List<PredictionEvaluator> partials = new ArrayList<PredictionEvaluator>();
+						for (PredictionEvaluator e : predictionMetrics) {
+							partials.add(createPartial(e));
+						}
+						for (Integer user : users) {
+							UserPredictions predictions = predictRatings(user);
+							for (int k = 0; k < predictions.ratings.length; k++) {
+								addTestPrediction(partials, predictions.ratings[k], predictions.predictions[k]);
+							}
+						}
+						return partials;
+					}
+				}, new BlockConsumer<List<PredictionEvaluator>>() {
+					public boolean accept(List<Integer> users, List<PredictionEvaluator> partials) {
+						for (int i = 0; i < partials.size(); i++) {
+							merge(predictionMetrics.get(i), partials.get(i));
+						}
+						return true;
+					}
+				});
+			}
+			else {
+				// Predict the test ratings of one user in a batch, the metrics receive the
+				// predictions in the order of the users
+				processUsers(testUsers, new UserTask<UserPredictions>() {
+					public UserPredictions compute(int user) {
+						return predictRatings(user);
+					}
+				}, new ResultConsumer<UserPredictions>() {
+					int counter = 0;
+					public boolean accept(int user, UserPredictions result) {
+						for (int k = 0; k < result.ratings.length; k++) {
+							addTestPrediction(predictionMetrics, result.ratings[k], result.predictions[k]);
+							counter++;
+							if (counter % tenpercent == 0) {
+//								System.out.println("Completed " + counter + " predictions");
+//								Debug.log("Experiment completed: " + Math.round(((counter  / (double) dataModel.getRatings().size() * 100))) + " %");
+							}
+							if (maxPredictions > 0 && counter > maxPredictions) {
+								return false;
+							}
+						}
+						return true;
+					}
+				});
 			}
 			// We are through with all ratings. Add the results we have to the result collector
 			for (PredictionEvaluator e : predictionMetrics) {
@@ -211,31 +255,76 @@ public class Experiment {
 			Debug.log("Starting to measure list metrics for: " + this.recommender.getConfigurationFileString());
 			Debug.log("------------------------------------");
 			
-			int counter = 0;
-			int tenpercent = dataModel.getRatings().size() / 10;
+			final int tenpercent = Math.max(1, dataModel.getRatings().size() / 10);
+			final int maxLists = maxRecommendations;
 			
-			Set<Integer> testUsers = new HashSet<Integer>();
+			final Set<Integer> testUsers = new HashSet<Integer>();
 			for (Rating r : this.dataModel.getRatings()) {
 				testUsers.add(r.user);
 			}
-
-			for (Integer user: testUsers) {
-				List<Integer> recommendedList = recommender.recommendItems(user);
-				
-				for (RecommendationlistEvaluator e : listMetrics) {
-					e.addRecommendations(user, recommendedList);
-				}
-				counter++;
-				if (counter % tenpercent == 0) {
-//					System.out.println("Completed " + counter + " recommendations");
-					Debug.log("Experiment completed: " + Math.round(((counter  / (double) testUsers.size() * 100))) + " %");
-				}
-				// Debugging
-				if (maxRecommendations > 0 && counter > maxRecommendations) {
-					break;
+			
+			// Let the recommender rank only as many items as the metrics read (unless configured)
+			if (recommender.getTopK() == -1) {
+				int depth = getRequiredListLength();
+				if (depth > 0) {
+					recommender.setTopK(depth);
 				}
 			}
 
+			List<Integer> users = new ArrayList<Integer>(testUsers);
+			if (maxLists <= 0 && allMergeable(listMetrics)) {
+				// Each block of users is evaluated with partial metrics (on a worker thread),
+				// the partial results are merged in the order of the blocks. The blocks do not
+				// depend on the number of threads, so the numbers are the same for any number.
+				processBlocks(users, new BlockTask<List<RecommendationlistEvaluator>>() {
+					public List<RecommendationlistEvaluator> compute(List<Integer> users) {
+						List<RecommendationlistEvaluator> partials = new ArrayList<RecommendationlistEvaluator>();
+						for (RecommendationlistEvaluator e : listMetrics) {
+							partials.add(createPartial(e));
+						}
+						for (Integer user : users) {
+							List<Integer> recommendedList = recommender.recommendItems(user);
+							for (RecommendationlistEvaluator e : partials) {
+								e.addRecommendations(user, recommendedList);
+							}
+						}
+						return partials;
+					}
+				}, new BlockConsumer<List<RecommendationlistEvaluator>>() {
+					int counter = 0;
+					public boolean accept(List<Integer> users, List<RecommendationlistEvaluator> partials) {
+						for (int i = 0; i < partials.size(); i++) {
+							merge(listMetrics.get(i), partials.get(i));
+						}
+						counter += users.size();
+						Debug.log("Experiment completed: " + Math.round(((counter  / (double) testUsers.size() * 100))) + " %");
+						return true;
+					}
+				});
+			}
+			else {
+				// The lists are computed in parallel, the metrics receive them in the order of the users
+				processUsers(users, new UserTask<List<Integer>>() {
+					public List<Integer> compute(int user) {
+						return recommender.recommendItems(user);
+					}
+				}, new ResultConsumer<List<Integer>>() {
+					int counter = 0;
+					public boolean accept(int user, List<Integer> recommendedList) {
+						for (RecommendationlistEvaluator e : listMetrics) {
+							e.addRecommendations(user, recommendedList);
+						}
+						counter++;
+						if (counter % tenpercent == 0) {
+//							System.out.println("Completed " + counter + " recommendations");
+							Debug.log("Experiment completed: " + Math.round(((counter  / (double) testUsers.size() * 100))) + " %");
+						}
+						// Debugging
+						return !(maxLists > 0 && counter > maxLists);
+					}
+				});
+			}
+
 			// We are through with all ratings. Add the results we have to the result collector
 			for (RecommendationlistEvaluator e : listMetrics) {
 				result.add(new EvaluationResult(recommender.getConfigurationFileString(),e.getConfigurationFileString(), e.getEvaluationResult()));				
@@ -249,6 +338,235 @@ public class Experiment {
 	}
 		
 
+	// =====================================================================================
+
+	/**
+	 * A computation for one user which is run by the worker threads, e.g., the 
+	 * recommendation list. It may only read the recommender and the data models.
+	 */
+	interface UserTask<T> {
+		T compute(int user) throws Exception;
+	}
+
+	/**
+	 * Receives the results of the user tasks in the order of the users, on the thread which
+	 * runs the experiment. This is where the (not thread-safe) metrics are updated.
+	 */
+	interface ResultConsumer<T> {
+		/**
+		 * @return false if no more results are needed
+		 */
+		boolean accept(int user, T result);
+	}
+
+	/**
+	 * A computation for a block of users which is run by the worker threads
+	 */
+	interface BlockTask<T> {
+		T compute(List<Integer> users) throws Exception;
+	}
+
+	/**
+	 * Receives the results of the block tasks in the order of the blocks, on the thread which
+	 * runs the experiment
+	 */
+	interface BlockConsumer<T> {
+		/**
+		 * @return false if no more results are needed
+		 */
+		boolean accept(List<Integer> users, T result);
+	}
+
+	/**
+	 * The test ratings of a user and the predictions for them
+	 */
+	static class UserPredictions {
+		final Rating[] ratings;
+		final float[] predictions;
+
+		UserPredictions(Rating[] ratings, float[] predictions) {
+			this.ratings = ratings;
+			this.predictions = predictions;
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Predicts all test ratings of a user in one batch
+	 * @param user the user
+	 * @return the ratings and predictions
+	 */
+	UserPredictions predictRatings(int user) {
+		Set<Rating> ratingsOfUser = dataModel.getRatingsOfUser(user);
+		Rating[] testRatings = ratingsOfUser.toArray(new Rating[ratingsOfUser.size()]);
+		int[] items = new int[testRatings.length];
+		for (int k = 0; k < testRatings.length; k++) {
+			items[k] = testRatings[k].item;
+		}
+		float[] predictions = new float[items.length];
+		recommender.predictRatings(user, items, predictions);
+		return new UserPredictions(testRatings, predictions);
+	}
+
+	/**
+	 * Clamps a prediction and passes it to the metrics
+	 */
+	static void addTestPrediction(List<PredictionEvaluator> metrics, Rating r, float prediction) {
+		// Apply clamping.
+		prediction = Utilities101.applyRatingBounds(prediction);
+		// Note that we also pass NaN predictions, which should not be counted
+		// by the metric
+		for (PredictionEvaluator e : metrics) {
+			e.addTestPrediction(r, prediction);
+		}
+	}
+
+	/**
+	 * Checks if all metrics support partial accumulation
+	 */
+	static boolean allMergeable(List<? extends Evaluator> metrics) {
+		for (Evaluator e : metrics) {
+			if (!(e instanceof MergeableEvaluator)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates an empty partial metric of a mergeable metric
+	 */
+	@SuppressWarnings("unchecked")
+	static <E extends Evaluator> E createPartial(E metric) {
+		return ((MergeableEvaluator<E>) metric).createPartial();
+	}
+
+	/**
+	 * Merges a partial metric into the mergeable metric it was created from
+	 */
+	@SuppressWarnings("unchecked")
+	static <E extends Evaluator> void merge(E metric, E partial) {
+		((MergeableEvaluator<E>) metric).merge(partial);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Runs a task for each user and passes the results to the consumer in the order of
+	 * the users (see processBlocks()). As the consumer sees the same sequence as in a 
+	 * sequential run, the metrics produce exactly the same numbers.
+	 * @param users the users
+	 * @param task the computation per user
+	 * @param consumer receives the results
+	 * @throws Exception the first exception of a task
+	 */
+	<T> void processUsers(List<Integer> users, final UserTask<T> task, final ResultConsumer<T> consumer) throws Exception {
+		processBlocks(users, new BlockTask<List<T>>() {
+			public List<T> compute(List<Integer> users) throws Exception {
+				List<T> results = new ArrayList<T>(users.size());
+				for (Integer user : users) {
+					results.add(task.compute(user));
+				}
+				return results;
+			}
+		}, new BlockConsumer<List<T>>() {
+			public boolean accept(List<Integer> users, List<T> results) {
+				for (int i = 0; i < results.size(); i++) {
+					if (!consumer.accept(users.get(i), results.get(i))) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Splits the users into blocks, runs the task for each block on nbThreads threads and 
+	 * passes the results to the consumer in the order of the blocks. Only a few blocks are 
+	 * computed ahead of the consumer, so the results of all blocks are never held in memory 
+	 * at the same time.
+	 * @param users the users
+	 * @param task the computation per block
+	 * @param consumer receives the results
+	 * @throws Exception the first exception of a task
+	 */
+	<T> void processBlocks(List<Integer> users, final BlockTask<T> task, BlockConsumer<T> consumer) throws Exception {
+		int nbBlocks = (users.size() + USER_BLOCK_SIZE - 1) / USER_BLOCK_SIZE;
+		if (nbThreads <= 1 || nbBlocks <= 1) {
+			for (int block = 0; block < nbBlocks; block++) {
+				List<Integer> blockUsers = users.subList(block * USER_BLOCK_SIZE, Math.min((block + 1) * USER_BLOCK_SIZE, users.size()));
+				if (!consumer.accept(blockUsers, task.compute(blockUsers))) {
+					return;
+				}
+			}
+			return;
+		}
+		int window = 2 * nbThreads;
+		LinkedList<Future<T>> pending = new LinkedList<Future<T>>();
+		ExecutorService pool = Executors.newFixedThreadPool(nbThreads);
+		try {
+			int submitted = 0;
+			for (int block = 0; block < nbBlocks; block++) {
+				// keep the window of blocks in progress filled
+				while (submitted < nbBlocks && submitted < block + window) {
+					final List<Integer> blockUsers = users.subList(submitted * USER_BLOCK_SIZE, Math.min((submitted + 1) * USER_BLOCK_SIZE, users.size()));
+					pending.add(pool.submit(new Callable<T>() {
+						public T call() throws Exception {
+							return task.compute(blockUsers);
+						}
+					}));
+					submitted++;
+				}
+				T result;
+				try {
+					result = pending.removeFirst().get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+				List<Integer> blockUsers = users.subList(block * USER_BLOCK_SIZE, Math.min((block + 1) * USER_BLOCK_SIZE, users.size()));
+				if (!consumer.accept(blockUsers, result)) {
+					return;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Sets the number of threads which compute the predictions and recommendation lists. The 
+	 * recommender has to accept calls from several threads after init() if this is larger than one.
+	 * @param nbThreads the number of threads
+	 */
+	public void setNumberOfThreads(int nbThreads) {
+		this.nbThreads = nbThreads;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Determines the length of the recommendation lists the list metrics need
+	 * @return the maximum over all metrics or -1 if a metric needs the complete ranking
+	 */
+	int getRequiredListLength() {
+		int depth = 0;
+		for (RecommendationlistEvaluator e : listMetrics) {
+			int required = e.getRequiredListLength();
+			if (required < 0) {
+				return -1;
+			}
+			depth = Math.max(depth, required);
+		}
+		return depth;
+	}
+
 	// =====================================================================================
 
 	/**
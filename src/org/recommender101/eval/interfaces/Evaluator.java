@@ -12,7 +12,7 @@ import org.recommender101.tools.Instantiable;
  * @author DJ
  *
  */
-public abstract class Evaluator extends Instantiable {
+public abstract class Evaluator extends Instantiable implements Cloneable {
 	
 	/**
 	 * The local data model
@@ -112,6 +112,22 @@ public abstract class Evaluator extends Instantiable {
 	public void setRecommender(AbstractRecommender recommender) {
 		this.recommender = recommender;
 	}
+
+	// =====================================================================================
+	/**
+	 * Returns a shallow copy of the evaluator. The configuration, the data models and the 
+	 * state calculated in initialize() are shared with the copy. To be used by the 
+	 * createPartial() methods of a {@link MergeableEvaluator}, which have to reset the 
+	 * accumulated values of the copy.
+	 * @return the copy
+	 */
+	protected Evaluator copy() {
+		try {
+			return (Evaluator) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 	
 	
 	
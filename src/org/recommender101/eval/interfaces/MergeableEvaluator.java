@@ -0,0 +1,28 @@
+/** DJ **/
+package org.recommender101.eval.interfaces;
+
+/**
+ * Implemented by metrics which support partial accumulation. Partial results can be
+ * collected for blocks of the test users (e.g., on several threads) and are merged into
+ * the original metric in the order of the blocks before the final result is read.
+ * Metrics which do not implement this interface receive all values one by one.
+ * @author DJ
+ *
+ * @param <E> the class of the metric
+ */
+public interface MergeableEvaluator<E extends Evaluator> {
+
+	/**
+	 * Creates an empty accumulator with the same configuration and data models. The values
+	 * of a block are added to it and it is then merged into this metric.
+	 * @return the partial metric
+	 */
+	public E createPartial();
+
+	/**
+	 * Adds the values accumulated by a partial metric (see createPartial()) to this one
+	 * @param partial the partial metric
+	 */
+	public void merge(E partial);
+
+}
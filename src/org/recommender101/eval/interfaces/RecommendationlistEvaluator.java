@@ -45,6 +45,16 @@ public abstract class RecommendationlistEvaluator extends Evaluator {
 		return topN;
 	};
 	
+	/**
+	 * Returns how many elements of a recommendation list the metric reads at most. The 
+	 * experiment uses this to let recommenders rank only as many items as needed.
+	 * @return the list length or -1 if the metric needs the complete ranking (the default), 
+	 * e.g., because it skips the items without a rating in the test set
+	 */
+	public int getRequiredListLength() {
+		return -1;
+	}
+	
 
 	/**
 	 * How do we calculate precision, default is only relevant items in test set
@@ -2,6 +2,7 @@
 package org.recommender101.eval.metrics;
 
 import org.recommender101.data.Rating;
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.PredictionEvaluator;
 
 /**
@@ -9,7 +10,7 @@ import org.recommender101.eval.interfaces.PredictionEvaluator;
  * @author DJ
  *
  */
-public class MAE extends PredictionEvaluator {
+public class MAE extends PredictionEvaluator implements MergeableEvaluator<MAE> {
 
 	/**
 	 * We calculate the errors
@@ -59,4 +60,25 @@ public class MAE extends PredictionEvaluator {
 	}
 
 	
+
+	// =====================================================================================
+
+	/**
+	 * Returns an empty copy
+	 */
+	public MAE createPartial() {
+		MAE partial = (MAE) copy();
+		partial.errorAccumulator = 0;
+		partial.predictionCount = 0;
+		return partial;
+	}
+
+	/**
+	 * Adds the errors of a partial evaluator
+	 */
+	public void merge(MAE other) {
+		errorAccumulator += other.errorAccumulator;
+		predictionCount += other.predictionCount;
+	}
+
 }
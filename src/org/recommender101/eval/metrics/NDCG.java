@@ -6,6 +6,7 @@ import java.util.Comparator;
 import java.util.List;
 
 import org.recommender101.data.Rating;
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
 
 /**
@@ -14,7 +15,7 @@ import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
  * @author timkraemer
  * 
  */
-public class NDCG extends RecommendationlistEvaluator {
+public class NDCG extends RecommendationlistEvaluator implements MergeableEvaluator<NDCG> {
 
 	private double accumulatedNDCGValue = 0.0;
 	private int count = 0;
@@ -86,4 +87,24 @@ public class NDCG extends RecommendationlistEvaluator {
 		return ((float)accumulatedNDCGValue)/((float)count);
 	}
 
+	// =====================================================================================
+
+	/**
+	 * Returns an empty copy
+	 */
+	public NDCG createPartial() {
+		NDCG partial = (NDCG) copy();
+		partial.accumulatedNDCGValue = 0.0;
+		partial.count = 0;
+		return partial;
+	}
+
+	/**
+	 * Adds the nDCG values of a partial evaluator
+	 */
+	public void merge(NDCG other) {
+		accumulatedNDCGValue += other.accumulatedNDCGValue;
+		count += other.count;
+	}
+
 }
@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Set;
 
 import org.recommender101.data.Rating;
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
 
 /**
@@ -16,7 +17,7 @@ import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
  * @author dietmar
  * 
  */
-public abstract class PrecisionRecall extends RecommendationlistEvaluator {
+public abstract class PrecisionRecall extends RecommendationlistEvaluator implements MergeableEvaluator<PrecisionRecall> {
 
 	/**
 	 * remember the precision/recall so far
@@ -81,6 +82,17 @@ public abstract class PrecisionRecall extends RecommendationlistEvaluator {
 
 	}
 
+	/**
+	 * When all items of the list count, only the first topN elements are read
+	 */
+	@Override
+	public int getRequiredListLength() {
+		if (targetSetType == evalTypes.allintestset) {
+			return getTopN();
+		}
+		return -1;
+	}
+
 	/**
 	 * Return the overall precision or recall
 	 */
@@ -233,6 +245,25 @@ public abstract class PrecisionRecall extends RecommendationlistEvaluator {
 	 */
 	public List<Integer> forbiddenRandomElements = new ArrayList<Integer>();
 	
-}
 
+	// =====================================================================================
 
+	/**
+	 * Returns an empty copy (the subclasses have no own accumulators)
+	 */
+	public PrecisionRecall createPartial() {
+		PrecisionRecall partial = (PrecisionRecall) copy();
+		partial.accumulatedValue = 0;
+		partial.counter = 0;
+		return partial;
+	}
+
+	/**
+	 * Adds the precision or recall values of a partial evaluator
+	 */
+	public void merge(PrecisionRecall other) {
+		accumulatedValue += other.accumulatedValue;
+		counter += other.counter;
+	}
+
+}
@@ -2,6 +2,7 @@
 package org.recommender101.eval.metrics;
 
 import org.recommender101.data.Rating;
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.PredictionEvaluator;
 
 /**
@@ -10,7 +11,7 @@ import org.recommender101.eval.interfaces.PredictionEvaluator;
  * @author DJ
  *
  */
-public class PredictionCoverage extends PredictionEvaluator {
+public class PredictionCoverage extends PredictionEvaluator implements MergeableEvaluator<PredictionCoverage> {
 
 	/**
 	 * A counter for the total number of ratings
@@ -42,4 +43,24 @@ public class PredictionCoverage extends PredictionEvaluator {
 		return predictedRatings/ (float) totalRatings;
 	}
 
+	// =====================================================================================
+
+	/**
+	 * Returns an empty copy
+	 */
+	public PredictionCoverage createPartial() {
+		PredictionCoverage partial = (PredictionCoverage) copy();
+		partial.totalRatings = 0;
+		partial.predictedRatings = 0;
+		return partial;
+	}
+
+	/**
+	 * Adds the counts of a partial evaluator
+	 */
+	public void merge(PredictionCoverage other) {
+		totalRatings += other.totalRatings;
+		predictedRatings += other.predictedRatings;
+	}
+
 }
@@ -2,6 +2,7 @@
 package org.recommender101.eval.metrics;
 
 import org.recommender101.data.Rating;
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.PredictionEvaluator;
 
 /**
@@ -9,7 +10,7 @@ import org.recommender101.eval.interfaces.PredictionEvaluator;
  * @author DJ
  *
  */
-public class RMSE extends PredictionEvaluator {
+public class RMSE extends PredictionEvaluator implements MergeableEvaluator<RMSE> {
 
 	/**
 	 * We calculate the errors
@@ -52,4 +53,25 @@ public class RMSE extends PredictionEvaluator {
 		return "RMSE";
 	}
 	
+
+	// =====================================================================================
+
+	/**
+	 * Returns an empty copy
+	 */
+	public RMSE createPartial() {
+		RMSE partial = (RMSE) copy();
+		partial.errorAccumulator = 0;
+		partial.predictionCount = 0;
+		return partial;
+	}
+
+	/**
+	 * Adds the squared errors of a partial evaluator
+	 */
+	public void merge(RMSE other) {
+		errorAccumulator += other.errorAccumulator;
+		predictionCount += other.predictionCount;
+	}
+
 }
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.recommender101.data.Rating;
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
 
 /**
@@ -14,7 +15,7 @@ import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
  * @author timkraemer
  * 
  */
-public class ROCAUC extends RecommendationlistEvaluator {
+public class ROCAUC extends RecommendationlistEvaluator implements MergeableEvaluator<ROCAUC> {
 
 	/**
 	 * A private attribute which holds the number of users for which the AUC has
@@ -125,4 +126,28 @@ public class ROCAUC extends RecommendationlistEvaluator {
 //		return df.format(d);
 //	}
 
+	// =====================================================================================
+
+	/**
+	 * Returns an empty copy
+	 */
+	public ROCAUC createPartial() {
+		ROCAUC partial = (ROCAUC) copy();
+		partial.avgCounter = 0;
+		partial.aucAvg = 0;
+		return partial;
+	}
+
+	/**
+	 * Adds the AUC values of a partial evaluator to the mean
+	 */
+	public void merge(ROCAUC other) {
+		if (other.avgCounter == 0) {
+			return;
+		}
+		this.aucAvg = (this.aucAvg * this.avgCounter + other.aucAvg * other.avgCounter)
+				/ (this.avgCounter + other.avgCounter);
+		this.avgCounter += other.avgCounter;
+	}
+
 }
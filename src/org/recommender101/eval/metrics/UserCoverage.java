@@ -3,6 +3,7 @@ package org.recommender101.eval.metrics;
 
 import java.util.List;
 
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
 /**
  * Calculates the fraction of users in a recommendation list evaluation scenario
@@ -10,7 +11,7 @@ import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
  * @author DJ
  *
  */
-public class UserCoverage extends RecommendationlistEvaluator {
+public class UserCoverage extends RecommendationlistEvaluator implements MergeableEvaluator<UserCoverage> {
 
 	
 	/**
@@ -35,6 +36,14 @@ public class UserCoverage extends RecommendationlistEvaluator {
 
 	}
 
+	/**
+	 * Only checks whether the list is empty
+	 */
+	@Override
+	public int getRequiredListLength() {
+		return 1;
+	}
+
 	/**
 	 * Returns the coverage metrics
 	 */
@@ -48,4 +57,24 @@ public class UserCoverage extends RecommendationlistEvaluator {
 		}
 	}
 
+	// =====================================================================================
+
+	/**
+	 * Returns an empty copy
+	 */
+	public UserCoverage createPartial() {
+		UserCoverage partial = (UserCoverage) copy();
+		partial.totalUsers = 0;
+		partial.usersWithPredictions = 0;
+		return partial;
+	}
+
+	/**
+	 * Adds the counts of a partial evaluator
+	 */
+	public void merge(UserCoverage other) {
+		totalUsers += other.totalUsers;
+		usersWithPredictions += other.usersWithPredictions;
+	}
+
 }
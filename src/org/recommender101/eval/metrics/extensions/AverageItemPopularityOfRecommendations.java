@@ -6,6 +6,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
 import org.recommender101.tools.Utilities101;
 
@@ -15,7 +16,7 @@ import org.recommender101.tools.Utilities101;
  *
  */
 public class AverageItemPopularityOfRecommendations extends
-		RecommendationlistEvaluator {
+		RecommendationlistEvaluator implements MergeableEvaluator<AverageItemPopularityOfRecommendations> {
 
 	
 	/**
@@ -45,10 +46,10 @@ public class AverageItemPopularityOfRecommendations extends
 	public void initialize() {
 		super.initialize();
 		if (this.useAverageRating) {
-			this.itemPopularities = Utilities101.getItemAverageRatings(getTrainingDataModel().getRatings());
+			this.itemPopularities = getTrainingDataModel().getItemStatistics().getMeans();
 		}
 		else {
-			Map<Integer, Integer> ratingCounts = Utilities101.calculateRatingsPerItem(getTrainingDataModel());
+			Map<Integer, Integer> ratingCounts = getTrainingDataModel().getItemStatistics().getCounts();
 			for (Integer item : ratingCounts.keySet()) {
 				this.itemPopularities.put(item,(float) ratingCounts.get(item));
 			}
@@ -75,6 +76,17 @@ public class AverageItemPopularityOfRecommendations extends
 		themode = mode.valueOf(m.toLowerCase());
 	}
 
+	/**
+	 * In the default mode only the first topN elements are used
+	 */
+	@Override
+	public int getRequiredListLength() {
+		if (themode == mode.all) {
+			return topN;
+		}
+		return -1;
+	}
+
 	/**
 	 * Calculates the average popularity values up to a certain list length
 	 *
@@ -189,4 +201,22 @@ public class AverageItemPopularityOfRecommendations extends
 	}
 	
 
+	// =====================================================================================
+
+	/**
+	 * Returns an empty copy, the item popularities are shared
+	 */
+	public AverageItemPopularityOfRecommendations createPartial() {
+		AverageItemPopularityOfRecommendations partial = (AverageItemPopularityOfRecommendations) copy();
+		partial.popularityPerUser = new HashMap<Integer, Double>();
+		return partial;
+	}
+
+	/**
+	 * Adds the popularity values per user of a partial evaluator
+	 */
+	public void merge(AverageItemPopularityOfRecommendations other) {
+		popularityPerUser.putAll(other.popularityPerUser);
+	}
+
 }
@@ -13,6 +13,7 @@ import java.util.Map;
 import java.util.TreeMap;
 
 import org.recommender101.data.Rating;
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
 import org.recommender101.tools.Debug;
 import org.recommender101.tools.Utilities101;
@@ -28,7 +29,7 @@ import org.recommender101.tools.Utilities101;
  * 
  * 
  */
-public class Gini extends RecommendationlistEvaluator {
+public class Gini extends RecommendationlistEvaluator implements MergeableEvaluator<Gini> {
 
 	/**
 	 * Set this to true if the CSV files should contain percentages instead of absolute values
@@ -97,6 +98,17 @@ public class Gini extends RecommendationlistEvaluator {
 	 */
 	evalmode mode = evalmode.recommended;
 
+	/**
+	 * Without the relevance filter, only the first topN elements are counted
+	 */
+	@Override
+	public int getRequiredListLength() {
+		if (this.onlyRelevant) {
+			return -1;
+		}
+		return topN;
+	}
+
 	/**
 	 * We count each relevant item in the list. Either count only hits or not
 	 * 
@@ -353,6 +365,27 @@ public class Gini extends RecommendationlistEvaluator {
 
 
 
+	// =====================================================================================
+
+	/**
+	 * Returns an empty copy
+	 */
+	public Gini createPartial() {
+		Gini partial = (Gini) copy();
+		partial.recommendationFrequencies = new HashMap<Integer, Integer>();
+		return partial;
+	}
+
+	/**
+	 * Adds the recommendation frequencies of a partial evaluator
+	 */
+	public void merge(Gini other) {
+		for (Map.Entry<Integer, Integer> entry : other.recommendationFrequencies.entrySet()) {
+			Integer count = recommendationFrequencies.get(entry.getKey());
+			recommendationFrequencies.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+		}
+	}
+
 	/**
 	 * A setter for the factory
 	 * 
@@ -6,8 +6,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
-import org.recommender101.tools.Utilities101;
 
 /**
  * This is a simple demo class which calculates how many different *relevant* items
@@ -15,7 +15,7 @@ import org.recommender101.tools.Utilities101;
  * @author DJ
  *
  */
-public class NumberOfRecommendedItems extends RecommendationlistEvaluator {
+public class NumberOfRecommendedItems extends RecommendationlistEvaluator implements MergeableEvaluator<NumberOfRecommendedItems> {
 
 	/**
 	 * Calculate the user averages
@@ -23,7 +23,7 @@ public class NumberOfRecommendedItems extends RecommendationlistEvaluator {
 	@Override
 	public void initialize() {
 		userAverages = getTestDataModel().getUserAverageRatings();
-		itemAverages = Utilities101.getItemAverageRatings(getTrainingDataModel().getRatings());
+		itemAverages = getTrainingDataModel().getItemStatistics().getMeans();
 
 	}
 	
@@ -45,6 +45,17 @@ public class NumberOfRecommendedItems extends RecommendationlistEvaluator {
 	
 	
 	
+	/**
+	 * In the default mode only the first topN elements are counted
+	 */
+	@Override
+	public int getRequiredListLength() {
+		if (themode == mode.all) {
+			return topN;
+		}
+		return -1;
+	}
+	
 	// We calculate the number of recommended items
 	@Override
 	public void addRecommendations(Integer user, List<Integer> list) {
@@ -109,4 +120,23 @@ public class NumberOfRecommendedItems extends RecommendationlistEvaluator {
 
 
 	
+
+	// =====================================================================================
+
+	/**
+	 * Returns an empty copy, the averages are shared
+	 */
+	public NumberOfRecommendedItems createPartial() {
+		NumberOfRecommendedItems partial = (NumberOfRecommendedItems) copy();
+		partial.recommendedItems = new HashSet<Integer>();
+		return partial;
+	}
+
+	/**
+	 * Adds the items recommended in a partial evaluator
+	 */
+	public void merge(NumberOfRecommendedItems other) {
+		recommendedItems.addAll(other.recommendedItems);
+	}
+
 }
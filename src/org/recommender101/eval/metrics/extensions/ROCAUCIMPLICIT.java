@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.Set;
 
 import org.recommender101.data.Rating;
+import org.recommender101.eval.interfaces.MergeableEvaluator;
 import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
 
 /**
@@ -18,7 +19,7 @@ import org.recommender101.eval.interfaces.RecommendationlistEvaluator;
  * @author MW
  * 
  */
-public class ROCAUCIMPLICIT extends RecommendationlistEvaluator {
+public class ROCAUCIMPLICIT extends RecommendationlistEvaluator implements MergeableEvaluator<ROCAUCIMPLICIT> {
 
 	/**
 	 * A private attribute which holds the number of users for which the AUC has
@@ -104,4 +105,24 @@ public class ROCAUCIMPLICIT extends RecommendationlistEvaluator {
 
 	
 
-}
\ No newline at end of file
+	// =====================================================================================
+
+	/**
+	 * Returns an empty copy
+	 */
+	public ROCAUCIMPLICIT createPartial() {
+		ROCAUCIMPLICIT partial = (ROCAUCIMPLICIT) copy();
+		partial.count = 0;
+		partial.aucSum = 0;
+		return partial;
+	}
+
+	/**
+	 * Adds the AUC values of a partial evaluator
+	 */
+	public void merge(ROCAUCIMPLICIT other) {
+		count += other.count;
+		aucSum += other.aucSum;
+	}
+
+}
@@ -2,6 +2,7 @@
 package org.recommender101.recommender;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -12,6 +13,7 @@ import org.recommender101.data.DataModel;
 import org.recommender101.data.Rating;
 import org.recommender101.eval.impl.Recommender101Impl;
 import org.recommender101.tools.Instantiable;
+import org.recommender101.tools.TopKHeap;
 import org.recommender101.tools.Utilities101;
 
 /**
@@ -32,6 +34,15 @@ public abstract class AbstractRecommender extends Instantiable implements Compar
 	
 	protected Map<String,Object> extraInformation = new HashMap<String, Object>();
 	
+	/**
+	 * The maximum length of the lists created by recommendItemsByRatingPrediction(). 
+	 * The default (-1) returns the complete ranking. If set, the best items are selected with 
+	 * a bounded heap instead of sorting all predictions. Items with equal predictions are then 
+	 * ordered by ascending id. If not configured, the Experiment sets it to the list length its
+	 * metrics need.
+	 */
+	protected int topK = -1;
+	
 	
   // =====================================================================================
   /**
@@ -42,6 +53,34 @@ public abstract class AbstractRecommender extends Instantiable implements Compar
 	 */
 	public abstract float predictRating(int user, int item);
 	
+	/**
+	 * Predicts the ratings of a user for several items at once. The default implementation 
+	 * calls predictRating() for each item. Recommenders that can share work between the 
+	 * predictions for one user (e.g., the user's factor vector) should override it.
+	 * @param user the user
+	 * @param items the items
+	 * @param out receives the predictions in the order of items (NaN if there is none), 
+	 * must be at least as long as items
+	 */
+	public void predictRatings(int user, int[] items, float[] out) {
+		for (int k = 0; k < items.length; k++) {
+			out[k] = predictRating(user, items[k]);
+		}
+	}
+	
+	/**
+	 * Calculates the scores by which recommendItemsByRatingPrediction() ranks the items of a user.
+	 * By default, the scores are the rating predictions of predictRatings(). Recommenders which 
+	 * rank by a score that is no rating prediction (e.g., BPR) override this method.
+	 * @param user the user
+	 * @param items the items
+	 * @param out receives the scores in the order of items (NaN if there is none), 
+	 * must be at least as long as items
+	 */
+	public void scoreItems(int user, int[] items, float[] out) {
+		predictRatings(user, items, out);
+	}
+	
 	/**
 	 * Generates a ranked list of recommendations 
 	 * @param user
@@ -67,22 +106,21 @@ public abstract class AbstractRecommender extends Instantiable implements Compar
 		if (ratings == null || ratings.size() == 0) {
 			return Collections.emptyList();
 		}
+		
+		// Only the top k items are needed
+		if (topK > 0) {
+			return recommendTopKByRatingPrediction(user, topK);
+		}
 
-		// Calculate rating predictions for all items we know
+		// Calculate rating predictions for all items we know and the user has not seen
+		int[] items = getUnseenItems(user);
+		float[] scores = new float[items.length];
+		scoreItems(user, items, scores);
 		Map<Integer, Float> predictions = new HashMap<Integer, Float>();
-		byte rating = -1;
-		float pred = Float.NaN;
-		// Go through all the items
-		for (Integer item : dataModel.getItems()) {
-			// check if we have seen the item already
-			rating = dataModel.getRating(user, item);
-			if (rating == -1) {
-				// make a prediction and remember it in case the recommender
-				// could make one
-				pred = predictRating(user, item);
-				if (!Float.isNaN(pred)) {
-					predictions.put(item, pred);
-				}
+		for (int k = 0; k < items.length; k++) {
+			// remember the prediction in case the recommender could make one
+			if (!Float.isNaN(scores[k])) {
+				predictions.put(items[k], scores[k]);
 			}
 		}
 		
@@ -97,6 +135,72 @@ public abstract class AbstractRecommender extends Instantiable implements Compar
 	
 	
 	
+	/**
+	 * Ranks the unseen items of the user by their predicted rating and returns the k best ones.
+	 * Uses a bounded min-heap, i.e., O(n log k) time and no per-item objects.
+	 * @param user the user for which a recommendation is sought
+	 * @param k the maximum list length
+	 * @return the ranked list of items
+	 */
+	protected List<Integer> recommendTopKByRatingPrediction(int user, int k) {
+		float threshold = getRelevanceThreshold(user);
+		int[] items = getUnseenItems(user);
+		float[] scores = new float[items.length];
+		scoreItems(user, items, scores);
+		TopKHeap heap = new TopKHeap(k);
+		for (int i = 0; i < items.length; i++) {
+			if (!Float.isNaN(scores[i]) && scores[i] > threshold) {
+				heap.offer(items[i], scores[i]);
+			}
+		}
+		int n = heap.sortDescending();
+		int[] best = heap.getIds();
+		List<Integer> result = new ArrayList<Integer>(n);
+		for (int i = 0; i < n; i++) {
+			result.add(best[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the items of the data model which the user has not rated yet
+	 * @param user the user
+	 * @return the item ids
+	 */
+	protected int[] getUnseenItems(int user) {
+		Set<Integer> allItems = dataModel.getItems();
+		int[] items = new int[allItems.size()];
+		int n = 0;
+		for (Integer item : allItems) {
+			if (dataModel.getRating(user, item) == -1) {
+				items[n++] = item;
+			}
+		}
+		return n == items.length ? items : Arrays.copyOf(items, n);
+	}
+	
+	// =====================================================================================
+	
+	/**
+	 * Returns the value a prediction has to exceed to pass filterElementsByRelevanceThreshold()
+	 * @param user the user
+	 * @return the threshold, negative infinity if the filter is not active or NaN if no item is relevant
+	 */
+	protected float getRelevanceThreshold(int user) {
+		if (!Recommender101Impl.FILTER_NON_RELEVANT_ITEMS_FOR_RECOMMENDATION) {
+			return Float.NEGATIVE_INFINITY;
+		}
+		if (Recommender101Impl.PREDICTION_RELEVANCE_MIN_RATING_FOR_RELEVANCE != -1) {
+			return Recommender101Impl.PREDICTION_RELEVANCE_MIN_RATING_FOR_RELEVANCE;
+		}
+		Float minRating = getDataModel().getUserAverageRatings().get(user);
+		if (minRating == null) {
+			return Float.NaN;
+		}
+		double factor = Recommender101Impl.PREDICTION_RELEVANCE_MIN_RATING_FOR_RELEVANCE * 0.01;
+		return (float) (minRating * (1 + factor));
+	}
+	
 	/**
 	 * A method that removes all elements whose prediction value is below the relevance threshold.
 	 */
@@ -161,6 +265,30 @@ public abstract class AbstractRecommender extends Instantiable implements Compar
 	public DataModel getDataModel() {
 		return dataModel;
 	}
+	
+	/**
+	 * Sets the maximum length of the recommendation lists (for the factory)
+	 * @param k the list length, -1 for the complete ranking
+	 */
+	public void setTopK(String k) {
+		setTopK(Integer.parseInt(k));
+	}
+	
+	/**
+	 * Sets the maximum length of the recommendation lists
+	 * @param k the list length, -1 for the complete ranking
+	 */
+	public void setTopK(int k) {
+		this.topK = k;
+	}
+	
+	/**
+	 * Returns the maximum length of the recommendation lists
+	 * @return the list length or -1 for the complete ranking
+	 */
+	public int getTopK() {
+		return topK;
+	}
 
 	
 	/**
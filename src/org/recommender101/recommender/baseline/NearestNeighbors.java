@@ -1,7 +1,7 @@
 /** DJ **/
 package org.recommender101.recommender.baseline;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -9,12 +9,18 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.recommender101.data.DataModel;
 import org.recommender101.data.DefaultDataLoader;
 import org.recommender101.data.Rating;
+import org.recommender101.data.RatingStore;
+import org.recommender101.eval.impl.Recommender101Impl;
 import org.recommender101.recommender.AbstractRecommender;
 import org.recommender101.tools.Debug;
+import org.recommender101.tools.TopKHeap;
 import org.recommender101.tools.Utilities101;
 
 /**
@@ -52,6 +58,47 @@ public class NearestNeighbors extends AbstractRecommender {
 	 */
 	int minNeighbors = 1;
 	
+	/**
+	 * Only compare objects which have at least one co-rating (inverted index), or compare all pairs
+	 */
+	boolean useInvertedIndex = true;
+	
+	/**
+	 * The number of threads used to compute the similarities (default: the global setting)
+	 */
+	int nbThreads = Recommender101Impl.NUM_OF_THREADS;
+	
+	/**
+	 * The number of rows (users or items) a similarity task processes without splitting
+	 */
+	static final int ROW_BLOCK_SIZE = 16;
+	
+	/**
+	 * The sorted user (item) ids. The position is the row of the object's rating vector
+	 */
+	int[] objectIds;
+	
+	/**
+	 * The rating vectors in CSR layout: vector o has the dimensions vectorIndices[vectorOffsets[o]] 
+	 * to vectorIndices[vectorOffsets[o+1]-1] (sorted) and the values at the same positions in vectorValues
+	 */
+	int[] vectorOffsets;
+	int[] vectorIndices;
+	float[] vectorValues;
+	
+	/**
+	 * The inverted index (the transposed vectors): for every dimension the sorted indices of the
+	 * objects with a value in this dimension and the (centred) values
+	 */
+	int[] invertedOffsets;
+	int[] invertedIndices;
+	float[] invertedValues;
+	
+	/**
+	 * Per-thread buffers for the accumulation of the similarities of one row
+	 */
+	ThreadLocal<SimilarityAccumulator> accumulators = new ThreadLocal<SimilarityAccumulator>();
+	
 	/**
 	 * Stores the similarities user-id-> map of other users and their similarities
 	 */ 
@@ -61,65 +108,79 @@ public class NearestNeighbors extends AbstractRecommender {
 	public Map<Integer, Set<Rating>> ratingsPerItem;
 	
 	
+	/**
+	 * The state used for the predictions, see init()
+	 */
+	Neighborhoods neighborhoods;
+	
+	/**
+	 * The trained state used by predictRating(). It is created at the end of init() and never 
+	 * changed afterwards (all fields are final), so predictions need no locks and can be made 
+	 * from many threads at the same time.
+	 */
+	static final class Neighborhoods {
+		// The sorted user (item) ids
+		final int[] objectIds;
+		// The average rating of each object
+		final float[] averages;
+		// The positions of the neighbors in objectIds, most similar first
+		final int[][] neighbors;
+		// The similarities of the neighbors
+		final double[][] similarities;
+		
+		Neighborhoods(int[] objectIds, float[] averages, int[][] neighbors, double[][] similarities) {
+			this.objectIds = objectIds;
+			this.averages = averages;
+			this.neighbors = neighbors;
+			this.similarities = similarities;
+		}
+	}
+	
+	// =====================================================================================
+	
 	/**
 	 * Predict the rating based on the neighbors opinions.
 	 * Use a classical weighting scheme and n neighbors
 	 */
 	@Override
-	public synchronized float predictRating(int user, int item) {
-		// Iterate over all users and rank them
-		// A map of similarities
-		
-		Map<Integer, Double> similarities;
-		if (itemBased) {
-			similarities = this.theSimilarities.get(item);
+	public float predictRating(int user, int item) {
+		Neighborhoods state = this.neighborhoods;
+		if (state == null) {
+			return Float.NaN;
 		}
-		else {
-			similarities = this.theSimilarities.get(user);
+		// The neighborhood of the user (item)
+		int object = Arrays.binarySearch(state.objectIds, itemBased ? item : user);
+		if (object < 0) {
+			return Float.NaN;
 		}
+		int[] neighbors = state.neighbors[object];
+		double[] similarities = state.similarities[object];
 		// Check if we have enough neighbors
-		if (similarities == null || (similarities.size() < this.minNeighbors)) {
+		if (neighbors.length == 0 || neighbors.length < this.minNeighbors) {
 			return Float.NaN;
 		}
 		// The prediction function.
 		// Take the user's average and add the weighted deviation of the neighbors.
 		double totalSimilarity = 0;
-		
-		Float objectAverage;
-		if (itemBased) {
-			objectAverage = this.averages.get(item);
-			if (objectAverage == null) {
-//				System.err.println("NearestNeighbors: There's no average rating for item " + item);
-				return Float.NaN;
-			}
-		}
-		else {
-			objectAverage = averages.get(user);
-			if (objectAverage == null) {
-//				System.err.println("NearestNeighbors: There's no average rating for user " + item);
-				return Float.NaN;
-			}
-		}
-		
+		float objectAverage = state.averages[object];
 		
 		// go through all the neighbors 
 		int cnt = 0;
 		double totalBias = 0;
-		for (Integer otherObject : similarities.keySet()) {
-
+		for (int n = 0; n < neighbors.length; n++) {
+			int otherObject = state.objectIds[neighbors[n]];
 			float neighborRating;
 			if (itemBased) {
 				neighborRating = dataModel.getRating(user, otherObject);
 			}
 			else {
-//				System.out.println("Getting other object rating " + otherObject + "," + item);
 				neighborRating = dataModel.getRating(otherObject, item);
 			}
-			if (!Float.isNaN(neighborRating) && neighborRating != -1) {
-				float neighborBias = neighborRating - averages.get(otherObject); 
-				neighborBias = (float) (neighborBias * similarities.get(otherObject));
+			if (neighborRating != -1) {
+				float neighborBias = neighborRating - state.averages[neighbors[n]]; 
+				neighborBias = (float) (neighborBias * similarities[n]);
 				totalBias += neighborBias;
-				totalSimilarity += similarities.get(otherObject);
+				totalSimilarity += similarities[n];
 				// enough neighbors
 				cnt++;
 				if (cnt >= this.nbNeighbors) {
@@ -138,7 +199,10 @@ public class NearestNeighbors extends AbstractRecommender {
 	 * @param itemid the itemid
 	 * @return the ratings, or null if no ratings exist
 	 */
-	public Set<Rating> getRatingsPerItem(Integer itemid) {
+	public synchronized Set<Rating> getRatingsPerItem(Integer itemid) {
+		if (ratingsPerItem == null) {
+			ratingsPerItem = calculateRatingsPerItem();
+		}
 		return ratingsPerItem.get(itemid);
 	}
 
@@ -184,235 +248,319 @@ public class NearestNeighbors extends AbstractRecommender {
 	public void init() throws Exception {
 //		System.out.println("Getting the averages avgs");
 		if (itemBased) {
-			averages = Utilities101.getItemAverageRatings(dataModel.getRatings());
-			ratingsPerItem = calculateRatingsPerItem();
-//			System.out.println("ratings per item: " + ratingsPerItem + "\n: count:" + ratingsPerItem.size());
+			averages = dataModel.getItemStatistics().getMeans();
 		}
 		else {
 			averages = dataModel.getUserAverageRatings();
 		}
-//		System.out.println(averages);
-//		this.similarities = new HashMap<String, Double>();
-		// Pre-compute the similarities between all users in the test set
-		// Pre-compute the similarities between all users first
-		double sim = Double.NaN;
+		// Prepare the rating vectors and pre-compute the similarities between all users (items)
+		prepareVectors(dataModel.getRatingStore());
 		
-		int similaritiesToCompute; 
-		List<Integer> objects;
-		if (itemBased) {
-			similaritiesToCompute = (dataModel.getItems().size() * dataModel.getItems().size())/2;
-			objects = new ArrayList<Integer>(dataModel.getItems());
-		}
-		else {
-			similaritiesToCompute = (dataModel.getUsers().size() * dataModel.getUsers().size())/2; 
-			objects = new ArrayList<Integer>(dataModel.getUsers());
-		}
+		long similaritiesToCompute = (long) objectIds.length * objectIds.length / 2;
 		Debug.log("NearestNeighbors: Calculating up to " + similaritiesToCompute + " similarities in the test set.. This may take some time.");
 	
 		long start = System.currentTimeMillis();
 		
-		// sort in ascending order
-		Collections.sort(objects);
-		Integer[] objectArr = (Integer[]) objects.toArray(new Integer[objects.size()]);
-		int counter = 0;
-		int tenpercent = similaritiesToCompute / 10;
-		for (int i=0;i<objectArr.length;i++) {
-			for (int j=i+1;j<objectArr.length;j++) {
-				counter++;
-				if (counter % tenpercent == 0) {
-					Debug.log("Similarity computation at : " + Math.round(((counter  / (double) similaritiesToCompute * 100))) + " %");
-				}
-				if (objectArr[i] != null && objectArr[j] != null) { // both must exist...
-					sim = similarity(objectArr[i], objectArr[j]);
-					if (!Double.isNaN(sim)) {
-						if (sim > simThreshold) {
-//						System.out.println("Putting: " + userArr[i] + ":" + userArr[j] + ":" + sim);
-//							this.similarities.put(userArr[i] + ":" + userArr[j], sim);
-							
-							Map<Integer, Double> objectSimilarites1 = theSimilarities.get(objectArr[i]);
-							if (objectSimilarites1 == null) {
-								objectSimilarites1 = new HashMap<Integer, Double>();
-								theSimilarities.put(objectArr[i], objectSimilarites1);
-							}
-							objectSimilarites1.put(objectArr[j], sim);
-							
-							// Copy things
-							Map<Integer, Double> objectSimilarites2 = theSimilarities.get(objectArr[j]);
-							
-							if (objectSimilarites2 == null) {
-								objectSimilarites2 = new HashMap<Integer, Double>();
-								theSimilarities.put(objectArr[j], objectSimilarites2);
-							}
-							objectSimilarites2.put(objectArr[i], sim);
-						}
-					}
-				}
-			}
+		// Compute the pruned neighborhood of every object in parallel, each task owns a block of rows
+		int[][] neighbors = new int[objectIds.length][];
+		double[][] neighborSimilarities = new double[objectIds.length][];
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, nbThreads));
+		try {
+			pool.invoke(new NeighborhoodTask(neighbors, neighborSimilarities, 0, objectIds.length, new AtomicInteger()));
+		}
+		finally {
+			pool.shutdown();
 		}
 		
-		// go through all the user similarities and sort and prune them.
-		for (Integer object : theSimilarities.keySet()) {
-			Map<Integer, Double> sims = theSimilarities.get(object);
-			sims = Utilities101.sortByValueDescending(sims);
-			if (sims.size() > this.nbNeighbors) {
-				Map<Integer, Double> copiedSims = new  LinkedHashMap<Integer, Double>();
-				int cnt = 0;
-				for (Integer simEntry : sims.keySet() ){
-					copiedSims.put(simEntry, sims.get(simEntry));
-					cnt++;
-					if (cnt >= this.nbNeighbors) {
-						break;
-					}
+		// Freeze the neighborhoods for the predictions
+		float[] objectAverages = new float[objectIds.length];
+		for (int i = 0; i < objectIds.length; i++) {
+			objectAverages[i] = averages.get(objectIds[i]);
+		}
+		neighborhoods = new Neighborhoods(objectIds, objectAverages, neighbors, neighborSimilarities);
+		
+		// Provide a read-only view with the neighbors sorted by descending similarity
+		Map<Integer, Map<Integer, Double>> similarities = new HashMap<Integer, Map<Integer, Double>>();
+		for (int i = 0; i < objectIds.length; i++) {
+			if (neighbors[i].length > 0) {
+				Map<Integer, Double> sims = new LinkedHashMap<Integer, Double>();
+				for (int n = 0; n < neighbors[i].length; n++) {
+					sims.put(objectIds[neighbors[i][n]], neighborSimilarities[i][n]);
 				}
-				sims = copiedSims;
+				similarities.put(objectIds[i], Collections.unmodifiableMap(sims));
 			}
 		}
+		theSimilarities = Collections.unmodifiableMap(similarities);
 		
 		Debug.log("Nearest neighbors: Computed " + this.theSimilarities.size() + " similarities");
 		Debug.log("Nearest neighbors: Time: " + (System.currentTimeMillis() - start) / 1000 + " secs");
 	}
 	
+	// =====================================================================================
 	
 	/**
-	 * Calculates the Pearson or cosine similarity for two objects. Returns Double.NaN if
-	 * there are not enough co-rated items
-	 * @param object1 the first object
-	 * @param object2 the second object
-	 * @return a similarity value between -1 and 1
+	 * Prepares one sparse rating vector per user (or per item in the item-based setting). 
+	 * The dimensions are the dense item (user) indices of the rating store, which are sorted 
+	 * within each vector. For Pearson correlation the values are centred around the 
+	 * user's (item's) average once.
+	 * @param store the ratings
 	 */
-	double similarity (Integer object1, Integer object2) {
-//		System.out.println("Calculating similarity for " + user1 + " and " + user2);
-		// Get the ratings of the users 
-		
-		if (object1 == null || object2 == null) {
-			System.out.println("---- No objects provided for similarity calculation");
-			return Double.NaN;
-		}
-		
-		// Ratings to compare
-		Set<Rating> ratings1 = null;
-		Set<Rating> ratings2 = null;
-
+	void prepareVectors(RatingStore store) {
+		int nbObjects;
+		byte[] values;
+		byte[] invertedRatings;
 		if (itemBased) {
-			// Need the pre-computed sets of ratings per items.
-			ratings1 = getRatingsPerItem(object1);
-			ratings2 = getRatingsPerItem(object2);
-			
-			
+			nbObjects = store.getNumberOfItems();
+			vectorOffsets = store.getItemOffsets();
+			vectorIndices = store.getItemUsers();
+			values = store.getItemValues();
+			invertedOffsets = store.getUserOffsets();
+			invertedIndices = store.getUserItems();
+			invertedRatings = store.getUserValues();
 		}
 		else {
-			ratings1 = dataModel.getRatingsPerUser().get(object1);
-			ratings2 = dataModel.getRatingsPerUser().get(object2);
-		}
-		
-		if (ratings1 == null || ratings2 == null) {
-//			System.out.println("issue here.. "+ object1 + " " + object2);
-			return Double.NaN;
+			nbObjects = store.getNumberOfUsers();
+			vectorOffsets = store.getUserOffsets();
+			vectorIndices = store.getUserItems();
+			values = store.getUserValues();
+			invertedOffsets = store.getItemOffsets();
+			invertedIndices = store.getItemUsers();
+			invertedRatings = store.getItemValues();
 		}
-		
-		
-		// Determine the ids of the co-rated items or the co-rating users in case of the item-based
-		// approach
-		Set<Integer> r1 = new HashSet<Integer>();
-		Set<Integer> r2 = new HashSet<Integer>();
-		
-		if (itemBased) {
-			for (Rating r : ratings1) {
-				r1.add(r.user);
+		objectIds = new int[nbObjects];
+		float[] means = new float[nbObjects];
+		vectorValues = new float[values.length];
+		for (int o = 0; o < nbObjects; o++) {
+			objectIds[o] = itemBased ? store.itemId(o) : store.userId(o);
+			means[o] = useCosineSimilarity ? 0 : averages.get(objectIds[o]);
+			for (int p = vectorOffsets[o]; p < vectorOffsets[o + 1]; p++) {
+				vectorValues[p] = values[p] - means[o];
 			}
-			for (Rating r : ratings2) {
-				r2.add(r.user);
+		}
+		invertedValues = null;
+		if (useInvertedIndex) {
+			invertedValues = new float[invertedRatings.length];
+			for (int p = 0; p < invertedRatings.length; p++) {
+				invertedValues[p] = invertedRatings[p] - means[invertedIndices[p]];
 			}
 		}
+	}
+	
+	// =====================================================================================
+	
+	/**
+	 * Computes the similarities of one object to all other objects and keeps the nbNeighbors
+	 * most similar ones above the similarity threshold
+	 * @param i the index of the object
+	 * @param heap an empty heap for the nbNeighbors best objects
+	 * @param neighbors receives the indices of the neighbors in objectIds, most similar first
+	 * @param neighborSimilarities receives the similarity values
+	 */
+	void computeNeighborhood(int i, TopKHeap heap, int[][] neighbors, double[][] neighborSimilarities) {
+		if (useInvertedIndex) {
+			accumulateSimilarities(i, heap);
+		}
 		else {
-			for (Rating r : ratings1) {
-				r1.add(r.item);
+			for (int j = 0; j < objectIds.length; j++) {
+				if (j != i) {
+					double sim = sparseSimilarity(vectorIndices, vectorValues, vectorOffsets[i], vectorOffsets[i + 1],
+							vectorOffsets[j], vectorOffsets[j + 1], minRatingOverlap);
+					if (!Double.isNaN(sim) && sim > simThreshold) {
+						heap.offer(j, sim);
+					}
+				}
 			}
-			for (Rating r : ratings2) {
-				r2.add(r.item);
+		}
+		int n = heap.sortDescending();
+		neighbors[i] = new int[n];
+		neighborSimilarities[i] = new double[n];
+		System.arraycopy(heap.getIds(), 0, neighbors[i], 0, n);
+		System.arraycopy(heap.getScores(), 0, neighborSimilarities[i], 0, n);
+		heap.clear();
+	}
+	
+	// =====================================================================================
+	
+	/**
+	 * Computes the similarities of one object using the inverted index. Only the objects sharing
+	 * at least one dimension are touched. The sums of the kernel are accumulated per candidate in
+	 * the same order as in sparseSimilarity(), so both variants return the same values.
+	 * @param i the index of the object
+	 * @param heap the heap receiving the candidates above the threshold
+	 */
+	void accumulateSimilarities(int i, TopKHeap heap) {
+		SimilarityAccumulator acc = accumulators.get();
+		if (acc == null || acc.count.length != objectIds.length) {
+			acc = new SimilarityAccumulator(objectIds.length);
+			accumulators.set(acc);
+		}
+		int[] count = acc.count;
+		double[] numerator = acc.numerator;
+		double[] squaredDev1 = acc.squaredDev1;
+		double[] squaredDev2 = acc.squaredDev2;
+		int[] touched = acc.touched;
+		int nbTouched = 0;
+		for (int p = vectorOffsets[i]; p < vectorOffsets[i + 1]; p++) {
+			int d = vectorIndices[p];
+			double v1 = vectorValues[p];
+			for (int q = invertedOffsets[d]; q < invertedOffsets[d + 1]; q++) {
+				int j = invertedIndices[q];
+				if (j == i) {
+					continue;
+				}
+				if (count[j] == 0) {
+					touched[nbTouched++] = j;
+				}
+				double v2 = invertedValues[q];
+				numerator[j] += v1 * v2;
+				squaredDev1[j] += v1 * v1;
+				squaredDev2[j] += v2 * v2;
+				count[j]++;
 			}
-			
 		}
+		for (int t = 0; t < nbTouched; t++) {
+			int j = touched[t];
+			if (count[j] >= minRatingOverlap) {
+				double sim = numerator[j] / (Math.sqrt(squaredDev1[j]) * Math.sqrt(squaredDev2[j]));
+				if (!Double.isNaN(sim) && sim > simThreshold) {
+					heap.offer(j, sim);
+				}
+			}
+			// reset the buffers for the next row
+			count[j] = 0;
+			numerator[j] = 0;
+			squaredDev1[j] = 0;
+			squaredDev2[j] = 0;
+		}
+	}
+	
+	/**
+	 * Dense buffers indexed by object, only the touched entries are non-zero
+	 */
+	static class SimilarityAccumulator {
+		int[] count;
+		double[] numerator;
+		double[] squaredDev1;
+		double[] squaredDev2;
+		int[] touched;
 		
-		
-		// Calculate the overlap (intersection)
-		// was rating all r1 before
-		r1.retainAll(r2);
-		
-		if (r1.size() == 0 || r1.size() < this.minRatingOverlap) {
-//			System.out.println("Too small overlap");
-			return Double.NaN;
+		SimilarityAccumulator(int size) {
+			count = new int[size];
+			numerator = new double[size];
+			squaredDev1 = new double[size];
+			squaredDev2 = new double[size];
+			touched = new int[size];
 		}
-//		System.out.println("going ahead");
-		// calculate the similarity / correlation
-		return calculateSimilarity(object1, object2, r1);
 	}
 	
+	// =====================================================================================
 	
 	/**
-	 * An internal function (to be overwritten in a subclass) to calculate the Pearson correlation of two 
-	 * users
-	 * @param user1 id of user 1
-	 * @param user2 id of user 2
-	 * @param overlap the set of co-rated items
-	 * @return returns the similarity value;
+	 * A fork-join task computing the neighborhoods of a range of objects. Ranges larger than
+	 * ROW_BLOCK_SIZE are split in halves. Every row is written by exactly one task, there is
+	 * no shared state except the progress counter.
 	 */
-	protected double calculateSimilarity(Integer object1, Integer object2, Set<Integer> overlap) {
-		double result = Double.NaN;
+	@SuppressWarnings("serial")
+	class NeighborhoodTask extends RecursiveAction {
 		
-		// Cosine similarity computation (and not adjusted cosine)
-		if (useCosineSimilarity) {
-			int commonUsers = overlap.size();
-			// get the ratings
-			double[] ratings1 = new double[commonUsers];
-			double[] ratings2 = new double[commonUsers];
-			
-			int i = 0;
-			// copy the ratings into arrays
-			for (Integer user : overlap) {
-				ratings1[i] = dataModel.getRating(user, object1);
-				ratings2[i] = dataModel.getRating(user, object2);
-				i++;
+		int[][] neighbors;
+		double[][] neighborSimilarities;
+		int from;
+		int to;
+		AtomicInteger rowsDone;
+		
+		NeighborhoodTask(int[][] neighbors, double[][] neighborSimilarities, int from, int to, AtomicInteger rowsDone) {
+			this.neighbors = neighbors;
+			this.neighborSimilarities = neighborSimilarities;
+			this.from = from;
+			this.to = to;
+			this.rowsDone = rowsDone;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > ROW_BLOCK_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new NeighborhoodTask(neighbors, neighborSimilarities, from, middle, rowsDone),
+						new NeighborhoodTask(neighbors, neighborSimilarities, middle, to, rowsDone));
+				return;
+			}
+			TopKHeap heap = new TopKHeap(Math.max(1, nbNeighbors));
+			int tenpercent = Math.max(1, objectIds.length / 10);
+			for (int i = from; i < to; i++) {
+				computeNeighborhood(i, heap, neighbors, neighborSimilarities);
+				int done = rowsDone.incrementAndGet();
+				if (done % tenpercent == 0) {
+					Debug.log("Similarity computation at : " + Math.round(done / (double) objectIds.length * 100) + " %");
+				}
 			}
-			result = Utilities101.dot( ratings1, ratings2) / ( Math.sqrt( Utilities101.dot( ratings1, ratings1 ) ) * Math.sqrt( Utilities101.dot( ratings2, ratings2 ) ) );
-			return result;
 		}
-		// Use Pearson correlation
-		else {
-			double mean1 = Double.NaN;
-			double mean2 = Double.NaN; 
-			try {
-				mean1 = averages.get(object1);
-				mean2 = averages.get(object2);
+	}
+	
+	// =====================================================================================
+	
+	/**
+	 * Calculates the Pearson or cosine similarity for two objects (after init()). Returns 
+	 * Double.NaN if there are not enough co-rated items
+	 * @param object1 the first object
+	 * @param object2 the second object
+	 * @return a similarity value between -1 and 1
+	 */
+	double similarity (Integer object1, Integer object2) {
+		int i = Arrays.binarySearch(objectIds, object1);
+		int j = Arrays.binarySearch(objectIds, object2);
+		if (i < 0 || j < 0) {
+			return Double.NaN;
+		}
+		return sparseSimilarity(vectorIndices, vectorValues, vectorOffsets[i], vectorOffsets[i + 1],
+				vectorOffsets[j], vectorOffsets[j + 1], minRatingOverlap);
+	}
+	
+	// =====================================================================================
+	
+	/**
+	 * The similarity kernel: Intersects two sparse vectors with sorted dimensions in a single
+	 * merge pass and calculates the cosine of the co-rated dimensions. With mean-centred values 
+	 * this is the Pearson correlation. Both vectors are ranges of the same arrays.
+	 * @param indices the sorted dimension indices
+	 * @param values the (centred) rating values
+	 * @param from1 start of the first vector
+	 * @param to1 end (exclusive) of the first vector
+	 * @param from2 start of the second vector
+	 * @param to2 end (exclusive) of the second vector
+	 * @param minOverlap the minimum number of co-rated dimensions
+	 * @return the similarity or Double.NaN if the overlap is too small
+	 */
+	static double sparseSimilarity(int[] indices, float[] values, int from1, int to1, int from2, int to2, 
+			int minOverlap) {
+		int overlap = 0;
+		double numerator = 0.0;
+		double squaredDev1 = 0.0;
+		double squaredDev2 = 0.0;
+		int p1 = from1;
+		int p2 = from2;
+		while (p1 < to1 && p2 < to2) {
+			int d1 = indices[p1];
+			int d2 = indices[p2];
+			if (d1 < d2) {
+				p1++;
 			}
-			catch (Exception e) {
-				System.out.println("EXCEPTION");
-				System.out.println(object1 + " / " + object2);
-				System.out.println(averages);
-				e.printStackTrace();
+			else if (d1 > d2) {
+				p2++;
 			}
-			
-			double rating1;
-			double rating2;
-			
-			double numerator = 0.0;
-			
-			double squaredDev1 = 0.0;
-			double squaredDev2 = 0.0;
-			
-			// Iterate through all and sum things up
-			for (Integer item : overlap) {
-				rating1 = dataModel.getRating(object1, item);
-				rating2 = dataModel.getRating(object2, item);
-				
-				numerator += (rating1 - mean1) * (rating2 - mean2);
-				squaredDev1 += Math.pow((rating1 - mean1),2);
-				squaredDev2 += Math.pow((rating2 - mean2),2);
+			else {
+				double v1 = values[p1++];
+				double v2 = values[p2++];
+				numerator += v1 * v2;
+				squaredDev1 += v1 * v1;
+				squaredDev2 += v2 * v2;
+				overlap++;
 			}
-			
-			result = numerator / (Math.sqrt(squaredDev1) * Math.sqrt(squaredDev2));
-			return result;
 		}
+		if (overlap == 0 || overlap < minOverlap) {
+			return Double.NaN;
+		}
+		return numerator / (Math.sqrt(squaredDev1) * Math.sqrt(squaredDev2));
 	}
 	
 	// =====================================================================================
@@ -471,6 +619,22 @@ public class NearestNeighbors extends AbstractRecommender {
 		}
 	}
 	
+	/**
+	 * Set this to "false" to compare all pairs of objects instead of using the inverted index
+	 * @param inverted "true" (default) or "false"
+	 */
+	public void setInvertedIndex(String inverted) {
+		this.useInvertedIndex = Boolean.parseBoolean(inverted);
+	}
+	
+	/**
+	 * Sets the number of threads for the similarity computation
+	 * @param n the number of threads
+	 */
+	public void setThreads(String n) {
+		this.nbThreads = Integer.parseInt(n);
+	}
+	
 	
 	// =====================================================================================
 	
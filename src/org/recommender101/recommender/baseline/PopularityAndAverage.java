@@ -5,9 +5,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import org.recommender101.data.Rating;
 import org.recommender101.recommender.AbstractRecommender;
 import org.recommender101.tools.Utilities101;
 
@@ -125,20 +123,16 @@ public class PopularityAndAverage extends AbstractRecommender {
 	 * A new init method which uses the utilities class
 	 */
 	public void init() {
-		Set<Rating> ratings = getDataModel().getRatings();
-		
 		if (userAverage) {
-			userAverages = Utilities101.getUserAverageRatings(ratings);
+			userAverages = getDataModel().getUserStatistics().getMeans();
 		}
 		else {
-			itemAverages = Utilities101.getItemAverageRatings(ratings);
+			itemAverages = getDataModel().getItemStatistics().getMeans();
 		}
 		globalAverage = (float) Utilities101.getGlobalRatingAverage(getDataModel());
 		
-		// count the popularity of the items
-		for (Rating r : ratings) {
-			Utilities101.incrementMapValue(this.ratingCountPerItem, r.item);
-		}
+		// the popularity of the items
+		ratingCountPerItem = getDataModel().getItemStatistics().getCounts();
 		
 
 	}
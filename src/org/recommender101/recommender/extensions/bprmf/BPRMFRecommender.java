@@ -1,18 +1,18 @@
 package org.recommender101.recommender.extensions.bprmf;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.recommender101.data.Rating;
 import org.recommender101.recommender.AbstractRecommender;
 import org.recommender101.recommender.extensions.funksvd.RandomUtils;
 import org.recommender101.tools.Debug;
-import org.recommender101.tools.Utilities101;
 
 /**
  * Bayesian Personalized Ranking - Ranking by pairwise classification
@@ -68,6 +68,16 @@ public class BPRMFRecommender extends AbstractRecommender {
 	// If set (default), update factors for negative sampled items during
 	// learning
 	public boolean updateJ = true;
+
+	// number of threads for the training, see trainParallel()
+	public int numThreads = 1;
+
+	// seed of the random streams of the initialization and the training, drawn from the
+	// shared generator if not set
+	public Long seed = null;
+
+	// random numbers of the sequential training, a stream of the seed if it is set
+	Random trainingRandom = random;
 	
 
 	@Override
@@ -107,44 +117,39 @@ public class BPRMFRecommender extends AbstractRecommender {
 	// =====================================================================================
 
 	/**
-	 * This is similar to AbstractRecommender.recommendItemsByRatingPrediction but uses the internal function
+	 * Scores the items with the BPR model (item bias plus dot product of the factors), the user
+	 * vector is looked up once. The scores are only helpful for ranking and not for prediction.
 	 */
-	public List<Integer> recommendByPrediction(int user) {
-		List<Integer> result = new ArrayList<Integer>();
-
-		// If there are no ratings for the user in the training set,
-		// there is no point of making a recommendation.
-		Map<Integer, Set<Rating>> ratings = getDataModel().getRatingsPerUser();
-		// If we have no ratings...
-		if (ratings == null || ratings.size() == 0) {
-			return Collections.emptyList();
+	@Override
+	public void scoreItems(int user, int[] items, float[] out) {
+		Integer useridx = data.userIndices.get(user);
+		if (useridx == null) {
+			// This might happen during training test splits for super-sparse (test) data
+			Arrays.fill(out, 0, items.length, Float.NaN);
+			return;
 		}
-
-		// Calculate rating predictions for all items we know
-		Map<Integer, Float> predictions = new HashMap<Integer, Float>();
-		byte rating = -1;
-		float pred = Float.NaN;
-		// Go through all the items
-		for (Integer item : dataModel.getItems()) {
-			// check if we have seen the item already
-			rating = dataModel.getRating(user, item);
-			if (rating == -1) {
-				// make a prediction and remember it in case the recommender
-				// could make one
-				pred = predictRatingBPR(user, item);
-				if (!Float.isNaN(pred)) {
-					predictions.put(item, pred);
-				}
+		double[] userVector = data.latentUserVector[useridx];
+		for (int k = 0; k < items.length; k++) {
+			Integer itemidx = data.itemIndices.get(items[k]);
+			if (itemidx == null) {
+				out[k] = Float.NaN;
+				continue;
 			}
+			double[] itemVector = data.latentItemVector[itemidx];
+			double result = 0.0;
+			for (int c = 0; c < userVector.length; c++) {
+				result += userVector[c] * itemVector[c];
+			}
+			out[k] = (float) (data.item_bias[itemidx] + result);
 		}
-		
-		predictions = filterElementsByRelevanceThreshold(predictions, user);
-		predictions = Utilities101.sortByValueDescending(predictions);
-		
-		for (Integer item : predictions.keySet()) {
-			result.add(item);
-		}
-		return result;
+	}
+
+	/**
+	 * Ranks the items by their BPR score (see scoreItems()) using 
+	 * AbstractRecommender.recommendItemsByRatingPrediction
+	 */
+	public List<Integer> recommendByPrediction(int user) {
+		return recommendItemsByRatingPrediction(user);
 	}
 	
 	
@@ -163,7 +168,7 @@ public class BPRMFRecommender extends AbstractRecommender {
 	 * Initialization of the needed objects and variables
 	 * 
 	 */
-	public void init() {
+	public void init() throws Exception {
 
 		// ascertain number of users and items
 		numItems = dataModel.getItems().size();
@@ -171,6 +176,13 @@ public class BPRMFRecommender extends AbstractRecommender {
 
 //		System.out.println("Users, items: " + numUsers + " " + numItems + " ratings " + dataModel.getRatings().size());
 		
+		// The initialization and the sequential training draw from streams of the seed
+		if (seed != null) {
+			RandomStream streams = new RandomStream(seed);
+			data.setRandom(streams.split());
+			trainingRandom = streams.split();
+		}
+
 		// Initialization of datamanagement-object
 		data.init(dataModel, numUsers, numItems, numFeatures);
 
@@ -189,7 +201,11 @@ public class BPRMFRecommender extends AbstractRecommender {
 	 * Training of the given data
 	 * 
 	 */
-	public void train() {
+	public void train() throws Exception {
+		if (numThreads > 1) {
+			trainParallel();
+			return;
+		}
 		for (int i = 0; i < initialSteps; i++) {
 			iterate();
 		}
@@ -197,6 +213,101 @@ public class BPRMFRecommender extends AbstractRecommender {
 
 	// =====================================================================================
 
+	/**
+	 * Training on several threads. The iterations are split between the threads: with uniform
+	 * user sampling each thread samples its share of the triples, otherwise each thread runs over
+	 * the seen items of a range of users. Each thread samples with its own random stream, derived
+	 * from the seed, the iteration and the thread number, so the sampled triples do not depend on
+	 * the timing. The threads update the latent matrices and the item biases asynchronously
+	 * without locks (Hogwild), which is why the result is not bit-identical between runs.
+	 * 
+	 */
+	public void trainParallel() throws Exception {
+		long trainingSeed = (seed != null) ? seed : random.nextLong();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			for (int i = 0; i < initialSteps; i++) {
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for (int t = 0; t < numThreads; t++) {
+					tasks.add(new TrainingTask(RandomStream.forThread(trainingSeed, i, t), t));
+				}
+				for (Future<Void> future : pool.invokeAll(tasks)) {
+					future.get();
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			throw new Exception("BPRMF: Training failed", e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * The share of a thread in one iteration
+	 */
+	class TrainingTask implements Callable<Void> {
+
+		Random threadRandom;
+		int thread;
+
+		TrainingTask(Random threadRandom, int thread) {
+			this.threadRandom = threadRandom;
+			this.thread = thread;
+		}
+
+		public Void call() {
+			if (UniformUserSampling) {
+				int num_pos_events = data.numPosentries;
+				int from = (int) ((long) num_pos_events * thread / numThreads);
+				int to = (int) ((long) num_pos_events * (thread + 1) / numThreads);
+				int[] triple = new int[3];
+				for (int i = from; i < to; i++) {
+					triple[0] = sampleUser(threadRandom);
+					sampleItempair(triple, threadRandom);
+					updateFactors(triple[0], triple[1], triple[2], true, true, updateJ);
+				}
+			} else {
+				// the users whose seen items start in the share of the thread
+				int from = (int) ((long) data.numPosentries * thread / numThreads);
+				int to = (int) ((long) data.numPosentries * (thread + 1) / numThreads);
+				int[] triple = new int[3];
+				for (int k = firstUserAt(from); k < numUsers && data.userOffsets[k] < to; k++) {
+					if (data.getNumberOfPositives(k) == numItems)
+						continue;
+					for (int p = data.userOffsets[k]; p < data.userOffsets[k + 1]; p++) {
+						triple[0] = k;
+						triple[1] = data.positiveItems[p];
+						do
+							triple[2] = threadRandom.nextInt(numItems);
+						while (data.isPositive(k, triple[2]));
+						updateFactors(triple[0], triple[1], triple[2], true, true, updateJ);
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * the first user whose seen items start at or after the given position
+	 */
+	int firstUserAt(int position) {
+		int lo = 0;
+		int hi = numUsers;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (data.userOffsets[mid] < position)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	// =====================================================================================
+
 	/**
 	 * Perform one iteration of stochastic gradient ascent over the training
 	 * data
@@ -225,20 +336,19 @@ public class BPRMFRecommender extends AbstractRecommender {
 			}
 
 		} else {
-			// runs over all possible user-item-combinations
-			for (int k = 0; k < data.boolMatrix.length; k++) {
+			// runs over the seen items of each user
+			for (int k = 0; k < numUsers; k++) {
 
-				for (int l = 0; l < data.boolMatrix[k].length; l++) {
+				// no unseen item can be sampled
+				if (data.getNumberOfPositives(k) == numItems)
+					continue;
+
+				for (int p = data.userOffsets[k]; p < data.userOffsets[k + 1]; p++) {
 
 					user_id = k;
-					pos_item_id = l;
+					pos_item_id = data.positiveItems[p];
 					neg_item_id = -1;
 
-					// if the user has not seen the item, another item gets
-					// chosen
-					if (!data.boolMatrix[user_id][pos_item_id])
-						continue;
-
 					// sampling a triple for a given user and seen item
 					int[] sampleTriple = sampleOtheritem(user_id, pos_item_id,
 							neg_item_id);
@@ -340,11 +450,11 @@ public class BPRMFRecommender extends AbstractRecommender {
 		sampleTriple[0] = u;
 		sampleTriple[1] = i;
 		sampleTriple[2] = j;
-		boolean item_is_positive = data.boolMatrix[u][i];
+		boolean item_is_positive = data.isPositive(u, i);
 
 		do
-			sampleTriple[2] = random.nextInt(numItems);
-		while (data.boolMatrix[u][sampleTriple[2]] == item_is_positive);
+			sampleTriple[2] = trainingRandom.nextInt(numItems);
+		while (data.isPositive(u, sampleTriple[2]) == item_is_positive);
 
 		return sampleTriple;
 	}
@@ -357,15 +467,23 @@ public class BPRMFRecommender extends AbstractRecommender {
 	 * @return u Number - the mapped userID
 	 */
 	public int sampleUser() {
+		return sampleUser(trainingRandom);
+	}
+
+	/**
+	 * finds an user who has viewed at least one item but not all
+	 * 
+	 * @param random
+	 *            Random - the random generator to use
+	 * @return u Number - the mapped userID
+	 */
+	public int sampleUser(Random random) {
 		while (true) {
 
 			int u = random.nextInt(numUsers);
-			if (!data.userMatrix.containsKey(u))
-				continue;
-			List<Integer> viewedItemsList = data.userMatrix.get(u);
+			int viewedItems = data.getNumberOfPositives(u);
 
-			if (viewedItemsList == null || viewedItemsList.size() == 0
-					|| viewedItemsList.size() == numItems)
+			if (viewedItems == 0 || viewedItems == numItems)
 				continue;
 			return u;
 		}
@@ -394,13 +512,24 @@ public class BPRMFRecommender extends AbstractRecommender {
 	 *         mapped view itemId and the mapped unviewed itemID
 	 */
 	public int[] sampleItempair(int[] triple) {
+		return sampleItempair(triple, trainingRandom);
+	}
+
+	/**
+	 * finds a seen item and an unseen item
+	 * 
+	 * @param random
+	 *            Random - the random generator to use
+	 * @return sampleTriple Array - an array containing the mapped userID, the
+	 *         mapped view itemId and the mapped unviewed itemID
+	 */
+	public int[] sampleItempair(int[] triple, Random random) {
 		int u = triple[0];
 
-		List<Integer> user_items = data.userMatrix.get(u);
-		triple[1] = user_items.get((random.nextInt(user_items.size())));
+		triple[1] = data.positiveItems[data.userOffsets[u] + random.nextInt(data.getNumberOfPositives(u))];
 		do
 			triple[2] = random.nextInt(numItems);
-		while (user_items.contains(triple[2]));
+		while (data.isPositive(u, triple[2]));
 
 		return triple;
 	}
@@ -481,6 +610,24 @@ public class BPRMFRecommender extends AbstractRecommender {
 		this.initialSteps = Integer.parseInt(n);
 	}
 	
+	/**
+	 * Setter for the number of training threads
+	 * 
+	 * @param n
+	 */
+	public void setNumThreads(String n) {
+		this.numThreads = Integer.parseInt(n);
+	}
+
+	/**
+	 * Setter for the seed of the initialization and the training
+	 * 
+	 * @param n
+	 */
+	public void setSeed(String n) {
+		this.seed = Long.parseLong(n);
+	}
+
 	/**
 	 * Setter for the uniform Sampling
 	 * 
@@ -1,10 +1,13 @@
 package org.recommender101.recommender.extensions.bprmf;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.Set;
 
 import org.recommender101.data.DataModel;
+import org.recommender101.data.Rating;
 import org.recommender101.recommender.extensions.funksvd.RandomUtils;
 
 /**
@@ -31,20 +34,22 @@ public class DataManagement {
 	public static double sqrt_e_div_2_pi = Math.sqrt(Math.E / (2 * Math.PI));
 	public static final Random random = RandomUtils.getRandom();
 
+	// random numbers of the initialization, the shared generator by default
+	private Random initRandom = random;
+
 	private double initMean = 0;
 	private double initStDev = 0.1;
 
 	public double[][] latentUserVector;
 	public double[][] latentItemVector;
 
-	// HashMap containing for each user a list with seen item
-	public HashMap<Integer, ArrayList<Integer>> userMatrix = new HashMap<Integer, ArrayList<Integer>>();
-
-	// matrix containing for each user/item - combination a bool value,
-	// indicating whether the user has seen the item
-	public boolean[][] boolMatrix;
+	// The seen items of each user (mapped ids, CSR): the items of user u are found at
+	// positions userOffsets[u] to userOffsets[u+1]-1 of positiveItems, sorted ascending.
+	// The memory is proportional to the number of ratings.
+	public int[] userOffsets;
+	public int[] positiveItems;
 
-	// number of positive entries in then boolmatrix
+	// number of positive entries
 	public int numPosentries = 0;
 
 	public DataModel dm;
@@ -88,38 +93,94 @@ public class DataManagement {
 		initLatentmatrix(latentItemVector);
 
 		item_bias = new double[numItems];
-		boolMatrix = new boolean[numUsers][numItems];
 
-		this.booleanRatings();
+		this.booleanRatings(numUsers);
 	}
 
 	/**
-	 * initiates the user/item-matrix with booleans instead of ratings
+	 * collects the seen items of each user (see booleanRatings(int)) for all mapped users
+	 * 
+	 * @deprecated the seen items are no longer kept in boolMatrix and userMatrix but in
+	 *             userOffsets and positiveItems, use booleanRatings(int) or isPositive()
 	 */
+	@Deprecated
 	public void booleanRatings() {
-		for (int k = 0; k < boolMatrix.length; k++) {
-			ArrayList<Integer> userItems = new ArrayList<Integer>();
-			for (int l = 0; l < boolMatrix[k].length; l++) {
-				int user = userMap.get(k);
-				int item = itemMap.get(l);
-				if (dm.getRating(user, item) > 0) {
+		this.booleanRatings(userMap.size());
+	}
+
+	/**
+	 * collects the seen items of each user, i.e., the items with a rating, from the ratings of
+	 * the users (instead of probing all user/item-combinations). Users without ratings in the
+	 * data model have no seen items.
+	 * 
+	 * @param numUsers
+	 *            Number - number of users
+	 */
+	public void booleanRatings(int numUsers) {
+		userOffsets = new int[numUsers + 1];
+		int[][] rows = new int[numUsers][];
+		for (int k = 0; k < numUsers; k++) {
+			int user = userMap.get(k);
+			Set<Rating> ratingsOfUser = dm.getRatingsOfUser(user);
+			if (ratingsOfUser == null) {
+				ratingsOfUser = Collections.emptySet();
+			}
+			int[] userItems = new int[ratingsOfUser.size()];
+			int n = 0;
+			for (Rating r : ratingsOfUser) {
+				if (r.rating > 0) {
 					// Should we only consider relevant items here?
 					if (this.useRatingThreshold) {
 					}
-					
-					
-					boolMatrix[k][l] = true;
-					userItems.add(l);
-					numPosentries++;
-				} else {
-					boolMatrix[k][l] = false;
+					userItems[n++] = itemIndices.get(r.item);
 				}
-
 			}
-			userMatrix.put(k, userItems);
+			rows[k] = Arrays.copyOf(userItems, n);
+			Arrays.sort(rows[k]);
+			userOffsets[k + 1] = userOffsets[k] + n;
+		}
+		numPosentries = userOffsets[numUsers];
+		positiveItems = new int[numPosentries];
+		for (int k = 0; k < numUsers; k++) {
+			System.arraycopy(rows[k], 0, positiveItems, userOffsets[k], rows[k].length);
 		}
 	}
 
+	/**
+	 * tells whether the user has seen the item (binary search in the seen items of the user)
+	 * 
+	 * @param user
+	 *            Number - the mapped userID
+	 * @param item
+	 *            Number - the mapped itemID
+	 * @return true if the user has seen the item
+	 */
+	public boolean isPositive(int user, int item) {
+		return Arrays.binarySearch(positiveItems, userOffsets[user], userOffsets[user + 1], item) >= 0;
+	}
+
+	/**
+	 * the number of items seen by a user
+	 * 
+	 * @param user
+	 *            Number - the mapped userID
+	 * @return the number of seen items
+	 */
+	public int getNumberOfPositives(int user) {
+		return userOffsets[user + 1] - userOffsets[user];
+	}
+
+	/**
+	 * sets the random generator for the initialization of the latent matrices, e.g., a seeded
+	 * one to reproduce a model
+	 * 
+	 * @param random
+	 *            Random - the random generator to use in init()
+	 */
+	public void setRandom(Random random) {
+		this.initRandom = random;
+	}
+
 	/**
 	 * initiates the given latent matrix with random values
 	 * 
@@ -233,11 +294,11 @@ public class DataManagement {
 		double y;
 		double x;
 		do {
-			double u = random.nextDouble();
+			double u = initRandom.nextDouble();
 			x = nextExp(1);
 			y = 2 * u * sqrt_e_div_2_pi * Math.exp(-x);
 		} while (y < (2 / (2 * Math.PI)) * Math.exp(-0.5 * x * x));
-		if (random.nextDouble() < 0.5) {
+		if (initRandom.nextDouble() < 0.5) {
 			return x;
 		} else {
 			return -x;
@@ -245,7 +306,7 @@ public class DataManagement {
 	}
 
 	public double nextExp(double lambda) {
-		double u = random.nextDouble();
+		double u = initRandom.nextDouble();
 		return -(1 / lambda) * Math.log(1 - u);
 	}
 
@@ -0,0 +1,82 @@
+/** DJ **/
+package org.recommender101.recommender.extensions.bprmf;
+
+import java.util.Random;
+
+/**
+ * A splittable random generator (SplitMix64, Steele, Lea and Flood 2014) for the training
+ * threads. Unlike a shared java.util.Random it is not synchronized, so each thread uses its
+ * own stream. The streams for the threads are derived from one seed with split() or
+ * forThread(), which makes the sampling reproducible for a given seed.
+ */
+public class RandomStream extends Random {
+
+	private static final long serialVersionUID = 1L;
+
+	// The increment of the state (the odd part of the golden ratio)
+	static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	// The state, set by the constructor of Random through setSeed()
+	long state;
+
+	// =====================================================================================
+
+	/**
+	 * Creates a stream
+	 * @param seed the seed
+	 */
+	public RandomStream(long seed) {
+		super(seed);
+	}
+
+	/**
+	 * Creates the stream of a thread in an epoch, the same arguments always give the same stream
+	 * @param seed the seed of the training
+	 * @param epoch the epoch
+	 * @param thread the thread
+	 * @return a new stream
+	 */
+	public static RandomStream forThread(long seed, int epoch, int thread) {
+		RandomStream streams = new RandomStream(seed);
+		streams.state += mix64(((long) epoch << 32) | thread);
+		return streams.split();
+	}
+
+	/**
+	 * Creates a new stream which is independent of this one, advances this stream
+	 * @return a new stream
+	 */
+	public RandomStream split() {
+		return new RandomStream(mix64(nextSeed()) ^ mix64(nextSeed()));
+	}
+
+	// =====================================================================================
+
+	@Override
+	public synchronized void setSeed(long seed) {
+		state = seed;
+		// resets the cached Gaussian of Random
+		super.setSeed(seed);
+	}
+
+	@Override
+	protected int next(int bits) {
+		return (int) (nextLong() >>> (64 - bits));
+	}
+
+	@Override
+	public long nextLong() {
+		return mix64(nextSeed());
+	}
+
+	long nextSeed() {
+		return state += GOLDEN_GAMMA;
+	}
+
+	static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+}
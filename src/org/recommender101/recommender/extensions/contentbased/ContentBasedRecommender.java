@@ -268,7 +268,7 @@ public class ContentBasedRecommender extends AbstractRecommender {
 		userAverages = dataModel.getUserAverageRatings();
 		
 		// Remember the item averages
-		itemAverages = Utilities101.getItemAverageRatings(dataModel.getRatings());
+		itemAverages = dataModel.getItemStatistics().getMeans();
 		
 		if (fallBack != null) {
 			if ("FunkSVD".equalsIgnoreCase(fallBack)) {
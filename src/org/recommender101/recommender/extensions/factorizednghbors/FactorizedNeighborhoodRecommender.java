@@ -1,6 +1,7 @@
 package org.recommender101.recommender.extensions.factorizednghbors;
 
 import java.io.FileReader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -83,73 +84,69 @@ public class FactorizedNeighborhoodRecommender extends AbstractRecommender {
 	/** Returns a prediction for a user */
 	@Override
 	public float predictRating(int user, int item) {
-		double buj = 0.0;
-		double ruj = 0.0;
-		double prediction = Double.NaN;
-		double normalizePreferences = 0.0;
-		double scalarPuQi = 0.0;
-		int numOfPreferences = 0;
-		int numOfFactors;
-		Integer itemJ;
-
-		double[] qiarray = mapOfQiArrays.get(item);
-		if (qiarray == null) {
-//			System.err.println("No qi values for " + item + ", cannot make a prediction");
-			return Float.NaN;
-		}
-		
-		numOfFactors = mapOfQiArrays.get(item).length;
-		numOfPreferences = dataModel.getRatingsOfUser(user).size();
-		normalizePreferences = Math.pow(numOfPreferences, -0.5);
-		double[] xiArray = mapOfXiArrays.get(item);
-		double[] yiArray = mapOfYiArrays.get(item);
-		double[] qiArray = mapOfQiArrays.get(item);
-		double[] sumXiArray = new double[numOfFactors];
-		double[] sumYiArray = new double[numOfFactors];
-		double[] puArray = new double[numOfFactors];
-
-		for (Rating r : dataModel.getRatingsOfUser(user)) {
-			itemJ = r.item;
-			if (itemJ != item) {
-				buj = mAvgOfAllPreferences + mapOfBu.get(user)
-						+ mapOfBi.get(itemJ);
-				ruj = r.rating;
-				for (int a = 0; a < numOfFactors; a++) {
-					sumXiArray[a] += (ruj - buj) * xiArray[a];
-					sumYiArray[a] += yiArray[a];
-				}
-			}
-		}
-		// Part of Prediction-Function independent of item.
-		for (int a = 0; a < numOfFactors; a++) {
-			sumXiArray[a] = normalizePreferences * sumXiArray[a];
-			sumYiArray[a] = normalizePreferences * sumYiArray[a];
-			puArray[a] = sumXiArray[a] + sumYiArray[a];
-		}
-		// compute scalarproduct of qi*pu.
-		scalarPuQi = 0.0;
-		for (int a = 0; a < numOfFactors; a++) {
-			scalarPuQi += qiArray[a] * puArray[a];
+		float[] prediction = new float[1];
+		predictRatings(user, new int[] { item }, prediction);
+		return prediction[0];
+	}
+
+	/**
+	 * Returns the predictions for several items of a user. The sums over the user's ratings do
+	 * not depend on the item: sum(ruj - buj) * xi and sum(yi) over the other rated items j are
+	 * the sum of all residuals (minus the residual of the item if it was rated) times xi and
+	 * the number of the other rated items times yi. They are computed once per user, so an item
+	 * takes time proportional to the number of factors.
+	 */
+	@Override
+	public void predictRatings(int user, int[] items, float[] out) {
+		Set<Rating> ratingsOfUser = dataModel.getRatingsOfUser(user);
+		if (ratingsOfUser == null) {
+			Arrays.fill(out, 0, items.length, Float.NaN);
+			return;
 		}
-		
-//		System.out.println(scalarPuQi);
-		
 		Double mapOfBuValue = mapOfBu.get(user);
-		Double mapOfBivalue = mapOfBi.get(item);
-		
 		double bu = 0.0;
-		double bi = 0.0;
 		if (mapOfBuValue != null) {
 			bu = mapOfBuValue;
 		}
-		if (mapOfBivalue != null) {
-			bi = mapOfBivalue;
+		int numOfPreferences = ratingsOfUser.size();
+		double normalizePreferences = Math.pow(numOfPreferences, -0.5);
+
+		// The sum of ruj - buj over the items of the user
+		double sumOfResiduals = 0.0;
+		for (Rating r : ratingsOfUser) {
+			sumOfResiduals += r.rating - (mAvgOfAllPreferences + bu + mapOfBi.get(r.item));
+		}
+
+		for (int k = 0; k < items.length; k++) {
+			int item = items[k];
+			double[] qiArray = mapOfQiArrays.get(item);
+			if (qiArray == null) {
+				out[k] = Float.NaN;
+				continue;
+			}
+			int numOfFactors = qiArray.length;
+			double[] xiArray = mapOfXiArrays.get(item);
+			double[] yiArray = mapOfYiArrays.get(item);
+			double bi = 0.0;
+			Double mapOfBiValue = mapOfBi.get(item);
+			if (mapOfBiValue != null) {
+				bi = mapOfBiValue;
+			}
+			// The item itself is not part of the sums
+			double residuals = sumOfResiduals;
+			int numOfOtherItems = numOfPreferences;
+			byte rating = dataModel.getRating(user, item);
+			if (rating != -1) {
+				residuals -= rating - (mAvgOfAllPreferences + bu + mapOfBi.get(item));
+				numOfOtherItems--;
+			}
+			double scalarPuQi = 0.0;
+			for (int a = 0; a < numOfFactors; a++) {
+				double pu = normalizePreferences * (residuals * xiArray[a]) + normalizePreferences * (numOfOtherItems * yiArray[a]);
+				scalarPuQi += qiArray[a] * pu;
+			}
+			out[k] = (float) (mAvgOfAllPreferences + bu + bi + scalarPuQi);
 		}
-			
-		
-		prediction = mAvgOfAllPreferences + bu + bi + scalarPuQi;
-//		 System.out.println( "Prediction for User " + user + " and Item: " + item + " is => " + prediction + "\n" );
-		return (float) prediction;
 	}
 
 	/**
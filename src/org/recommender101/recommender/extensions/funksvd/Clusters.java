@@ -3,14 +3,14 @@ package org.recommender101.recommender.extensions.funksvd;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
+
+import org.recommender101.eval.impl.Recommender101Impl;
 
 public class Clusters {
     ArrayList<Set<Integer>> cluster;// = new ArrayList<Set<Integer>>();
@@ -25,7 +25,7 @@ public class Clusters {
             cluster.add(clusId,s);
         }
         cluster.get(clusId).add(itemId);
-        ItemClusterMap.add(itemId,clusId);
+        ItemClusterMap.set(itemId,clusId);
     }
     
     public Clusters(int size,int numItems)
@@ -55,7 +55,7 @@ public class Clusters {
         }
     }
     
-    public ArrayList<ArrayList<Integer>> topNReco(int numItems, int N, double[][] itemMatrix_SVD, int k) throws IOException {
+    public ArrayList<ArrayList<Integer>> topNReco(int numItems, int N, double[][] itemMatrix_SVD, int k) throws Exception {
   		// Computing the TopN recommendations for each item from Clusters
   		ArrayList<ArrayList<Integer>> topNReco2 = new ArrayList<ArrayList<Integer>>(
   				numItems);
@@ -63,38 +63,34 @@ public class Clusters {
   			ArrayList<Integer> s = new ArrayList<Integer>(Collections.nCopies(N, -1));
   			topNReco2.add(s);
   		}
-  		for (int i = 0; i < numItems; i++) {
-  			double temp2;
-  			ArrayList<Integer> tempReco = new ArrayList<Integer>(Collections.nCopies(
-  					N, -1));
-  			int ClusterID = ItemClusterMap.get(i);
-  			if (ClusterID != -1) {
-  				Set<Integer> ItemsInCluster = new HashSet<Integer>(
-  						cluster.get(ClusterID));
-  				HashMap<Integer, Double> SimilarityAll = new HashMap<Integer, Double>();
-
-  				for (Integer j : ItemsInCluster) {
-  					if (i != j) {
-  						temp2 = Similarity.calculateSimilarity(itemMatrix_SVD[i],
-  								itemMatrix_SVD[j], 0);
-  						SimilarityAll.put(j, temp2);
-  					}
+  		// The neighbors of an item are the most similar items of its cluster
+  		for (int c = 0; c < cluster.size(); c++) {
+  			List<Integer> members = new ArrayList<Integer>();
+  			for (int i = 0; i < numItems; i++) {
+  				if (ItemClusterMap.get(i) == c) {
+  					members.add(i);
   				}
-  				ValueComparator bvc = new ValueComparator(SimilarityAll);
-  				Map<Integer, Double> sorted_Similarity = new TreeMap<Integer, Double>(
-  						bvc);
-  				sorted_Similarity.putAll(SimilarityAll);
-  				int i1 = 0;
-  				for (Integer key : sorted_Similarity.keySet()) {
-
-  					if (i1 < N) {
-  						tempReco.add(i1, key);
-  					}
-  					else
-  						break;
-  					i1++;
+  			}
+  			if (members.isEmpty()) {
+  				continue;
+  			}
+  			int[] rows = new int[members.size()];
+  			for (int r = 0; r < rows.length; r++) {
+  				rows[r] = members.get(r);
+  			}
+  			int[] candidates = new int[cluster.get(c).size()];
+  			int n = 0;
+  			for (Integer j : cluster.get(c)) {
+  				candidates[n++] = j;
+  			}
+  			int[][] neighbors = TopNSimilarities.compute(itemMatrix_SVD, rows, candidates, N,
+  					Recommender101Impl.NUM_OF_THREADS);
+  			for (int r = 0; r < rows.length; r++) {
+  				ArrayList<Integer> tempReco = new ArrayList<Integer>(N);
+  				for (int j : neighbors[r]) {
+  					tempReco.add(j);
   				}
-  				topNReco2.add(i, tempReco);
+  				topNReco2.set(rows[r], tempReco);
   			}
   		}
   		HashMap<Integer, NewMovieContent> MovieDetails = new HashMap<Integer, NewMovieContent>(numItems);
@@ -4,7 +4,7 @@ package org.recommender101.recommender.extensions.funksvd;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -20,15 +20,11 @@ import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
 import org.apache.mahout.math.Vector;
 import org.recommender101.data.Rating;
+import org.recommender101.data.RatingStore;
+import org.recommender101.eval.impl.Recommender101Impl;
 import org.recommender101.recommender.AbstractRecommender;
 import org.recommender101.tools.Debug;
-import org.recommender101.tools.Utilities101;
-import Jama.Matrix;
-import cern.colt.matrix.DoubleMatrix2D;
-import cern.colt.matrix.impl.RCDoubleMatrix2D;
-import cern.colt.matrix.impl.SparseDoubleMatrix2D;
-import cern.colt.matrix.linalg.SingularValueDecomposition;
-import cern.colt.matrix.linalg.Algebra;
+import org.recommender101.tools.Utilities101;
 
 /**
  * Implements a baseline SVD recommender
@@ -45,29 +41,79 @@ public class FunkSVDRecommender extends AbstractRecommender {
 	int initialSteps = 1;
 	int N = 7;
 
+	// The number of factors of the truncated SVD of the rating matrix
+	int svdRank = 10;
+
+	// Train with the stratified (deterministic) schedule instead of Hogwild, see ParallelSGD
+	boolean stratifiedTraining = false;
+
+	// Train the factors for initialSteps epochs in init(), off by default as before
+	boolean trainFactors = false;
+
 	private FastByIDMap<Integer> userMap = null;
 	private FastByIDMap<Integer> itemMap = null;
 	private GradientDescentSVD emSvd = null;
 	private List<Rating> cachedPreferences = null;
+	private ParallelSGD trainer = null;
 
 	protected static Set<Integer> newItems = new HashSet<Integer>();
 
 	// Calculate the user averages
 	Map<Integer, Float> perUserAverage = new HashMap<Integer, Float>();
 
+	// The factors used for the predictions, see freezeFactors()
+	private FactorSnapshot factors = null;
+
 	// =====================================================================================
 
-	@Override
-	public synchronized float predictRating(int user, int item) {
-		// return 0;
-		Integer useridx = userMap.get(user);
-		Integer itemidx = itemMap.get(item);
+	/**
+	 * A read-only copy of the learned user and item factors. All fields are final and the
+	 * arrays are never changed after construction, so any number of threads can use the
+	 * snapshot for predictions without locking.
+	 */
+	static final class FactorSnapshot {
+		// sorted user ids, position = row in userFactors
+		final int[] userIds;
+		final double[][] userFactors;
+		// sorted item ids, position = row in itemFactors
+		final int[] itemIds;
+		final double[][] itemFactors;
+
+		FactorSnapshot(int[] userIds, double[][] userFactors, int[] itemIds, double[][] itemFactors) {
+			this.userIds = userIds;
+			this.userFactors = userFactors;
+			this.itemIds = itemIds;
+			this.itemFactors = itemFactors;
+		}
+
+		/**
+		 * The same computation as GradientDescentSVD.getDotProduct()
+		 */
+		double getDotProduct(int u, int i) {
+			double result = 1.0;
+			double[] userVector = userFactors[u];
+			double[] itemVector = itemFactors[i];
+			for (int k = 0; k < userVector.length; k++) {
+				result += userVector[k] * itemVector[k];
+			}
+			return result;
+		}
+	}
 
-		// return (float) emSvd.getDotProduct(useridx, itemidx);
+	// =====================================================================================
+
+	@Override
+	public float predictRating(int user, int item) {
+		FactorSnapshot snapshot = this.factors;
+		if (snapshot == null) {
+			return Float.NaN;
+		}
+		int useridx = Arrays.binarySearch(snapshot.userIds, user);
+		int itemidx = Arrays.binarySearch(snapshot.itemIds, item);
 
 		// LL 12.02.13
-		if (useridx != null) {
-			return (float) emSvd.getDotProduct(useridx, itemidx);
+		if (useridx >= 0 && itemidx >= 0) {
+			return (float) snapshot.getDotProduct(useridx, itemidx);
 		}
 		else {
 			// This might happen during training test splits for super-sparse (test)
@@ -79,6 +125,65 @@ public class FunkSVDRecommender extends AbstractRecommender {
 
 	// =====================================================================================
 
+	/**
+	 * Looks up the user vector once and computes the dot products with the item vectors
+	 */
+	@Override
+	public void predictRatings(int user, int[] items, float[] out) {
+		FactorSnapshot snapshot = this.factors;
+		int useridx = snapshot == null ? -1 : Arrays.binarySearch(snapshot.userIds, user);
+		if (useridx < 0) {
+			Arrays.fill(out, 0, items.length, Float.NaN);
+			return;
+		}
+		double[] userVector = snapshot.userFactors[useridx];
+		for (int k = 0; k < items.length; k++) {
+			int itemidx = Arrays.binarySearch(snapshot.itemIds, items[k]);
+			if (itemidx < 0) {
+				out[k] = Float.NaN;
+				continue;
+			}
+			double[] itemVector = snapshot.itemFactors[itemidx];
+			double result = 1.0;
+			for (int f = 0; f < userVector.length; f++) {
+				result += userVector[f] * itemVector[f];
+			}
+			out[k] = (float) result;
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Copies the current state of the gradient descent into a new snapshot which is then
+	 * used by predictRating()
+	 */
+	private void freezeFactors() {
+		int[] userIds = toSortedArray(dataModel.getUsers());
+		double[][] userFactors = new double[userIds.length][];
+		for (int u = 0; u < userIds.length; u++) {
+			userFactors[u] = emSvd.getLeftVector(userMap.get(userIds[u])).clone();
+		}
+		int[] itemIds = toSortedArray(dataModel.getItems());
+		double[][] itemFactors = new double[itemIds.length][];
+		for (int i = 0; i < itemIds.length; i++) {
+			itemFactors[i] = emSvd.getRightVector(itemMap.get(itemIds[i])).clone();
+		}
+		factors = new FactorSnapshot(userIds, userFactors, itemIds, itemFactors);
+	}
+
+	private static int[] toSortedArray(Set<Integer> ids) {
+		int[] result = new int[ids.size()];
+		int k = 0;
+		for (Integer id : ids) {
+			result[k++] = id;
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	// =====================================================================================
+
 	/**
 	 * This method recommends items.
 	 */
@@ -96,8 +201,10 @@ public class FunkSVDRecommender extends AbstractRecommender {
 		Debug.log("FunkSVD:init: Starting to train model");
 		int numUsers = dataModel.getUsers().size();
 		userMap = new FastByIDMap<Integer>(numUsers);
+		int[] userIdsByIndex = new int[numUsers];
 		int idx = 0;
 		for (Integer user : dataModel.getUsers()) {
+			userIdsByIndex[idx] = user;
 			userMap.put(user, idx++);
 		}
 
@@ -117,7 +224,9 @@ public class FunkSVDRecommender extends AbstractRecommender {
 		//cachedPreferences = new ArrayList<Rating>(numUsers);
 		//recachePreferences();
 
-		//train(initialSteps);
+		if (trainFactors) {
+			train(initialSteps);
+		}
 
 		// System.out.println("Top N Recommendations using SVD of Reco101 :");
 		// double itemMatrix[][] = emSvd.getItemMatrix();
@@ -150,84 +259,45 @@ public class FunkSVDRecommender extends AbstractRecommender {
 		 * Stuff starts here \m/
 		 */
 
-		SparseDoubleMatrix2D A = new SparseDoubleMatrix2D(numItems, numUsers);
-		for (Integer user : dataModel.getUsers()) {
-			for (Rating rating : dataModel.getRatingsPerUser().get(user)) {
-				int userid = rating.user;
-				int useridx = userMap.get(userid);
-				int itemid = rating.item;
-				int itemidx = itemMap.get(itemid);
-				A.setQuick(itemidx, useridx, rating.rating);
-			}
-		}
-		
-		Algebra a = new Algebra();
-
+		// The truncated SVD of the item x user matrix, only the top factors are computed
+		RatingStore store = dataModel.getRatingStore();
 		long t1 = System.currentTimeMillis();
 		System.out.println("Started SVD:");
-		SingularValueDecomposition svd = new SingularValueDecomposition(A);		
-		long t2 = System.currentTimeMillis();
-		System.out.println("Time taken for Cern-Colt SVD : " + (float)(t2-t1)/1000 + "secs");
-		
-		Matrix jama_A = new Matrix(A.toArray());
-		Jama.SingularValueDecomposition jama_svd = new Jama.SingularValueDecomposition(jama_A);
+		TruncatedSVD svd = new TruncatedSVD(svdRank, Recommender101Impl.NUM_OF_THREADS, new Random(random.nextLong()));
+		svd.compute(store);
 		long t3 = System.currentTimeMillis();
-		System.out.println("Time taken for JAMA SVD : " + (float)(t3-t2)/1000 + "secs");	
-		
-		System.out.println("Rank of dataset: " + svd.rank());
-		
+		System.out.println("Time taken for truncated SVD : " + (float)(t3-t1)/1000 + "secs");
+
 		double[] values = svd.getSingularValues();
 
-		double sum = 0;
-
-		for (int j = 0; j < values.length; j++) {
-			sum += values[j];
-		}
+		// The share of each factor in the squared Frobenius norm, which is known without
+		// computing all singular values
+		double sum = svd.getSquaredNorm();
 
 		System.out.println("Contribution of factors:");
 		double cum_sum = 0;
 		for (int j = 0; j < values.length; j++) {
-			cum_sum += (values[j] / sum) * 100;
-			System.out.println(j + " : Value : " + values[j] + " Percentage : " + (values[j] / sum) * 100
+			cum_sum += (values[j] * values[j] / sum) * 100;
+			System.out.println(j + " : Value : " + values[j] + " Percentage : " + (values[j] * values[j] / sum) * 100
 					+ " % Cumulative : " + cum_sum + " %");
 		}
 
-		double cur_sum = 0;
-		int pos = 0;
-		for (int j = 0; j < values.length; j++) {
-			if (cur_sum > 90) {
-				pos = j;
-				break;
+		int pos = values.length;
+		System.out.println("Number of factors : " + pos);
+
+		// U * S, one row per item index of the itemMap (zero for items without ratings)
+		double[][] U = svd.getU();
+		double itemMatrix_SVD[][] = new double[numItems][pos];
+		for (int i = 0; i < U.length; i++) {
+			double[] row = itemMatrix_SVD[itemMap.get(store.itemId(i))];
+			for (int j = 0; j < pos; j++) {
+				row[j] = U[i][j] * values[j];
 			}
-			cur_sum += (values[j] / sum) * 100;
 		}
-
-		System.out.println("Factor id upto threshold importance : " + pos);
-
-		//DoubleMatrix2D V = svd.getV();
-		//DoubleMatrix2D V_threshold = V.viewPart(0, 0, numItems, pos);
-		//DoubleMatrix2D V_threshold_T = a.transpose(V_threshold);
-		//DoubleMatrix2D S = svd.getS();
-		//DoubleMatrix2D S_threshold = S.viewPart(0, 0, pos, pos);
-		//DoubleMatrix2D itemReduced_T = a.mult(S_threshold, V_threshold_T);
-		//DoubleMatrix2D itemReduced = a.transpose(itemReduced_T);
-		DoubleMatrix2D U = svd.getU();
-		DoubleMatrix2D U_threshold = U.viewPart(0, 0, numItems, pos);
-		DoubleMatrix2D S = svd.getS();
-		DoubleMatrix2D S_threshold = S.viewPart(0, 0, pos, pos);
-		DoubleMatrix2D itemReduced = a.mult(U_threshold, S_threshold);
-		double itemMatrix_SVD[][] = itemReduced.toArray();
 		
 		System.out
 				.println("Top N Recommendations based on CosineSimilarity on Reduced Dimension Item Matrix:");
-		int temp[] = new int[numItems];
-		int topNReco[][] = new int[numItems][N];
-		for (int i = 0; i < numItems; i++) {
-			temp = Similarity.similarVectors(itemMatrix_SVD, i, 0);
-			for (int j = 0; j < N; j++) {
-				topNReco[i][j] = temp[j];
-			}
-		}
+		int topNReco[][] = TopNSimilarities.compute(itemMatrix_SVD, N, Recommender101Impl.NUM_OF_THREADS);
 
 		for (int i = 0; i < numItems; i++) {
 			System.out.print(i);
@@ -289,7 +359,7 @@ public class FunkSVDRecommender extends AbstractRecommender {
 		//System.out.println("Fuzzy KMeans Cluster Details:");
 		fuzzykMeans_cluster.printClusters();
 		
-		// Computing the TopN recommendations for each item from Fuzzy k-Means clusters
+		// Computing the TopN recommendations for each item from Fuzzy k-Means clusters
 		ArrayList<ArrayList<Integer>> topNReco3 = new ArrayList<ArrayList<Integer>>(fuzzykMeans_cluster.topNReco(numItems, N, itemMatrix_SVD , k_fuzzy));
 		
 		//Final User Recommendation
@@ -299,8 +369,13 @@ public class FunkSVDRecommender extends AbstractRecommender {
 			System.out.print(i);
 			System.out.print(" :");
 			HashMap<Integer, Double> ScoreItem = new HashMap<Integer, Double>(); 
-			for(int j=0 ;j<numItems ;j++) {
-				if (A.get(j, i) ==1){
+			// the items rated with 1 by the user, from the row of the user in the store
+			int u = store.userIndex(userIdsByIndex[i]);
+			int from = (u < 0) ? 0 : store.getUserOffsets()[u];
+			int to = (u < 0) ? 0 : store.getUserOffsets()[u + 1];
+			for(int k = from; k < to; k++) {
+				int j = itemMap.get(store.itemId(store.getUserItems()[k]));
+				if (store.getUserValues()[k] ==1){
 					ArrayList<Integer> ListofItems = new ArrayList<Integer>(topNReco2.get(j));
 					for(int p : ListofItems) {
 						if(p!= -1) {
@@ -330,7 +405,7 @@ public class FunkSVDRecommender extends AbstractRecommender {
 	  		}
 	 		System.out.println("");
 		
-	}
+	}
 		
 		//DataHolder dh = new DataHolder();
 		//for(int i=0; i<numItems; i++)
@@ -394,6 +469,7 @@ public class FunkSVDRecommender extends AbstractRecommender {
 
 		// Load the user averages for the recommendation task
 		this.perUserAverage = dataModel.getUserAverageRatings();
+		freezeFactors();
 		Debug.log("FunkSVD:init: Initial training done");
 	}
 
@@ -404,30 +480,44 @@ public class FunkSVDRecommender extends AbstractRecommender {
 	// =====================================================================================
 
 	// SVD-Specific things here
-	public void train(int steps) {
+	public void train(int steps) throws Exception {
+		if (trainer == null) {
+			trainer = createTrainer();
+		}
 		for (int i = 0; i < steps; i++) {
 			// Debug.log("Training iteration for SVD: " + i);
-			nextTrainStep();
+			trainer.epoch();
 		}
+		trainer.copyTo(emSvd);
+		freezeFactors();
 	}
 
 	// =====================================================================================
 
-	private void nextTrainStep() {
-		Collections.shuffle(cachedPreferences, random);
-		long userid;
-		long itemid;
-		for (int i = 0; i < numFeatures; i++) {
-			for (Rating rating : cachedPreferences) {
-				userid = rating.user;
-				itemid = rating.item;
-				int useridx = userMap.get(userid);
-				int itemidx = itemMap.get(itemid);
-				// System.out.println("Training useridx: " + useridx + ", itemidx: " +
-				// // itemidx);
-				emSvd.train(useridx, itemidx, i, rating.rating);
+	/**
+	 * Resolves the ratings to the indices of the factor rows once, in the order of the rows of
+	 * the rating store
+	 */
+	private ParallelSGD createTrainer() {
+		RatingStore store = dataModel.getRatingStore();
+		int n = store.getNumberOfRatings();
+		int[] users = new int[n];
+		int[] items = new int[n];
+		int[] itemIndices = new int[store.getNumberOfItems()];
+		for (int i = 0; i < itemIndices.length; i++) {
+			itemIndices[i] = itemMap.get(store.itemId(i));
+		}
+		int[] offsets = store.getUserOffsets();
+		int[] rowItems = store.getUserItems();
+		for (int u = 0; u < store.getNumberOfUsers(); u++) {
+			int useridx = userMap.get(store.userId(u));
+			for (int k = offsets[u]; k < offsets[u + 1]; k++) {
+				users[k] = useridx;
+				items[k] = itemIndices[rowItems[k]];
 			}
 		}
+		return new ParallelSGD(emSvd, users, items, store.getUserValues(), n, Recommender101Impl.NUM_OF_THREADS,
+				stratifiedTraining, new Random(random.nextLong()));
 	}
 
 	// =====================================================================================
@@ -464,6 +554,39 @@ public class FunkSVDRecommender extends AbstractRecommender {
 		this.initialSteps = Integer.parseInt(n);
 	}
 
+	// =====================================================================================
+
+	/**
+	 * Setter for the number of factors of the truncated SVD
+	 * 
+	 * @param n
+	 */
+	public void setSvdRank(String n) {
+		this.svdRank = Integer.parseInt(n);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Setter for the training schedule, "true" for the deterministic stratified schedule
+	 * 
+	 * @param s
+	 */
+	public void setStratifiedTraining(String s) {
+		this.stratifiedTraining = Boolean.parseBoolean(s);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Setter for the training of the factors in init(), "true" to train initialSteps epochs
+	 * 
+	 * @param s
+	 */
+	public void setTrainFactors(String s) {
+		this.trainFactors = Boolean.parseBoolean(s);
+	}
+
 	// --------------------------------------
 	private static final Random random = RandomUtils.getRandom();
 
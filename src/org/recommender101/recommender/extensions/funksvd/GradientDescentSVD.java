@@ -11,9 +11,9 @@ public final class GradientDescentSVD {
   
   private static final Random random = RandomUtils.getRandom();
   
-  private static final double LEARNING_RATE = 0.005;
+  static final double LEARNING_RATE = 0.005;
   /** Parameter used to prevent overfitting. 0.02 is a good value. */
-  private static final double K = 0.02;
+  static final double K = 0.02;
   /** Random noise applied to starting values. */
   private static final double r = 0.005;
   
@@ -0,0 +1,249 @@
+/** DJ **/
+package org.recommender101.recommender.extensions.funksvd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains the factors of a {@link GradientDescentSVD} on several threads. The update is the one
+ * of GradientDescentSVD.train(): one feature at a time over all ratings, the prediction being
+ * 1 + the dot product of the factors.
+ *
+ * The ratings are resolved into dense index arrays once and the factors are copied into flat
+ * arrays (one row of numFeatures values per user or item). Two schedules are supported:
+ * - Hogwild (default): the ratings are shuffled per epoch and split into one shard per thread.
+ *   The threads update the shared factors without locks; conflicting updates are rare in
+ *   sparse data and only add a little noise to the gradient steps.
+ * - Stratified (DSGD): users and items are split into T blocks for T threads. In each of T
+ *   sub-epochs thread t trains the ratings of user block t and item block (t + s) mod T, so no
+ *   two threads touch the same factors. The result does not depend on the timing of the
+ *   threads and is reproducible for a given random generator.
+ * All threads finish a feature (and, stratified, a sub-epoch) before the next one starts.
+ */
+public class ParallelSGD {
+
+	// The number of threads
+	int nbThreads;
+
+	// Use the stratified schedule
+	boolean stratified;
+
+	// The number of features
+	int k;
+
+	// The ratings as dense user and item indices of the factor rows
+	int[] users;
+	int[] items;
+	float[] values;
+	int n;
+
+	// The factors, row-major
+	double[] userFactors;
+	double[] itemFactors;
+
+	// The training order of the ratings, grouped by stratum if stratified
+	int[] order;
+
+	// The start of each stratum (user block * nbThreads + item block) in the order
+	int[] strataOffsets;
+
+	// The random numbers for shuffling
+	Random random;
+
+	// =====================================================================================
+
+	/**
+	 * Creates the trainer and copies the current factors of the model
+	 * @param svd the model
+	 * @param users the user index (row of the left vectors) of each rating
+	 * @param items the item index (row of the right vectors) of each rating
+	 * @param values the rating values
+	 * @param n the number of ratings
+	 * @param nbThreads the number of threads
+	 * @param stratified true for the stratified schedule, false for Hogwild
+	 * @param random the random numbers for shuffling
+	 */
+	public ParallelSGD(GradientDescentSVD svd, int[] users, int[] items, byte[] values, int n, int nbThreads,
+			boolean stratified, Random random) {
+		this.nbThreads = Math.max(1, nbThreads);
+		this.stratified = stratified;
+		this.k = svd.getK();
+		this.users = users;
+		this.items = items;
+		this.n = n;
+		this.random = random;
+		this.values = new float[n];
+		for (int r = 0; r < n; r++) {
+			this.values[r] = values[r];
+		}
+		userFactors = new double[svd.getM() * k];
+		for (int u = 0; u < svd.getM(); u++) {
+			System.arraycopy(svd.getLeftVector(u), 0, userFactors, u * k, k);
+		}
+		itemFactors = new double[svd.getN() * k];
+		for (int i = 0; i < svd.getN(); i++) {
+			System.arraycopy(svd.getRightVector(i), 0, itemFactors, i * k, k);
+		}
+
+		order = new int[n];
+		if (stratified) {
+			// counting sort of the ratings by stratum
+			int t = this.nbThreads;
+			strataOffsets = new int[t * t + 1];
+			for (int r = 0; r < n; r++) {
+				strataOffsets[stratum(r) + 1]++;
+			}
+			for (int s = 0; s < t * t; s++) {
+				strataOffsets[s + 1] += strataOffsets[s];
+			}
+			int[] next = strataOffsets.clone();
+			for (int r = 0; r < n; r++) {
+				order[next[stratum(r)]++] = r;
+			}
+		}
+		else {
+			for (int r = 0; r < n; r++) {
+				order[r] = r;
+			}
+		}
+	}
+
+	int stratum(int r) {
+		return (users[r] % nbThreads) * nbThreads + (items[r] % nbThreads);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Trains all features once over all ratings
+	 * @throws Exception if a thread fails
+	 */
+	public void epoch() throws Exception {
+		final int t = nbThreads;
+		if (stratified) {
+			for (int s = 0; s < t * t; s++) {
+				shuffle(order, strataOffsets[s], strataOffsets[s + 1], random);
+			}
+		}
+		else {
+			shuffle(order, 0, n, random);
+		}
+
+		ExecutorService pool = (t > 1) ? Executors.newFixedThreadPool(t) : null;
+		try {
+			for (int f = 0; f < k; f++) {
+				if (!stratified) {
+					List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+					for (int thread = 0; thread < t; thread++) {
+						tasks.add(new Shard(f, (int) ((long) n * thread / t), (int) ((long) n * (thread + 1) / t)));
+					}
+					run(pool, tasks);
+				}
+				else {
+					for (int sub = 0; sub < t; sub++) {
+						List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+						for (int thread = 0; thread < t; thread++) {
+							int s = thread * t + (thread + sub) % t;
+							tasks.add(new Shard(f, strataOffsets[s], strataOffsets[s + 1]));
+						}
+						run(pool, tasks);
+					}
+				}
+			}
+		}
+		finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Runs the tasks and waits for all of them
+	 */
+	static void run(ExecutorService pool, List<Callable<Void>> tasks) throws Exception {
+		if (pool == null) {
+			for (Callable<Void> task : tasks) {
+				task.call();
+			}
+			return;
+		}
+		try {
+			for (Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		}
+		catch (ExecutionException e) {
+			throw new Exception("ParallelSGD: Training failed", e.getCause());
+		}
+	}
+
+	static void shuffle(int[] array, int from, int to, Random random) {
+		for (int i = to - 1; i > from; i--) {
+			int j = from + random.nextInt(i - from + 1);
+			int tmp = array[i];
+			array[i] = array[j];
+			array[j] = tmp;
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Trains one feature over a range of the training order
+	 */
+	class Shard implements Callable<Void> {
+
+		int feature;
+		int from;
+		int to;
+
+		Shard(int feature, int from, int to) {
+			this.feature = feature;
+			this.from = from;
+			this.to = to;
+		}
+
+		public Void call() {
+			double[] p = userFactors;
+			double[] q = itemFactors;
+			for (int o = from; o < to; o++) {
+				int r = order[o];
+				int userOffset = users[r] * k;
+				int itemOffset = items[r] * k;
+				double prediction = 1.0;
+				for (int f = 0; f < k; f++) {
+					prediction += p[userOffset + f] * q[itemOffset + f];
+				}
+				double err = values[r] - prediction;
+				int uf = userOffset + feature;
+				int itf = itemOffset + feature;
+				p[uf] += GradientDescentSVD.LEARNING_RATE * (err * q[itf] - GradientDescentSVD.K * p[uf]);
+				q[itf] += GradientDescentSVD.LEARNING_RATE * (err * p[uf] - GradientDescentSVD.K * q[itf]);
+			}
+			return null;
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Copies the trained factors back into the model
+	 * @param svd the model the trainer was created with
+	 */
+	public void copyTo(GradientDescentSVD svd) {
+		for (int u = 0; u < svd.getM(); u++) {
+			System.arraycopy(userFactors, u * k, svd.getLeftVector(u), 0, k);
+		}
+		for (int i = 0; i < svd.getN(); i++) {
+			System.arraycopy(itemFactors, i * k, svd.getRightVector(i), 0, k);
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+/** DJ **/
+package org.recommender101.recommender.extensions.funksvd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.recommender101.tools.TopKHeap;
+
+/**
+ * Finds the N most similar vectors (cosine similarity) of each vector of a set, e.g., the
+ * most similar items in the reduced item matrix of the SVD.
+ *
+ * The candidate vectors are normalized once and copied into one flat array. The rows are
+ * processed in blocks by the threads; each block is compared with one tile of candidates at a
+ * time, so that the tile stays in the cache while it is compared with all rows of the block.
+ * The best candidates of a row are kept in a bounded {@link TopKHeap}, i.e., no list of all
+ * similarities is sorted. Ties are broken by the smaller index. Zero vectors have a similarity of 0.
+ */
+public class TopNSimilarities {
+
+	// The number of rows per task
+	static final int ROW_BLOCK = 64;
+
+	// The number of candidates compared with a block at a time
+	static final int CANDIDATE_TILE = 512;
+
+	// =====================================================================================
+
+	/**
+	 * Computes the N most similar other vectors of each vector
+	 * @param vectors the vectors
+	 * @param n the number of neighbors
+	 * @param nbThreads the number of threads
+	 * @return for each vector the indices of the neighbors, most similar first, padded with -1
+	 * @throws Exception if a thread fails
+	 */
+	public static int[][] compute(double[][] vectors, int n, int nbThreads) throws Exception {
+		int[] all = new int[vectors.length];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = i;
+		}
+		return compute(vectors, all, all, n, nbThreads);
+	}
+
+	/**
+	 * Computes the N most similar candidates of some vectors, a vector is never its own neighbor
+	 * @param vectors the vectors
+	 * @param rows the indices of the vectors for which the neighbors are computed
+	 * @param candidates the indices of the possible neighbors
+	 * @param n the number of neighbors
+	 * @param nbThreads the number of threads
+	 * @return for each row the vector indices of the neighbors, most similar first, padded with -1
+	 * @throws Exception if a thread fails
+	 */
+	public static int[][] compute(double[][] vectors, final int[] rows, final int[] candidates, final int n,
+			int nbThreads) throws Exception {
+		final int dimensions = vectors.length == 0 ? 0 : vectors[0].length;
+		final double[] rowMatrix = normalize(vectors, rows, dimensions);
+		final double[] candidateMatrix = (rows == candidates) ? rowMatrix : normalize(vectors, candidates, dimensions);
+		final int[][] result = new int[rows.length][];
+		if (n <= 0) {
+			for (int r = 0; r < rows.length; r++) {
+				result[r] = new int[0];
+			}
+			return result;
+		}
+		final int nbBlocks = (rows.length + ROW_BLOCK - 1) / ROW_BLOCK;
+		final AtomicInteger nextBlock = new AtomicInteger();
+
+		Callable<Void> worker = new Callable<Void>() {
+			public Void call() {
+				TopKHeap[] heaps = new TopKHeap[ROW_BLOCK];
+				for (int r = 0; r < ROW_BLOCK; r++) {
+					heaps[r] = new TopKHeap(n);
+				}
+				int block;
+				while ((block = nextBlock.getAndIncrement()) < nbBlocks) {
+					int from = block * ROW_BLOCK;
+					int to = Math.min(rows.length, from + ROW_BLOCK);
+					for (int r = from; r < to; r++) {
+						heaps[r - from].clear();
+					}
+					for (int tile = 0; tile < candidates.length; tile += CANDIDATE_TILE) {
+						int tileEnd = Math.min(candidates.length, tile + CANDIDATE_TILE);
+						for (int r = from; r < to; r++) {
+							TopKHeap heap = heaps[r - from];
+							int self = rows[r];
+							int rowOffset = r * dimensions;
+							for (int c = tile; c < tileEnd; c++) {
+								int candidate = candidates[c];
+								if (candidate == self) {
+									continue;
+								}
+								double similarity = 0;
+								int candidateOffset = c * dimensions;
+								for (int f = 0; f < dimensions; f++) {
+									similarity += rowMatrix[rowOffset + f] * candidateMatrix[candidateOffset + f];
+								}
+								heap.offer(candidate, similarity);
+							}
+						}
+					}
+					for (int r = from; r < to; r++) {
+						result[r] = toSortedArray(heaps[r - from]);
+					}
+				}
+				return null;
+			}
+		};
+
+		int nbTasks = Math.max(1, Math.min(nbThreads, nbBlocks));
+		if (nbTasks == 1) {
+			worker.call();
+			return result;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(nbTasks);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int t = 0; t < nbTasks; t++) {
+				tasks.add(worker);
+			}
+			for (Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		}
+		catch (ExecutionException e) {
+			throw new Exception("TopNSimilarities: Computation failed", e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return result;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Copies the selected vectors with unit length into a flat array, one row after the other
+	 */
+	static double[] normalize(double[][] vectors, int[] indices, int dimensions) {
+		double[] result = new double[indices.length * dimensions];
+		for (int k = 0; k < indices.length; k++) {
+			double[] vector = vectors[indices[k]];
+			double length = 0;
+			for (int f = 0; f < dimensions; f++) {
+				length += vector[f] * vector[f];
+			}
+			double factor = length > 0 ? 1 / Math.sqrt(length) : 0;
+			for (int f = 0; f < dimensions; f++) {
+				result[k * dimensions + f] = vector[f] * factor;
+			}
+		}
+		return result;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Empties a heap, best candidate first, padded with -1
+	 */
+	static int[] toSortedArray(TopKHeap heap) {
+		int size = heap.sortDescending();
+		int[] result = new int[heap.capacity()];
+		System.arraycopy(heap.getIds(), 0, result, 0, size);
+		for (int k = size; k < result.length; k++) {
+			result[k] = -1;
+		}
+		heap.clear();
+		return result;
+	}
+
+}
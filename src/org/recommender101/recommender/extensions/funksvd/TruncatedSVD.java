@@ -0,0 +1,409 @@
+/** DJ **/
+package org.recommender101.recommender.extensions.funksvd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.recommender101.data.RatingStore;
+
+/**
+ * Computes the top-k singular values and vectors of the item x user rating matrix of a
+ * {@link RatingStore} without building a dense matrix (randomized range finder with power
+ * iterations, Halko, Martinsson and Tropp 2011):
+ * 1. Q = orth(A * G) for a random Gaussian user x l matrix G, l = k + oversampling.
+ * 2. Power iterations: Q = orth(A * orth(A^T * Q)), which sharpens the decay of the spectrum.
+ * 3. The l x l matrix B * B^T with B = Q^T * A is decomposed exactly (Jacobi); its eigenvectors
+ *    W give U = Q * W, the singular values are the square roots of the eigenvalues and
+ *    V = B^T * W / sigma.
+ *
+ * The matrix is only accessed through products with the rows (A^T * Y) and the columns
+ * (A * X) of the store, which run in parallel. Time and memory are linear in the number of
+ * ratings and in (users + items) * l, i.e., the SVD of MovieLens 10M with k = 10 takes a few
+ * seconds and a few MB besides the store.
+ */
+public class TruncatedSVD {
+
+	// The number of factors
+	int rank;
+
+	// Additional random vectors which improve the accuracy of the last factors
+	int oversampling = 10;
+
+	// The number of power iterations, more iterations are needed if the singular values decay slowly
+	int powerIterations = 4;
+
+	// The number of threads for the matrix products
+	int nbThreads;
+
+	// The random numbers of the initial subspace
+	Random random;
+
+	// The results: the left vectors (per item index), the singular values and the right vectors
+	// (per user index), row k holds the factors of item or user k
+	double[][] u;
+	double[] singularValues;
+	double[][] v;
+
+	// The squared Frobenius norm of the matrix, i.e., the sum of all squared singular values
+	double squaredNorm;
+
+	// =====================================================================================
+
+	/**
+	 * Creates the solver
+	 * @param rank the number of factors
+	 * @param nbThreads the number of threads for the matrix products
+	 * @param random the random numbers of the initial subspace
+	 */
+	public TruncatedSVD(int rank, int nbThreads, Random random) {
+		this.rank = rank;
+		this.nbThreads = Math.max(1, nbThreads);
+		this.random = random;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Decomposes the item x user matrix of the ratings in a store
+	 * @param store the ratings
+	 * @throws Exception if a thread fails
+	 */
+	public void compute(RatingStore store) throws Exception {
+		int nbItems = store.getNumberOfItems();
+		int nbUsers = store.getNumberOfUsers();
+		int l = Math.min(rank + oversampling, Math.min(nbItems, nbUsers));
+		int k = Math.min(rank, l);
+
+		squaredNorm = 0;
+		for (byte value : store.getUserValues()) {
+			squaredNorm += value * value;
+		}
+		if (l == 0) {
+			u = new double[nbItems][0];
+			singularValues = new double[0];
+			v = new double[nbUsers][0];
+			return;
+		}
+
+		double[][] g = new double[nbUsers][l];
+		for (double[] row : g) {
+			for (int f = 0; f < l; f++) {
+				row[f] = random.nextGaussian();
+			}
+		}
+		double[][] q = multiply(store, g, true);
+		orthonormalize(q);
+		for (int it = 0; it < powerIterations; it++) {
+			double[][] z = multiply(store, q, false);
+			orthonormalize(z);
+			q = multiply(store, z, true);
+			orthonormalize(q);
+		}
+
+		// B^T = A^T * Q and the eigen decomposition of B * B^T
+		double[][] bt = multiply(store, q, false);
+		double[][] gram = new double[l][l];
+		for (double[] row : bt) {
+			for (int a = 0; a < l; a++) {
+				double x = row[a];
+				if (x != 0) {
+					for (int b = a; b < l; b++) {
+						gram[a][b] += x * row[b];
+					}
+				}
+			}
+		}
+		for (int a = 0; a < l; a++) {
+			for (int b = 0; b < a; b++) {
+				gram[a][b] = gram[b][a];
+			}
+		}
+		double[][] w = new double[l][l];
+		double[] eigenvalues = eigen(gram, w);
+		Integer[] order = new Integer[l];
+		for (int f = 0; f < l; f++) {
+			order[f] = f;
+		}
+		final double[] e = eigenvalues;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(e[b], e[a]);
+			}
+		});
+
+		singularValues = new double[k];
+		double[][] wk = new double[l][k];
+		for (int f = 0; f < k; f++) {
+			singularValues[f] = Math.sqrt(Math.max(0, eigenvalues[order[f]]));
+			for (int a = 0; a < l; a++) {
+				wk[a][f] = w[a][order[f]];
+			}
+		}
+		u = project(q, wk, null);
+		double[] inverse = new double[k];
+		for (int f = 0; f < k; f++) {
+			inverse[f] = singularValues[f] > 0 ? 1 / singularValues[f] : 0;
+		}
+		v = project(bt, wk, inverse);
+	}
+
+	// =====================================================================================
+
+	/**
+	 * The product of the matrix (transposed) with a block of vectors, computed per column
+	 * (item) or per row (user) of the store in parallel
+	 * @param x the vectors, one row per user (itemSide) or per item
+	 * @param itemSide true for A * x, false for A^T * x
+	 * @return a new block, one row per item (itemSide) or per user
+	 */
+	double[][] multiply(RatingStore store, final double[][] x, boolean itemSide) throws Exception {
+		final int[] offsets = itemSide ? store.getItemOffsets() : store.getUserOffsets();
+		final int[] indices = itemSide ? store.getItemUsers() : store.getUserItems();
+		final byte[] values = itemSide ? store.getItemValues() : store.getUserValues();
+		final int l = x.length == 0 ? 0 : x[0].length;
+		final double[][] result = new double[offsets.length - 1][l];
+		parallel(result.length, new RangeTask() {
+			void run(int from, int to) {
+				for (int r = from; r < to; r++) {
+					double[] out = result[r];
+					for (int p = offsets[r]; p < offsets[r + 1]; p++) {
+						double value = values[p];
+						double[] in = x[indices[p]];
+						for (int f = 0; f < l; f++) {
+							out[f] += value * in[f];
+						}
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Multiplies a block with a small matrix, optionally scaling the result columns
+	 */
+	double[][] project(double[][] x, double[][] m, double[] scale) {
+		int l = m.length;
+		int k = m[0].length;
+		double[][] result = new double[x.length][k];
+		for (int r = 0; r < x.length; r++) {
+			double[] in = x[r];
+			double[] out = result[r];
+			for (int a = 0; a < l; a++) {
+				double value = in[a];
+				if (value != 0) {
+					for (int f = 0; f < k; f++) {
+						out[f] += value * m[a][f];
+					}
+				}
+			}
+			if (scale != null) {
+				for (int f = 0; f < k; f++) {
+					out[f] *= scale[f];
+				}
+			}
+		}
+		return result;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Orthonormalizes the columns of a block in place (modified Gram-Schmidt, applied twice for
+	 * numerical stability). Columns which depend on the previous ones are set to zero.
+	 */
+	static void orthonormalize(double[][] x) {
+		int l = x[0].length;
+		for (int c = 0; c < l; c++) {
+			double before = Math.sqrt(dot(x, c, c));
+			for (int pass = 0; pass < 2; pass++) {
+				for (int p = 0; p < c; p++) {
+					double d = dot(x, p, c);
+					if (d != 0) {
+						for (double[] row : x) {
+							row[c] -= d * row[p];
+						}
+					}
+				}
+			}
+			double norm = Math.sqrt(dot(x, c, c));
+			double factor = (norm > 1e-10 * before && norm > 0) ? 1 / norm : 0;
+			for (double[] row : x) {
+				row[c] *= factor;
+			}
+		}
+	}
+
+	static double dot(double[][] x, int a, int b) {
+		double result = 0;
+		for (double[] row : x) {
+			result += row[a] * row[b];
+		}
+		return result;
+	}
+
+	/**
+	 * The eigen decomposition of a small symmetric matrix (cyclic Jacobi rotations)
+	 * @param a the matrix, overwritten
+	 * @param vectors receives the eigenvectors in the columns
+	 * @return the eigenvalues (unsorted)
+	 */
+	static double[] eigen(double[][] a, double[][] vectors) {
+		int n = a.length;
+		for (int i = 0; i < n; i++) {
+			vectors[i][i] = 1;
+		}
+		for (int sweep = 0; sweep < 100; sweep++) {
+			double off = 0;
+			double diagonal = 0;
+			for (int i = 0; i < n; i++) {
+				diagonal += a[i][i] * a[i][i];
+				for (int j = i + 1; j < n; j++) {
+					off += a[i][j] * a[i][j];
+				}
+			}
+			if (off <= 1e-30 * diagonal || off == 0) {
+				break;
+			}
+			for (int p = 0; p < n; p++) {
+				for (int q = p + 1; q < n; q++) {
+					if (a[p][q] == 0) {
+						continue;
+					}
+					double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					if (theta == 0) {
+						t = 1;
+					}
+					double c = 1 / Math.sqrt(t * t + 1);
+					double s = t * c;
+					for (int k = 0; k < n; k++) {
+						double akp = a[k][p];
+						double akq = a[k][q];
+						a[k][p] = c * akp - s * akq;
+						a[k][q] = s * akp + c * akq;
+					}
+					for (int k = 0; k < n; k++) {
+						double apk = a[p][k];
+						double aqk = a[q][k];
+						a[p][k] = c * apk - s * aqk;
+						a[q][k] = s * apk + c * aqk;
+					}
+					for (int k = 0; k < n; k++) {
+						double vkp = vectors[k][p];
+						double vkq = vectors[k][q];
+						vectors[k][p] = c * vkp - s * vkq;
+						vectors[k][q] = s * vkp + c * vkq;
+					}
+				}
+			}
+		}
+		double[] result = new double[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = a[i][i];
+		}
+		return result;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * A part of a parallel loop
+	 */
+	static abstract class RangeTask {
+		abstract void run(int from, int to);
+	}
+
+	/**
+	 * Runs a loop over n rows in blocks on the threads
+	 */
+	void parallel(int n, final RangeTask task) throws Exception {
+		int nbTasks = Math.min(nbThreads, Math.max(1, n / 1024));
+		if (nbTasks <= 1) {
+			task.run(0, n);
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(nbTasks);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int t = 0; t < nbTasks; t++) {
+				final int from = (int) ((long) n * t / nbTasks);
+				final int to = (int) ((long) n * (t + 1) / nbTasks);
+				tasks.add(new Callable<Void>() {
+					public Void call() {
+						task.run(from, to);
+						return null;
+					}
+				});
+			}
+			for (Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		}
+		catch (ExecutionException e) {
+			throw new Exception("TruncatedSVD: Matrix product failed", e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// =====================================================================================
+
+	/**
+	 * The left singular vectors
+	 * @return one row of k factors per item index of the store
+	 */
+	public double[][] getU() {
+		return u;
+	}
+
+	/**
+	 * The right singular vectors
+	 * @return one row of k factors per user index of the store
+	 */
+	public double[][] getV() {
+		return v;
+	}
+
+	/**
+	 * The singular values in descending order
+	 * @return the k largest singular values
+	 */
+	public double[] getSingularValues() {
+		return singularValues;
+	}
+
+	/**
+	 * The sum of all squared singular values (the squared Frobenius norm of the matrix)
+	 * @return the total energy of the matrix
+	 */
+	public double getSquaredNorm() {
+		return squaredNorm;
+	}
+
+	/**
+	 * Sets the number of additional random vectors
+	 * @param n the oversampling
+	 */
+	public void setOversampling(int n) {
+		this.oversampling = n;
+	}
+
+	/**
+	 * Sets the number of power iterations
+	 * @param n the number of iterations
+	 */
+	public void setPowerIterations(int n) {
+		this.powerIterations = n;
+	}
+
+}
@@ -193,7 +193,7 @@ public class RfRecRecommender extends AbstractRecommender {
 		}
 		// Calculate the average ratings
 		userAverages = dataModel.getUserAverageRatings();
-		itemAverages = Utilities101.getItemAverageRatings(dataModel.getRatings());
+		itemAverages = dataModel.getItemStatistics().getMeans();
 
 		// Calculate the frequencies.
 		// Users..
@@ -99,10 +99,8 @@ public class WeightedAverageRecommender extends AbstractRecommender {
 
 
 		// Calculates the averages for the data model
-		this.itemAverages = Utilities101.getItemAverageRatings(getDataModel()
-				.getRatings());
-		this.userAverages = Utilities101.getUserAverageRatings(getDataModel()
-				.getRatings());
+		this.itemAverages = getDataModel().getItemStatistics().getMeans();
+		this.userAverages = getDataModel().getUserStatistics().getMeans();
 		this.globalAverage = Utilities101
 				.getGlobalRatingAverage(getDataModel());
 		gradientSolver(iterations, gammaStepSize, lambdaForRegulation);
@@ -1,5 +1,7 @@
 package org.recommender101.tools;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -8,6 +10,7 @@ import java.util.Set;
 import org.recommender101.data.DataModel;
 import org.recommender101.data.DefaultDataLoader;
 import org.recommender101.data.Rating;
+import org.recommender101.data.RatingStore;
 
 // A class to pre-process data files and retain only users and items with at least n ratings
 public class DataDensityTool {
@@ -49,24 +52,166 @@ public class DataDensityTool {
 	}
 	
 	/**
-	 * Calculates the set of ratings obeying the given constraints
+	 * Reduces the data model to the users with at least minPerUser ratings and the items with at 
+	 * least minPerItem ratings (the k-core of the rating graph). Users and items without ratings
+	 * are removed as well.
 	 * @param minPerUser
-	 * @return a set of ratings..
+	 * @param minPerItem
+	 * @param dm the data model to be modified
 	 */
 	public static void applyConstraints(int minPerUser, int minPerItem, DataModel dm) throws Exception {
-		
-		
-		// reduce the data
-		int max_iterations = 100;
-		int it_count = 0;
-		do  {
-			System.out.println("Round: " + it_count);
-			  it_count++;
-				deleteNonHeavyUsers(dm, minPerUser);
-				deleteNonFrequentItems(dm, minPerItem);
-		} while (!densityReached(dm, minPerUser, minPerItem) && (it_count < max_iterations));
+		RatingStore store = dm.getRatingStore();
+		BitSet core = computeCore(store, minPerUser, minPerItem);
+		retainRatings(dm, store, core, true, true);
+		Debug.log("DataDensityTool:applyConstraints: " + dm.getRatings().size() + " ratings of "
+				+ dm.getUsers().size() + " users and " + dm.getItems().size() + " items remain");
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Computes the ratings which remain if users with less than minPerUser ratings and items with 
+	 * less than minPerItem ratings are removed until both constraints hold. The degrees of the 
+	 * users and items are kept in arrays and the removed users and items are processed with a 
+	 * work queue, so every rating is looked at a constant number of times.
+	 * @param store the ratings
+	 * @param minPerUser the minimum number of ratings per user
+	 * @param minPerItem the minimum number of ratings per item
+	 * @return the positions of the remaining ratings in the rows of the store
+	 */
+	public static BitSet computeCore(RatingStore store, int minPerUser, int minPerItem) {
+		int nbUsers = store.getNumberOfUsers();
+		int nbItems = store.getNumberOfItems();
+		int[] userOffsets = store.getUserOffsets();
+		int[] userItems = store.getUserItems();
+		int[] itemOffsets = store.getItemOffsets();
+		int[] itemUsers = store.getItemUsers();
+
+		int[] userDegree = new int[nbUsers];
+		int[] itemDegree = new int[nbItems];
+		boolean[] userRemoved = new boolean[nbUsers];
+		boolean[] itemRemoved = new boolean[nbItems];
+		// users are queued as u, items as nbUsers + i. Every vertex is queued at most once.
+		int[] queue = new int[nbUsers + nbItems];
+		int head = 0;
+		int tail = 0;
+		for (int u = 0; u < nbUsers; u++) {
+			userDegree[u] = store.getUserRatingCount(u);
+			if (userDegree[u] < minPerUser) {
+				userRemoved[u] = true;
+				queue[tail++] = u;
+			}
+		}
+		for (int i = 0; i < nbItems; i++) {
+			itemDegree[i] = store.getItemRatingCount(i);
+			if (itemDegree[i] < minPerItem) {
+				itemRemoved[i] = true;
+				queue[tail++] = nbUsers + i;
+			}
+		}
+
+		// peel
+		while (head < tail) {
+			int vertex = queue[head++];
+			if (vertex < nbUsers) {
+				for (int k = userOffsets[vertex]; k < userOffsets[vertex + 1]; k++) {
+					int i = userItems[k];
+					if (!itemRemoved[i] && --itemDegree[i] < minPerItem) {
+						itemRemoved[i] = true;
+						queue[tail++] = nbUsers + i;
+					}
+				}
+			}
+			else {
+				int i = vertex - nbUsers;
+				for (int k = itemOffsets[i]; k < itemOffsets[i + 1]; k++) {
+					int u = itemUsers[k];
+					if (!userRemoved[u] && --userDegree[u] < minPerUser) {
+						userRemoved[u] = true;
+						queue[tail++] = u;
+					}
+				}
+			}
+		}
+
+		BitSet result = new BitSet(store.getNumberOfRatings());
+		for (int u = 0; u < nbUsers; u++) {
+			if (userRemoved[u]) {
+				continue;
+			}
+			for (int k = userOffsets[u]; k < userOffsets[u + 1]; k++) {
+				if (!itemRemoved[userItems[k]]) {
+					result.set(k);
+				}
+			}
+		}
+		return result;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Removes all ratings from the data model which are not in the given set in one pass
+	 * @param dm the data model to be modified
+	 * @param store the ratings of the data model
+	 * @param retain the positions of the ratings to keep in the rows of the store
+	 * @param removeUsers if true, users without remaining ratings are removed
+	 * @param removeItems if true, items without remaining ratings are removed
+	 */
+	public static void retainRatings(DataModel dm, RatingStore store, BitSet retain, boolean removeUsers, boolean removeItems) {
+		int[] userOffsets = store.getUserOffsets();
+		int[] userItems = store.getUserItems();
+		boolean[] itemUsed = new boolean[store.getNumberOfItems()];
+		Set<Integer> usersWithRatings = new HashSet<Integer>();
+		for (int u = 0; u < store.getNumberOfUsers(); u++) {
+			int user = store.userId(u);
+			int kept = 0;
+			for (int k = userOffsets[u]; k < userOffsets[u + 1]; k++) {
+				if (retain.get(k)) {
+					kept++;
+					itemUsed[userItems[k]] = true;
+				}
+			}
+			if (kept == 0) {
+				continue;
+			}
+			usersWithRatings.add(user);
+			if (kept < userOffsets[u + 1] - userOffsets[u]) {
+				for (int k = userOffsets[u]; k < userOffsets[u + 1]; k++) {
+					if (!retain.get(k)) {
+						// ratings are equal if user and item are equal
+						dm.removeRating(new Rating(user, store.itemId(userItems[k]), 0));
+					}
+				}
+			}
+		}
+		for (Integer user : new ArrayList<Integer>(dm.getUsers())) {
+			if (!usersWithRatings.contains(user)) {
+				if (removeUsers) {
+					dm.removeUserWithRatings(user);
+				}
+				else if (dm.getRatingsOfUser(user) != null) {
+					for (Rating r : new ArrayList<Rating>(dm.getRatingsOfUser(user))) {
+						dm.removeRating(r);
+					}
+				}
+			}
+		}
+		if (removeItems) {
+			Set<Integer> itemsToRemove = new HashSet<Integer>();
+			for (Integer item : dm.getItems()) {
+				int i = store.itemIndex(item);
+				if (i < 0 || !itemUsed[i]) {
+					itemsToRemove.add(item);
+				}
+			}
+			dm.getItems().removeAll(itemsToRemove);
+		}
+		dm.recalculateUserAverages();
 	}
 
+	// =====================================================================================
+
 	/**
 	 * Removes all users from the data  model with less then minPerUser ratings
 	 * @param dm
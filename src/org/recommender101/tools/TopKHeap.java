@@ -0,0 +1,164 @@
+/** DJ **/
+package org.recommender101.tools;
+
+/**
+ * A bounded min-heap of (id, score) pairs on primitive arrays which keeps the k entries with the
+ * highest scores. Equal scores are ranked by ascending id. Offering an element costs O(log k)
+ * and does not allocate anything, so one heap can be re-used for many rankings (see clear()).
+ * Not thread-safe, use one heap per thread.
+ */
+public class TopKHeap {
+
+	// The ids, heap[0] is the weakest of the current top k
+	int[] ids;
+
+	// The corresponding scores
+	double[] scores;
+
+	// The number of elements in the heap
+	int size;
+
+	// =====================================================================================
+
+	/**
+	 * Creates a heap for the k best elements
+	 * @param k the capacity, must be positive
+	 */
+	public TopKHeap(int k) {
+		ids = new int[k];
+		scores = new double[k];
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Offers an element to the heap
+	 * @param id the id
+	 * @param score the score, must not be NaN
+	 * @return true if the element is (currently) among the top k
+	 */
+	public boolean offer(int id, double score) {
+		if (size < ids.length) {
+			int pos = size++;
+			// sift up
+			while (pos > 0) {
+				int parent = (pos - 1) >>> 1;
+				if (!weaker(id, score, ids[parent], scores[parent])) {
+					break;
+				}
+				ids[pos] = ids[parent];
+				scores[pos] = scores[parent];
+				pos = parent;
+			}
+			ids[pos] = id;
+			scores[pos] = score;
+			return true;
+		}
+		if (!weaker(ids[0], scores[0], id, score)) {
+			return false;
+		}
+		siftDown(id, score, size);
+		return true;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Places an element at the root and moves it down to its position
+	 */
+	void siftDown(int id, double score, int length) {
+		int pos = 0;
+		int half = length >>> 1;
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			int right = child + 1;
+			if (right < length && weaker(ids[right], scores[right], ids[child], scores[child])) {
+				child = right;
+			}
+			if (!weaker(ids[child], scores[child], id, score)) {
+				break;
+			}
+			ids[pos] = ids[child];
+			scores[pos] = scores[child];
+			pos = child;
+		}
+		ids[pos] = id;
+		scores[pos] = score;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Compares two elements
+	 * @return true if the first element ranks below the second one
+	 */
+	static boolean weaker(int id1, double score1, int id2, double score2) {
+		if (score1 != score2) {
+			return score1 < score2;
+		}
+		return id1 > id2;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Sorts the contents by descending score. Afterwards, getIds() and getScores() return
+	 * the ranking. The heap is empty after this call and has to be cleared before re-use.
+	 * @return the number of elements
+	 */
+	public int sortDescending() {
+		int n = size;
+		// heap sort: repeatedly move the weakest element to the end
+		for (int last = n - 1; last > 0; last--) {
+			int id = ids[last];
+			double score = scores[last];
+			ids[last] = ids[0];
+			scores[last] = scores[0];
+			siftDown(id, score, last);
+		}
+		size = 0;
+		return n;
+	}
+
+	// =====================================================================================
+
+	/**
+	 * Removes all elements
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * The current number of elements
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The capacity of the heap
+	 * @return k
+	 */
+	public int capacity() {
+		return ids.length;
+	}
+
+	/**
+	 * The internal id array, ordered after sortDescending()
+	 * @return the shared array
+	 */
+	public int[] getIds() {
+		return ids;
+	}
+
+	/**
+	 * The internal score array, ordered after sortDescending()
+	 * @return the shared array
+	 */
+	public double[] getScores() {
+		return scores;
+	}
+
+}
@@ -1,10 +1,12 @@
 /** DJ **/
 package org.recommender101.tools;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -14,6 +16,7 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
@@ -26,11 +29,14 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import org.recommender101.data.DataModel;
 import org.recommender101.data.Rating;
+import org.recommender101.data.RatingStore;
 import org.recommender101.eval.impl.Recommender101Impl;
 
 /**
@@ -48,11 +54,7 @@ public class Utilities101 {
 	 * @return the map with the rating counts
 	 */
 	public static Map<Integer, Integer> calculateRatingsPerItem(DataModel dm) {
-		Map<Integer, Integer> result = new HashMap<Integer, Integer>();
-		for (Rating r : dm.getRatings()) {
-			Utilities101.incrementMapValue(result, r.item);
-		}
-		return result;
+		return dm.getItemStatistics().getCounts();
 	}
 
 	// =====================================================================================
@@ -172,13 +174,7 @@ public class Utilities101 {
 	 * @return the average rating
 	 */
 	public static double getGlobalRatingAverage(DataModel dataModel) {
-		int cnt = 0;
-		int total = 0;
-		for (Rating rating : dataModel.getRatings()) {
-			total += rating.rating;
-			cnt++;
-		}
-		return total / (double) cnt;
+		return dataModel.getUserStatistics().getGlobalMean();
 	}
 	
 	
@@ -233,16 +229,11 @@ public class Utilities101 {
 	 */
 	public static void applyMinRatingsPerUserConstraint(DataModel dm,
 			int minNumberOfRatingsPerUser) {
-		Set<Rating> ratingsOfUser;
-		int counter = 0;
-		Set<Integer> userCopy = new HashSet<Integer>(dm.getUsers());
-		for (Integer user : userCopy) {
-			ratingsOfUser = new HashSet<Rating>(dm.getRatingsPerUser().get(user));
-			if (ratingsOfUser != null && ratingsOfUser.size() < minNumberOfRatingsPerUser) {
-				counter++;
-				dm.removeUserWithRatings(user);
-			}
-		}
+		int nbUsers = dm.getUsers().size();
+		RatingStore store = dm.getRatingStore();
+		BitSet retain = DataDensityTool.computeCore(store, minNumberOfRatingsPerUser, 0);
+		DataDensityTool.retainRatings(dm, store, retain, true, false);
+		int counter = nbUsers - dm.getUsers().size();
 		Debug.log("Utilities101:applyMinRatingsPerUserConstraint: Removed "
 				+ counter + " users. " + dm.getRatings().size()
 				+ " ratings of " + dm.getUsers().size() + " users remain.");
@@ -352,7 +343,7 @@ public class Utilities101 {
 		}
 		// Otherwise randomly pick a set of users to retain.
 		Random random = new Random();
-		List<Integer> chosenOnes = new ArrayList<Integer>();
+		Set<Integer> chosenOnes = new HashSet<Integer>();
 		// make a copy of the existing ones
 		List<Integer> copiedUsers = new ArrayList<Integer>(dm.getUsers());
 		Collections.shuffle(copiedUsers);
@@ -478,18 +469,7 @@ public class Utilities101 {
 	 * @return the variances
 	 */
 	public static Map<Integer, Float> getItemRatingVariances(DataModel dm) {
-		
-		Map<Integer, Float> result = new HashMap<Integer, Float>();
-		Map<Integer, Set<Rating>> ratingsPerItem = Utilities101.getRatingsOfItems(dm.getRatings());
-		
-		for (Integer item : dm.getItems()) {
-			Set<Rating> itemRatings = ratingsPerItem.get(item);
-			if (itemRatings != null) {
-				float variance = (float) Utilities101.getRatingVariance(itemRatings);
-				result.put(item, variance);
-			}
-		}
-		return result;
+		return dm.getItemStatistics().getVariances();
 	}
 	
 	
@@ -665,15 +645,9 @@ public class Utilities101 {
 		 *            the threshold
 		 */
 		public static void applyMinRatingsPerItemConstraint(DataModel dm, int minNumberOfRatingsPerItem) {
-			
-			Map<Integer,Integer> ratingsPerItem = calculateRatingsPerItem(dm);
-			Set<Rating> ratings = new HashSet<Rating>(dm.getRatings());
-			
-			for (Rating r : ratings){
-				if ( ratingsPerItem.get(r.item) < minNumberOfRatingsPerItem){
-					dm.removeRating(r);
-				}
-			}
+			RatingStore store = dm.getRatingStore();
+			BitSet retain = DataDensityTool.computeCore(store, 0, minNumberOfRatingsPerItem);
+			DataDensityTool.retainRatings(dm, store, retain, false, false);
 		}
 		
 		// =====================================================================================
@@ -840,6 +814,49 @@ public class Utilities101 {
 			}
 		}
 		
+		/**
+		 * Tells if a file is a gzip or zip archive (by its extension)
+		 * @param filename the file name
+		 * @return true for .gz and .zip files
+		 */
+		public static boolean isCompressedFile(String filename) {
+			String name = filename.toLowerCase();
+			return name.endsWith(".gz") || name.endsWith(".zip");
+		}
+		
+		/**
+		 * Opens a decompressing stream on a gzip file or on a file in a zip archive, so that the
+		 * content can be read without extracting it to disk first
+		 * @param filename the .gz or .zip file
+		 * @param fileToExtract the file in the zip archive (fully qualified name including subdirectories),
+		 * null for the first file of the archive. Ignored for gzip files.
+		 * @return the stream, to be closed by the caller
+		 * @throws IOException if the file cannot be opened or the archive does not contain the file
+		 */
+		public static InputStream openCompressedFile(String filename, String fileToExtract) throws IOException {
+			InputStream file = new FileInputStream(filename);
+			try {
+				// large input buffers, the inflater reads the file in few calls
+				if (filename.toLowerCase().endsWith(".gz")) {
+					return new GZIPInputStream(file, 1 << 20);
+				}
+				ZipInputStream zip = new ZipInputStream(new BufferedInputStream(file, 1 << 20));
+				ZipEntry entry = zip.getNextEntry();
+				while (entry != null) {
+					if (!entry.isDirectory() && (fileToExtract == null || entry.getName().equals(fileToExtract))) {
+						return zip;
+					}
+					entry = zip.getNextEntry();
+				}
+				zip.close();
+				throw new IOException("Could not find " + (fileToExtract == null ? "a file" : fileToExtract) + " in " + filename);
+			}
+			catch (IOException e) {
+				file.close();
+				throw e;
+			}
+		}
+		
 	/**
 	 * Get the value of a parameter (syntax --paramName=param)
 	 * 